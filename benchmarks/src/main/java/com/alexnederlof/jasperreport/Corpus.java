@@ -0,0 +1,68 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The report designs the benchmarks run on. By default these are the sample reports of the plugin
+ * tests, relative to the benchmarks directory. Run the benchmarks with <code>-p corpus=...</code> to
+ * use other designs.
+ */
+final class Corpus {
+
+	static final String DEFAULT_DIRECTORY = "../src/test/resources/exampleFolders/sampleReports";
+
+	private Corpus() {
+	}
+
+	/**
+	 * @param directory The directory with the report designs.
+	 * @return The designs in the directory, sorted by name.
+	 * @throws IOException When the directory does not contain any design.
+	 */
+	static List<File> designs(String directory) throws IOException {
+		File[] files = new File(directory).listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(".jrxml");
+			}
+		});
+		if (files == null || files.length == 0) {
+			throw new IOException("No report designs in " + new File(directory).getAbsolutePath());
+		}
+		List<File> designs = new ArrayList<>(Arrays.asList(files));
+		Collections.sort(designs);
+		return designs;
+	}
+
+	static File compiled(File outputDirectory, File design) {
+		String name = design.getName();
+		return new File(outputDirectory, name.substring(0, name.length() - ".jrxml".length()) + ".jasper");
+	}
+
+	static void delete(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+}
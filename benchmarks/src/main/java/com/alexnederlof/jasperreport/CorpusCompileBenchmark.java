@@ -0,0 +1,85 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jasperreports.engine.DefaultJasperReportsContext;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time it takes the plugin to compile the whole corpus to disk, for a number of threads. The
+ * corpus size divided by the score gives the throughput in reports per second.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CorpusCompileBenchmark {
+
+	@Param(Corpus.DEFAULT_DIRECTORY)
+	public String corpus;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	private final Log log = new SystemStreamLog();
+	private List<File> designs;
+	private File output;
+
+	@Setup
+	public void createOutput() throws IOException {
+		designs = Corpus.designs(corpus);
+		output = Files.createTempDirectory("jasper-benchmark").toFile();
+	}
+
+	@TearDown
+	public void deleteOutput() {
+		Corpus.delete(output);
+	}
+
+	@Benchmark
+	public Map<CompileTask, Exception> compileCorpus() throws InterruptedException {
+		CompileScheduler scheduler = new CompileScheduler(threads, log);
+		CompileMetrics metrics = new CompileMetrics();
+		for (File design : designs) {
+			scheduler.setCost(new CompileTask(design, design.getName(), Corpus.compiled(output, design), log, false,
+					DefaultJasperReportsContext.getInstance(), null, null, null, null, true, false, metrics), design.length());
+		}
+		Map<CompileTask, Exception> failures = scheduler.run();
+		if (!failures.isEmpty()) {
+			throw new IllegalStateException("Could not compile the corpus", failures.values().iterator().next());
+		}
+		return failures;
+	}
+}
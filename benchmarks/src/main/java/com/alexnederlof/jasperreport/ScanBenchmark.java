@@ -0,0 +1,78 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.compiler.util.scan.InclusionScanException;
+import org.codehaus.plexus.compiler.util.scan.StaleSourceScanner;
+import org.codehaus.plexus.compiler.util.scan.mapping.SuffixMapping;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of finding the stale designs with the <code>StaleSourceScanner</code>, against an empty
+ * output directory and against one where every report is up to date.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+
+	@Param(Corpus.DEFAULT_DIRECTORY)
+	public String corpus;
+
+	@Param({ "false", "true" })
+	public boolean upToDate;
+
+	private File output;
+
+	@Setup
+	public void createOutput() throws IOException {
+		output = Files.createTempDirectory("jasper-benchmark").toFile();
+		if (upToDate) {
+			// The scanner only compares timestamps, so new empty files are up to date
+			for (File design : Corpus.designs(corpus)) {
+				Corpus.compiled(output, design).createNewFile();
+			}
+		}
+	}
+
+	@TearDown
+	public void deleteOutput() {
+		Corpus.delete(output);
+	}
+
+	@Benchmark
+	public Set<File> scan() throws InclusionScanException {
+		StaleSourceScanner scanner = new StaleSourceScanner();
+		scanner.addSourceMapping(new SuffixMapping(".jrxml", ".jasper"));
+		return scanner.getIncludedSources(new File(corpus), output);
+	}
+}
@@ -0,0 +1,64 @@
+package com.alexnederlof.jasperreport.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.Serializable;
+
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.design.JRJdtCompiler;
+import net.sf.jasperreports.engine.fill.JREvaluator;
+
+/**
+ * The compiler named by reports whose expressions were written as class files by the
+ * <code>expressionClassesPackage</code> option of the plugin. Instead of defining the expression
+ * classes from the bytes in the report, it loads them by name, through the context class loader of
+ * the thread that fills the report or else the class loader of this class. Reports with the bytes of
+ * their expressions are loaded like the JDT compiler does.
+ */
+public class PrecompiledJdtCompiler extends JRJdtCompiler {
+
+	/**
+	 * @param jasperReportsContext The Jasper context, as passed by JasperReports.
+	 */
+	public PrecompiledJdtCompiler(JasperReportsContext jasperReportsContext) {
+		super(jasperReportsContext);
+	}
+
+	@Override
+	protected JREvaluator loadEvaluator(Serializable compileData, String unitName) throws JRException {
+		if (!(compileData instanceof String)) {
+			return super.loadEvaluator(compileData, unitName);
+		}
+		String className = (String) compileData;
+		try {
+			return (JREvaluator) loadExpressionsClass(className).getConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+			throw new JRException("Could not load the expressions class " + className, e);
+		}
+	}
+
+	private static Class<?> loadExpressionsClass(String className) throws ClassNotFoundException {
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		if (classLoader != null) {
+			try {
+				return Class.forName(className, true, classLoader);
+			}
+			catch (ClassNotFoundException e) {
+				// Not visible to the context class loader, try our own
+			}
+		}
+		return Class.forName(className, true, PrecompiledJdtCompiler.class.getClassLoader());
+	}
+}
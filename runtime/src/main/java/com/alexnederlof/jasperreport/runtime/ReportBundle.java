@@ -0,0 +1,298 @@
+package com.alexnederlof.jasperreport.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.util.JRLoader;
+
+/**
+ * Reads compiled reports from a bundle written by the <code>jasper</code> goal of the plugin. The
+ * bundle is memory mapped and its index is read once, so a report is found by name without scanning
+ * directories or jar entries. The names are the paths of the compiled reports relative to the
+ * <code>outputDirectory</code> of the plugin, with <code>/</code> as separator, like
+ * <code>invoices/Invoice.jasper</code>.
+ * <p>
+ * A bundle starts with the {@link #MAGIC} bytes and the {@link #VERSION} of the format, followed by
+ * the number of entries and an index entry per report: its name, the offset and stored length of
+ * its data, its uncompressed length, its {@link #STORED stored} or {@link #DEFLATED deflated}
+ * compression and the SHA-256 hash of the uncompressed data. The data of the reports follows the
+ * index. All numbers are big endian, names are written as by <code>DataOutput.writeUTF</code>.
+ * <p>
+ * A bundle can be read by any number of threads at the same time. Its content does not change while it
+ * is open, to pick up a new bundle it is opened again.
+ */
+public final class ReportBundle implements ReportSource, Closeable {
+
+	/** The first bytes of every bundle. */
+	public static final byte[] MAGIC = "JRBUNDLE".getBytes(StandardCharsets.US_ASCII);
+
+	/** The version of the bundle format. */
+	public static final int VERSION = 1;
+
+	/** The compression of an entry whose data is stored as is. */
+	public static final byte STORED = 0;
+
+	/** The compression of an entry whose data is deflated. */
+	public static final byte DEFLATED = 1;
+
+	/** The length of the hash of an entry. */
+	public static final int HASH_LENGTH = 32;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final Map<String, Entry> entries;
+
+	private ReportBundle(FileChannel channel, MappedByteBuffer buffer, Map<String, Entry> entries) {
+		this.channel = channel;
+		this.buffer = buffer;
+		this.entries = entries;
+	}
+
+	/**
+	 * Maps a bundle into memory and reads its index.
+	 *
+	 * @param file The bundle.
+	 * @return The opened bundle, to be closed when it is no longer used.
+	 * @throws IOException When the file could not be read or is not a bundle.
+	 */
+	public static ReportBundle open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new ReportBundle(channel, buffer, readIndex(buffer.duplicate(), file));
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static Map<String, Entry> readIndex(ByteBuffer buffer, Path file) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException(file + " is not a report bundle");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException(file + " has unsupported bundle version " + version);
+		}
+		int count = in.readInt();
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			long offset = in.readLong();
+			int storedLength = in.readInt();
+			int length = in.readInt();
+			byte compression = in.readByte();
+			byte[] hash = new byte[HASH_LENGTH];
+			in.readFully(hash);
+			if (offset < 0 || offset + storedLength > buffer.capacity()) {
+				throw new IOException(file + " is truncated, " + name + " is missing");
+			}
+			entries.put(name, new Entry((int) offset, storedLength, length, compression, hash));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return The names of all reports in the bundle, in the order they were written.
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * @param name The name of a report.
+	 * @return <code>true</code> if the bundle contains the report.
+	 */
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * @param name The name of a report.
+	 * @return The SHA-256 hash of the compiled report, or <code>null</code> if the bundle does not
+	 *         contain it.
+	 */
+	public byte[] getHash(String name) {
+		Entry entry = entries.get(name);
+		return entry == null ? null : entry.hash.clone();
+	}
+
+	/**
+	 * @param name The name of a report.
+	 * @return The hash of the report, or <code>null</code> if the bundle does not contain it.
+	 */
+	@Override
+	public Object getVersion(String name) {
+		Entry entry = entries.get(name);
+		return entry == null ? null : ByteBuffer.wrap(entry.hash).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param name The name of a report.
+	 * @return The serialized report, or <code>null</code> if the bundle does not contain it.
+	 */
+	@Override
+	public InputStream open(String name) {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer data = buffer.duplicate();
+		data.position(entry.offset);
+		data.limit(entry.offset + entry.storedLength);
+		InputStream in = new ByteBufferInputStream(data.slice());
+		if (entry.compression != DEFLATED) {
+			return in;
+		}
+		final Inflater inflater = new Inflater();
+		return new InflaterInputStream(in, inflater, 8192) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				inflater.end();
+			}
+		};
+	}
+
+	/**
+	 * @param name The name of a report.
+	 * @return The serialized report, or <code>null</code> if the bundle does not contain it.
+	 * @throws IOException When the report could not be read or its hash does not match.
+	 */
+	public byte[] getBytes(String name) throws IOException {
+		Entry entry = entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		byte[] bytes = new byte[entry.length];
+		try (DataInputStream in = new DataInputStream(open(name))) {
+			in.readFully(bytes);
+		}
+		if (!Arrays.equals(sha256(bytes), entry.hash)) {
+			throw new IOException("The content of " + name + " does not match its hash");
+		}
+		return bytes;
+	}
+
+	/**
+	 * Deserializes a report.
+	 *
+	 * @param name The name of a report.
+	 * @return The report, or <code>null</code> if the bundle does not contain it.
+	 * @throws JRException When the report could not be deserialized.
+	 */
+	public JasperReport load(String name) throws JRException {
+		InputStream in = open(name);
+		if (in == null) {
+			return null;
+		}
+		try {
+			return (JasperReport) JRLoader.loadObject(in);
+		}
+		finally {
+			try {
+				in.close();
+			}
+			catch (IOException e) {
+				// Reading from memory
+			}
+		}
+	}
+
+	/**
+	 * Closes the file of the bundle. The memory stays mapped until the bundle is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static byte[] sha256(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported", e);
+		}
+	}
+
+	private static final class Entry {
+
+		private final int offset;
+		private final int storedLength;
+		private final int length;
+		private final byte compression;
+		private final byte[] hash;
+
+		Entry(int offset, int storedLength, int length, byte compression, byte[] hash) {
+			this.offset = offset;
+			this.storedLength = storedLength;
+			this.length = length;
+			this.compression = compression;
+			this.hash = hash;
+		}
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package com.alexnederlof.jasperreport.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.util.JRLoader;
+
+/**
+ * Keeps deserialized reports in memory, so that a report is deserialized and its expression classes
+ * are defined once instead of every time it is filled. The cache holds at most a fixed number of
+ * reports and removes the least recently used ones first.
+ * <p>
+ * The cache can be used by any number of threads at the same time. When several threads ask for a
+ * report that is not in the cache, it is loaded once by the first of them and the others wait for
+ * it. A report that failed to load is not cached, so the next request tries again.
+ * <p>
+ * With a check interval, the cache asks its {@link ReportSource} whether a report changed when it
+ * was last checked longer than that interval ago, and loads a changed report again. This lets a
+ * service pick up reports that are deployed while it runs.
+ */
+public final class ReportCache {
+
+	private final ReportSource source;
+	private final int maximumSize;
+	private final long checkIntervalNanos;
+	private final Map<String, CachedReport> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong loadNanos = new AtomicLong();
+
+	/**
+	 * Creates a cache that never checks if a report changed.
+	 *
+	 * @param source Where the reports are read from.
+	 * @param maximumSize The maximum number of reports in the cache.
+	 */
+	public ReportCache(ReportSource source, int maximumSize) {
+		this(source, maximumSize, -1, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param source Where the reports are read from.
+	 * @param maximumSize The maximum number of reports in the cache.
+	 * @param checkInterval How long a report is used before the cache checks if it changed. 0 checks
+	 *            on every request, a negative interval never.
+	 * @param unit The unit of the interval.
+	 */
+	public ReportCache(ReportSource source, final int maximumSize, long checkInterval, TimeUnit unit) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("The maximum size must be at least 1, not " + maximumSize);
+		}
+		this.source = source;
+		this.maximumSize = maximumSize;
+		this.checkIntervalNanos = checkInterval < 0 ? -1 : unit.toNanos(checkInterval);
+		this.entries = new LinkedHashMap<String, CachedReport>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedReport> eldest) {
+				if (size() > maximumSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns a report, loading it if it is not in the cache yet.
+	 *
+	 * @param name The path of the compiled report relative to the <code>outputDirectory</code> of the
+	 *            plugin, like <code>invoices/Invoice.jasper</code>.
+	 * @return The report.
+	 * @throws JRException When there is no such report or it could not be loaded.
+	 */
+	public JasperReport get(String name) throws JRException {
+		CachedReport entry;
+		boolean load = false;
+		synchronized (entries) {
+			entry = entries.get(name);
+			if (entry == null) {
+				entry = new CachedReport(name);
+				entries.put(name, entry);
+				load = true;
+			}
+		}
+		if (load) {
+			misses.incrementAndGet();
+			entry.task.run();
+		}
+		else if (isChanged(entry)) {
+			invalidations.incrementAndGet();
+			remove(name, entry);
+			return get(name);
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return entry.await();
+	}
+
+	/**
+	 * Removes a report from the cache, so that it is loaded again when it is requested.
+	 *
+	 * @param name The name of the report.
+	 */
+	public void invalidate(String name) {
+		synchronized (entries) {
+			if (entries.remove(name) != null) {
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes all reports from the cache.
+	 */
+	public void invalidateAll() {
+		synchronized (entries) {
+			invalidations.addAndGet(entries.size());
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return The number of reports in the cache, including the ones that are being loaded.
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return The number of reports the cache holds at most.
+	 */
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * @return The statistics of the cache since it was created.
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(hits.get(), misses.get(), evictions.get(), invalidations.get(), loadNanos.get());
+	}
+
+	/**
+	 * Checks if a loaded report changed, when it was last checked longer than the check interval ago.
+	 * Reports that are still being loaded or failed to load are not checked.
+	 */
+	private boolean isChanged(CachedReport entry) throws JRException {
+		if (checkIntervalNanos < 0 || !entry.task.isDone()) {
+			return false;
+		}
+		long now = System.nanoTime();
+		if (now - entry.checked < checkIntervalNanos) {
+			return false;
+		}
+		entry.checked = now;
+		try {
+			Object version = source.getVersion(entry.name);
+			return version == null || !version.equals(entry.version);
+		}
+		catch (IOException e) {
+			throw new JRException("Could not check report " + entry.name + " in " + source, e);
+		}
+	}
+
+	private void remove(String name, CachedReport entry) {
+		synchronized (entries) {
+			if (entries.get(name) == entry) {
+				entries.remove(name);
+			}
+		}
+	}
+
+	private JasperReport load(String name, CachedReport entry) throws JRException, IOException {
+		long start = System.nanoTime();
+		try {
+			// Read before the report, a change in between is then found by the next check
+			entry.version = source.getVersion(name);
+			entry.checked = start;
+			InputStream in = source.open(name);
+			if (in == null) {
+				throw new JRException("There is no report " + name + " in " + source);
+			}
+			try {
+				return (JasperReport) JRLoader.loadObject(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		finally {
+			loadNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * A report in the cache. It is loaded by the thread that created the entry, other threads wait for
+	 * it.
+	 */
+	private final class CachedReport {
+
+		private final String name;
+		private final FutureTask<JasperReport> task;
+		private volatile Object version;
+		private volatile long checked;
+
+		CachedReport(final String name) {
+			this.name = name;
+			this.task = new FutureTask<>(new Callable<JasperReport>() {
+				@Override
+				public JasperReport call() throws Exception {
+					return load(name, CachedReport.this);
+				}
+			});
+		}
+
+		JasperReport await() throws JRException {
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						return task.get();
+					}
+					catch (InterruptedException e) {
+						// The report is loaded for other threads as well, so it is not cancelled
+						interrupted = true;
+					}
+				}
+			}
+			catch (ExecutionException e) {
+				remove(name, this);
+				Throwable cause = e.getCause();
+				if (cause instanceof JRException) {
+					throw (JRException) cause;
+				}
+				throw new JRException("Could not load report " + name + " from " + source, cause);
+			}
+			finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The number of requests that found a report in the cache or had to load it, and the number of
+	 * reports that were removed.
+	 */
+	public static final class Statistics {
+
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final long invalidations;
+		private final long loadNanos;
+
+		Statistics(long hits, long misses, long evictions, long invalidations, long loadNanos) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.invalidations = invalidations;
+			this.loadNanos = loadNanos;
+		}
+
+		/**
+		 * @return The number of requests for a report that was in the cache, or was being loaded by
+		 *         another thread.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return The number of requests that loaded a report.
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * @return The number of reports removed to make room for others.
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * @return The number of reports removed because they changed or were invalidated.
+		 */
+		public long getInvalidations() {
+			return invalidations;
+		}
+
+		/**
+		 * @return The total time spent loading reports, in nanoseconds.
+		 */
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+
+		/**
+		 * @return The share of requests that found their report in the cache, between 0 and 1.
+		 */
+		public double getHitRate() {
+			long requests = hits + misses;
+			return requests == 0 ? 0 : hits / (double) requests;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT,
+					"%d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations, %d ms loading", hits,
+					misses, getHitRate() * 100, evictions, invalidations, TimeUnit.NANOSECONDS.toMillis(loadNanos));
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.alexnederlof.jasperreport.runtime;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Where a {@link ReportCache} reads compiled reports from. Reports are named by their path relative
+ * to the <code>outputDirectory</code> of the plugin, with <code>/</code> as separator, like
+ * <code>invoices/Invoice.jasper</code>.
+ */
+public interface ReportSource {
+
+	/**
+	 * @param name The name of a report.
+	 * @return The serialized report, or <code>null</code> if there is no such report.
+	 * @throws IOException When the report could not be read.
+	 */
+	InputStream open(String name) throws IOException;
+
+	/**
+	 * @param name The name of a report.
+	 * @return A value that changes when the report changes, or <code>null</code> if there is no such
+	 *         report.
+	 * @throws IOException When the report could not be read.
+	 */
+	Object getVersion(String name) throws IOException;
+
+	/**
+	 * The compiled reports in a directory, usually the <code>outputDirectory</code> of the plugin or a
+	 * copy of it. A report is seen as changed when its size or modification time changes.
+	 */
+	final class Directory implements ReportSource {
+
+		private final Path directory;
+
+		/**
+		 * @param directory The directory with the compiled reports.
+		 */
+		public Directory(Path directory) {
+			this.directory = directory.toAbsolutePath().normalize();
+		}
+
+		@Override
+		public InputStream open(String name) throws IOException {
+			try {
+				return Files.newInputStream(resolve(name));
+			}
+			catch (NoSuchFileException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public Object getVersion(String name) throws IOException {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(resolve(name), BasicFileAttributes.class);
+				return attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+			}
+			catch (NoSuchFileException e) {
+				return null;
+			}
+		}
+
+		private Path resolve(String name) throws IOException {
+			Path file = directory.resolve(name).normalize();
+			if (!file.startsWith(directory)) {
+				throw new IOException(name + " is outside " + directory);
+			}
+			return file;
+		}
+
+		@Override
+		public String toString() {
+			return directory.toString();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Writes files through a temporary file that is moved in place, so that readers, including a build
+ * that was interrupted halfway, see either the old or the new file and never a partial one.
+ * <p>
+ * The temporary file is created like any other new file, so the umask decides its permissions. A
+ * file that is replaced keeps its permissions.
+ */
+final class AtomicFiles {
+
+	private AtomicFiles() {
+	}
+
+	/**
+	 * Writes the content to a file, unless the file already has exactly that content. An unchanged
+	 * file keeps its modification time, so that the steps that use it see nothing changed.
+	 *
+	 * @param file The file to write.
+	 * @param content The new content of the file.
+	 * @return <code>true</code> if the file was written, <code>false</code> if it was unchanged.
+	 * @throws IOException When the file could not be read or written.
+	 */
+	static boolean writeIfChanged(Path file, byte[] content) throws IOException {
+		if (Files.isRegularFile(file) && Files.size(file) == content.length
+				&& Arrays.equals(Files.readAllBytes(file), content)) {
+			return false;
+		}
+		Path temp = getTempFile(file);
+		try {
+			try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE)) {
+				out.write(content);
+			}
+			setPermissions(temp, file, null);
+			move(temp, file);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+		return true;
+	}
+
+	/**
+	 * Copies a file.
+	 *
+	 * @param from The file to copy.
+	 * @param to The file to create or replace.
+	 * @param permissions The permissions of the copy, or <code>null</code> to keep those of the
+	 *            file it replaces or, for a new file, those of the umask.
+	 * @throws IOException When the file could not be copied.
+	 */
+	static void copy(Path from, Path to, Set<PosixFilePermission> permissions) throws IOException {
+		Path temp = getTempFile(to);
+		try {
+			try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE)) {
+				Files.copy(from, out);
+			}
+			setPermissions(temp, to, permissions);
+			move(temp, to);
+		}
+		finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @return A file name next to the given file that no other writer uses.
+	 */
+	private static Path getTempFile(Path file) {
+		return file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+	}
+
+	/**
+	 * Gives the temporary file the given permissions or, without those, the permissions of the file
+	 * it replaces. A new file keeps the permissions it was created with. File systems without POSIX
+	 * permissions are left alone.
+	 */
+	private static void setPermissions(Path temp, Path file, Set<PosixFilePermission> permissions)
+			throws IOException {
+		if (!temp.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			return;
+		}
+		if (permissions == null && Files.isRegularFile(file)) {
+			permissions = Files.getPosixFilePermissions(file);
+		}
+		if (permissions != null) {
+			Files.setPosixFilePermissions(temp, permissions);
+		}
+	}
+
+	private static void move(Path from, Path to) throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A content addressed cache of compiled reports, that can be shared between builds, branches and
+ * machines through a common directory. An entry is keyed by the hash of the report design together
+ * with the Jasper version, the Jasper configuration and the classpath it was compiled with. Every
+ * entry is written to a temporary file first and then moved in place, so concurrent builds never
+ * see a partial entry. Entries that were least recently used are evicted when the cache grows
+ * beyond its maximum size. Entries are readable by everyone, since the directory may be shared by
+ * several accounts.
+ */
+class BuildCache {
+
+	private static final String ENTRY_EXT = ".jasper";
+	private static final Set<PosixFilePermission> ENTRY_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
+	private final File directory;
+	private final long maxSize;
+	private final String environment;
+	private final Log log;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * @param directory The cache directory.
+	 * @param maxSize The maximum size of the cache in bytes.
+	 * @param environment A fingerprint of everything besides the design that determines the
+	 *            compiled report.
+	 * @param log The logger.
+	 */
+	BuildCache(File directory, long maxSize, String environment, Log log) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.environment = environment;
+		this.log = log;
+	}
+
+	/**
+	 * @param source The report design.
+	 * @return The key of the compiled design in this cache.
+	 * @throws IOException When the design could not be read.
+	 */
+	String key(File source) throws IOException {
+		return Digests.sha256(environment, Digests.sha256(source));
+	}
+
+	/**
+	 * Copies a cached report to its destination, unless the destination
+	 * already is the same.
+	 *
+	 * @param key The key of the report.
+	 * @param destination The compiled report file to create.
+	 * @return <code>true</code> on a cache hit.
+	 */
+	boolean fetch(String key, File destination) {
+		File entry = entry(key);
+		try {
+			AtomicFiles.writeIfChanged(destination.toPath(), Files.readAllBytes(entry.toPath()));
+			// The modification time tells the eviction which entries were used recently
+			entry.setLastModified(System.currentTimeMillis());
+			hits.incrementAndGet();
+			return true;
+		}
+		catch (NoSuchFileException e) {
+			misses.incrementAndGet();
+			return false;
+		}
+		catch (IOException e) {
+			log.warn("Could not read " + entry + " from the build cache: " + e.getMessage());
+			misses.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a compiled report to the cache.
+	 *
+	 * @param key The key of the report.
+	 * @param compiled The compiled report.
+	 */
+	void store(String key, File compiled) {
+		File entry = entry(key);
+		try {
+			Files.createDirectories(entry.getParentFile().toPath());
+			AtomicFiles.copy(compiled.toPath(), entry.toPath(), ENTRY_PERMISSIONS);
+		}
+		catch (IOException e) {
+			log.warn("Could not write " + entry + " to the build cache: " + e.getMessage());
+		}
+	}
+
+	private File entry(String key) {
+		return new File(new File(directory, key.substring(0, 2)), key + ENTRY_EXT);
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is no larger than its maximum size.
+	 */
+	void evict() {
+		List<File> entries = new ArrayList<>();
+		File[] buckets = directory.listFiles();
+		if (buckets == null) {
+			return;
+		}
+		long size = 0;
+		for (File bucket : buckets) {
+			File[] files = bucket.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				if (file.getName().endsWith(ENTRY_EXT)) {
+					entries.add(file);
+					size += file.length();
+				}
+			}
+		}
+		if (size <= maxSize) {
+			return;
+		}
+
+		final Map<File, Long> lastUsed = new HashMap<>();
+		for (File file : entries) {
+			lastUsed.put(file, file.lastModified());
+		}
+		Collections.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(lastUsed.get(a), lastUsed.get(b));
+			}
+		});
+		int evicted = 0;
+		for (File file : entries) {
+			if (size <= maxSize) {
+				break;
+			}
+			long length = file.length();
+			if (file.delete()) {
+				size -= length;
+				evicted++;
+			}
+		}
+		log.info("Evicted " + evicted + " reports from the build cache");
+	}
+
+	void logStatistics() {
+		int total = hits.get() + misses.get();
+		if (total > 0) {
+			log.info("Build cache: " + hits.get() + " hits, " + misses.get() + " misses ("
+					+ Math.round(100.0 * hits.get() / total) + "% hit rate)");
+		}
+	}
+}
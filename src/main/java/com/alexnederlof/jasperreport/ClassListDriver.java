@@ -0,0 +1,62 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jasperreports.engine.DefaultJasperReportsContext;
+
+/**
+ * The program that the <code>class-list</code> goal runs in a new JVM: it fills and exports every
+ * given report once, so that the JVM loads the classes that filling those reports needs. Reports
+ * that fail are reported on the error stream, the others are still filled.
+ * <p>
+ * Arguments: the output directory, the export formats separated by commas, and the paths of the
+ * reports relative to the output directory.
+ */
+public final class ClassListDriver {
+
+	private ClassListDriver() {
+	}
+
+	/**
+	 * @param args The output directory, the formats and the reports.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ClassListDriver <outputDirectory> <formats> <report>...");
+			System.exit(2);
+		}
+		File outputDirectory = new File(args[0]);
+		List<String> formats = Arrays.asList(args[1].split(","));
+		long start = System.nanoTime();
+		int failed = 0;
+		for (int i = 2; i < args.length; i++) {
+			FillTask task = new FillTask(new File(outputDirectory, args[i]), args[i], null, outputDirectory,
+					DefaultJasperReportsContext.getInstance(), formats, 1);
+			try {
+				task.call();
+			}
+			catch (Exception e) {
+				failed++;
+				System.err.println("Could not fill " + args[i] + ": " + e);
+			}
+		}
+		System.out.println("Filled " + (args.length - 2 - failed) + " reports in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,296 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A persistent record of the reports that were compiled in a previous build. For every report
+ * design the manifest holds the hash of its contents, together with fingerprints of the Jasper
+ * configuration and the classpath used to compile it. A design only has to be compiled again when
+ * one of those inputs changed, regardless of file timestamps.
+ * <p>
+ * For reports whose expressions were compiled by the JDT compiler, the manifest also holds the
+ * classes on the classpath the expressions refer to, with their hashes, see
+ * {@link TypeDependencies}. Those reports are kept when the classpath changes, and only compiled
+ * again when one of their own classes changed.
+ * <p>
+ * With an {@link ExpressionClassWriter}, the manifest holds the expression classes written for
+ * every design, so that they can be reserved while the design is not compiled, and deleted when the
+ * design is. They are kept when the configuration changes, as the classes are still there.
+ */
+class CompilationManifest {
+
+	private static final String CONFIGURATION_KEY = "@configuration";
+	private static final String CLASSPATH_KEY = "@classpath";
+	private static final String SOURCE_PREFIX = "source:";
+	private static final String TYPES_PREFIX = "types:";
+	private static final String CLASSES_PREFIX = "classes:";
+
+	private final File file;
+	private final Properties entries = new Properties();
+	private boolean modified;
+
+	private CompilationManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param file The manifest file.
+	 * @return A manifest without any recorded sources, that is saved to the
+	 *         given file.
+	 */
+	static CompilationManifest empty(File file) {
+		return new CompilationManifest(file);
+	}
+
+	/**
+	 * @param file The manifest file. It does not have to exist yet.
+	 * @return The manifest read from the file, or an empty one if there is none.
+	 * @throws IOException When an existing manifest could not be read.
+	 */
+	static CompilationManifest load(File file) throws IOException {
+		CompilationManifest manifest = new CompilationManifest(file);
+		if (file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				manifest.entries.load(in);
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Makes sure the manifest describes a build with the given configuration. If it describes a
+	 * build with another configuration, all recorded sources are forgotten, except for their
+	 * expression classes.
+	 *
+	 * @param configuration The fingerprint of the Jasper configuration.
+	 * @return <code>true</code> if the recorded sources could be kept.
+	 */
+	synchronized boolean useConfiguration(String configuration) {
+		if (configuration.equals(entries.getProperty(CONFIGURATION_KEY))) {
+			return true;
+		}
+		for (String key : entries.stringPropertyNames()) {
+			if (!key.startsWith(CLASSES_PREFIX)) {
+				entries.remove(key);
+			}
+		}
+		entries.setProperty(CONFIGURATION_KEY, configuration);
+		modified = true;
+		return false;
+	}
+
+	/**
+	 * Makes sure the manifest describes a build with the given classpath. If it describes a build
+	 * with another classpath, the sources without recorded classes are forgotten.
+	 *
+	 * @param classpath The fingerprint of the compile classpath.
+	 * @return <code>true</code> if the classpath did not change.
+	 */
+	synchronized boolean useClasspath(String classpath) {
+		if (classpath.equals(entries.getProperty(CLASSPATH_KEY))) {
+			return true;
+		}
+		List<String> untracked = new ArrayList<>();
+		for (String key : entries.stringPropertyNames()) {
+			if (key.startsWith(SOURCE_PREFIX)
+					&& !entries.containsKey(TYPES_PREFIX + key.substring(SOURCE_PREFIX.length()))) {
+				untracked.add(key);
+			}
+		}
+		for (String key : untracked) {
+			entries.remove(key);
+		}
+		entries.setProperty(CLASSPATH_KEY, classpath);
+		modified = true;
+		return false;
+	}
+
+	/**
+	 * @param path The path of the source, relative to the source directory.
+	 * @param hash The current hash of the source.
+	 * @return <code>true</code> if the source was compiled with exactly this content.
+	 */
+	synchronized boolean isUpToDate(String path, String hash) {
+		return hash.equals(entries.getProperty(SOURCE_PREFIX + path));
+	}
+
+	/**
+	 * @param path The path of the source, relative to the source directory.
+	 * @param hash The hash of the source that was compiled.
+	 * @param types The classes the compiled expressions refer to with their hashes, or
+	 *            <code>null</code> if they are not known.
+	 * @param classes The expression classes written for the source, or <code>null</code> if they
+	 *            were not written as class files.
+	 * @return The expression classes that were recorded for the source before, but were not written
+	 *         this time.
+	 */
+	synchronized List<String> update(String path, String hash, Map<String, String> types, List<String> classes) {
+		List<String> obsolete = getClasses(path);
+		if (classes == null || classes.isEmpty()) {
+			entries.remove(CLASSES_PREFIX + path);
+		}
+		else {
+			obsolete.removeAll(classes);
+			entries.setProperty(CLASSES_PREFIX + path, join(classes));
+		}
+		entries.setProperty(SOURCE_PREFIX + path, hash);
+		if (types == null) {
+			entries.remove(TYPES_PREFIX + path);
+		}
+		else {
+			StringBuilder value = new StringBuilder();
+			for (Map.Entry<String, String> type : types.entrySet()) {
+				if (value.length() > 0) {
+					value.append(',');
+				}
+				value.append(type.getKey()).append('=').append(type.getValue());
+			}
+			entries.setProperty(TYPES_PREFIX + path, value.toString());
+		}
+		modified = true;
+		return obsolete;
+	}
+
+	/**
+	 * @param path The path of the source, relative to the source directory.
+	 * @return The classes the compiled expressions of the source refer to with their hashes, or
+	 *         <code>null</code> if they are not known.
+	 */
+	synchronized Map<String, String> getTypes(String path) {
+		String value = entries.getProperty(TYPES_PREFIX + path);
+		if (value == null) {
+			return null;
+		}
+		Map<String, String> types = new TreeMap<>();
+		for (String type : value.split(",")) {
+			int separator = type.lastIndexOf('=');
+			if (separator > 0) {
+				types.put(type.substring(0, separator), type.substring(separator + 1));
+			}
+		}
+		return types;
+	}
+
+	/**
+	 * @param path The path of the source, relative to the source directory.
+	 * @return The expression classes written for the source, empty if there are none.
+	 */
+	synchronized List<String> getClasses(String path) {
+		List<String> classes = new ArrayList<>();
+		String value = entries.getProperty(CLASSES_PREFIX + path);
+		if (value != null) {
+			for (String className : value.split(",")) {
+				if (!className.isEmpty()) {
+					classes.add(className);
+				}
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * Forgets that a source was compiled, so that it is compiled again. Its expression classes are
+	 * kept, as their files are still there.
+	 *
+	 * @param path The path of the source, relative to the source directory.
+	 */
+	synchronized void remove(String path) {
+		boolean removed = entries.remove(SOURCE_PREFIX + path) != null;
+		removed |= entries.remove(TYPES_PREFIX + path) != null;
+		if (removed) {
+			modified = true;
+		}
+	}
+
+	/**
+	 * Forgets a source completely, for example because it was deleted.
+	 *
+	 * @param path The path of the source, relative to the source directory.
+	 * @return The expression classes that were written for the source.
+	 */
+	synchronized List<String> forget(String path) {
+		List<String> classes = getClasses(path);
+		remove(path);
+		if (entries.remove(CLASSES_PREFIX + path) != null) {
+			modified = true;
+		}
+		return classes;
+	}
+
+	/**
+	 * Forgets all sources that are not in the given collection, for example because they were
+	 * deleted.
+	 *
+	 * @param paths The paths of all current sources, relative to the source directory.
+	 * @return The expression classes that were written for the forgotten sources.
+	 */
+	synchronized List<String> retainAll(Collection<String> paths) {
+		Set<String> obsolete = new TreeSet<>();
+		for (String key : entries.stringPropertyNames()) {
+			for (String prefix : new String[] { SOURCE_PREFIX, TYPES_PREFIX, CLASSES_PREFIX }) {
+				if (key.startsWith(prefix) && !paths.contains(key.substring(prefix.length()))) {
+					obsolete.add(key.substring(prefix.length()));
+				}
+			}
+		}
+		List<String> classes = new ArrayList<>();
+		for (String path : obsolete) {
+			classes.addAll(forget(path));
+		}
+		return classes;
+	}
+
+	private static String join(List<String> values) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			if (joined.length() > 0) {
+				joined.append(',');
+			}
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Writes the manifest if it was changed since it was loaded.
+	 *
+	 * @throws IOException When the manifest could not be written.
+	 */
+	synchronized void save() throws IOException {
+		if (!modified) {
+			return;
+		}
+		File parent = file.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create directory " + parent);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entries.store(out, "Jasper reports compilation manifest");
+		// An interrupted build leaves the previous manifest, never a partial one
+		AtomicFiles.writeIfChanged(file.getAbsoluteFile().toPath(), out.toByteArray());
+		modified = false;
+	}
+}
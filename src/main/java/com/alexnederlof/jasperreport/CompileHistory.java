@@ -0,0 +1,191 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The compile times of reports in previous builds, used to estimate how long a report takes to
+ * compile, and the bytes their compilation allocated, used to estimate how much memory it needs.
+ * Reports that were never compiled before are estimated from their file size.
+ */
+class CompileHistory {
+
+	/**
+	 * The bytes allocated per byte of source when compiling a report, assumed when no report was
+	 * measured yet.
+	 */
+	static final long FOOTPRINT_PER_BYTE = 200;
+
+	private final File file;
+	private final Properties timings = new Properties();
+	private long totalMillis;
+	private long totalSize;
+	private long totalBytes;
+	private long totalMeasuredSize;
+	private boolean modified;
+
+	private CompileHistory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param file The history file. It does not have to exist yet.
+	 * @return The history read from the file, or an empty one if there is none.
+	 * @throws IOException When an existing history could not be read.
+	 */
+	static CompileHistory load(File file) throws IOException {
+		CompileHistory history = new CompileHistory(file);
+		if (file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				history.timings.load(in);
+			}
+			for (String name : history.timings.stringPropertyNames()) {
+				history.addTotals(parse(history.timings.getProperty(name)), 1);
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * @param file The history file.
+	 * @return A history without any timings, that is saved to the given file.
+	 */
+	static CompileHistory empty(File file) {
+		return new CompileHistory(file);
+	}
+
+	/**
+	 * @param path The path of the source, relative to the source directory.
+	 * @param size The size of the source in bytes.
+	 * @return The expected compile time in milliseconds. For a report without history this is the
+	 *         size times the average time per byte of the known reports, or just the size if no
+	 *         report is known.
+	 */
+	synchronized long estimate(String path, long size) {
+		long[] known = parse(timings.getProperty(path));
+		if (known != null) {
+			return known[0];
+		}
+		if (totalMillis == 0 || totalSize == 0) {
+			return size;
+		}
+		return Math.max(1, size * totalMillis / totalSize);
+	}
+
+	/**
+	 * @param path The path of the source, relative to the source directory.
+	 * @param size The size of the source in bytes.
+	 * @return The expected memory in bytes needed to compile the source: the bytes its last
+	 *         compilation allocated, or for a report that was not measured yet the size times the
+	 *         average bytes per source byte of the measured reports, or of
+	 *         {@link #FOOTPRINT_PER_BYTE} if no report was measured.
+	 */
+	synchronized long estimateFootprint(String path, long size) {
+		long[] known = parse(timings.getProperty(path));
+		if (known != null && known.length > 2) {
+			return known[2];
+		}
+		if (totalBytes == 0 || totalMeasuredSize == 0) {
+			return size * FOOTPRINT_PER_BYTE;
+		}
+		// In floating point, since the product of two large longs overflows
+		return Math.max(1, (long) ((double) size * totalBytes / totalMeasuredSize));
+	}
+
+	/**
+	 * @param path The path of the source, relative to the source directory.
+	 * @param size The size of the source in bytes.
+	 * @param millis The time it took to compile the source.
+	 * @param allocatedBytes The bytes allocated while compiling the source, or <code>null</code> if
+	 *            they were not measured.
+	 */
+	synchronized void record(String path, long size, long millis, Long allocatedBytes) {
+		addTotals(parse(timings.getProperty(path)), -1);
+		long[] timing = allocatedBytes == null ? new long[] { millis, size }
+				: new long[] { millis, size, allocatedBytes };
+		timings.setProperty(path, format(timing));
+		addTotals(timing, 1);
+		modified = true;
+	}
+
+	private void addTotals(long[] timing, int sign) {
+		if (timing != null) {
+			totalMillis += sign * timing[0];
+			totalSize += sign * timing[1];
+			if (timing.length > 2) {
+				totalBytes += sign * timing[2];
+				totalMeasuredSize += sign * timing[1];
+			}
+		}
+	}
+
+	private static String format(long[] timing) {
+		StringBuilder value = new StringBuilder();
+		for (long part : timing) {
+			if (value.length() > 0) {
+				value.append(':');
+			}
+			value.append(part);
+		}
+		return value.toString();
+	}
+
+	/**
+	 * @return The time, size and, when measured, the allocated bytes of a
+	 *         <code>millis:size[:bytes]</code> value, or <code>null</code> if it is not valid.
+	 */
+	private static long[] parse(String timing) {
+		if (timing == null) {
+			return null;
+		}
+		String[] parts = timing.split(":");
+		if (parts.length < 2 || parts.length > 3) {
+			return null;
+		}
+		try {
+			long[] values = new long[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				values[i] = Long.parseLong(parts[i]);
+			}
+			return values;
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the history if it was changed since it was loaded.
+	 *
+	 * @throws IOException When the history could not be written.
+	 */
+	synchronized void save() throws IOException {
+		if (!modified) {
+			return;
+		}
+		File parent = file.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create directory " + parent);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		timings.store(out, "Jasper reports compile times and allocated bytes");
+		// An interrupted build leaves the previous history, never a partial one
+		AtomicFiles.writeIfChanged(file.getAbsoluteFile().toPath(), out.toByteArray());
+		modified = false;
+	}
+}
@@ -0,0 +1,263 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * The time every report spent in each phase of its compilation, the size of the compiled report and
+ * the thread that compiled it. The phases are also recorded as JFR events, see
+ * {@link CompilePhaseEvents}.
+ */
+class CompileMetrics {
+
+	/**
+	 * The phases of compiling a report.
+	 */
+	enum Phase {
+		/** Loading the design, including the XML validation. */
+		PARSE("parse"),
+		/** The whole compilation of the design, including the next two phases. */
+		COMPILE("compile"),
+		/** Generating the source code of the expressions. */
+		GENERATE("generate"),
+		/** Compiling the expressions, including waiting for an expression batch. */
+		JAVA_COMPILE("javaCompile"),
+		/** Serializing the compiled report. */
+		SERIALIZE("serialize"),
+		/** Writing the compiled report. */
+		WRITE("write");
+
+		private final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+	}
+
+	private final List<Report> reports = new ArrayList<>();
+
+	/**
+	 * @param sourceName The path of a source, relative to the source directory.
+	 * @return The metrics of the report, to be filled by the thread that compiles it.
+	 */
+	synchronized Report add(String sourceName) {
+		Report report = new Report(sourceName);
+		reports.add(report);
+		return report;
+	}
+
+	private synchronized List<Report> getReports() {
+		return new ArrayList<>(reports);
+	}
+
+	/**
+	 * @return The compile times in milliseconds of the reports that were compiled successfully, named
+	 *         like <code>compile/invoices/Invoice.jrxml</code>.
+	 */
+	Map<String, Double> getCompileMillis() {
+		Map<String, Double> timings = new TreeMap<>();
+		for (Report report : getReports()) {
+			if (report.end != 0 && !report.restored && !report.failed) {
+				timings.put("compile/" + report.sourceName.replace(File.separatorChar, '/'), millis(report.getTotal()));
+			}
+		}
+		return timings;
+	}
+
+	/**
+	 * Logs the reports that took longest to compile.
+	 *
+	 * @param log The logger.
+	 * @param count The maximum number of reports to log.
+	 */
+	void logSlowest(Log log, int count) {
+		List<Report> compiled = new ArrayList<>();
+		for (Report report : getReports()) {
+			if (report.end != 0 && !report.restored) {
+				compiled.add(report);
+			}
+		}
+		if (count <= 0 || compiled.isEmpty()) {
+			return;
+		}
+		Collections.sort(compiled, new Comparator<Report>() {
+			@Override
+			public int compare(Report a, Report b) {
+				return Long.compare(b.getTotal(), a.getTotal());
+			}
+		});
+		List<Report> slowest = compiled.subList(0, Math.min(count, compiled.size()));
+		log.info("Slowest " + slowest.size() + " of " + compiled.size() + " compiled reports (ms):");
+		log.info(String.format(Locale.ROOT, "%9s %8s %8s %8s %8s %9s %8s %10s  %s", "total", "parse", "verify",
+				"generate", "javac", "serialize", "write", "bytes", "report"));
+		for (Report report : slowest) {
+			log.info(String.format(Locale.ROOT, "%9.1f %8.1f %8.1f %8.1f %8.1f %9.1f %8.1f %10d  %s",
+					millis(report.getTotal()), millis(report.nanos(Phase.PARSE)), millis(report.getVerify()),
+					millis(report.nanos(Phase.GENERATE)), millis(report.nanos(Phase.JAVA_COMPILE)),
+					millis(report.nanos(Phase.SERIALIZE)), millis(report.nanos(Phase.WRITE)), report.bytes,
+					report.sourceName));
+		}
+	}
+
+	/**
+	 * Writes the metrics of all reports as JSON.
+	 *
+	 * @param file The file to write.
+	 * @param threads The number of threads the reports were compiled with.
+	 * @throws IOException When the file could not be written.
+	 */
+	void write(File file, int threads) throws IOException {
+		List<Report> all = getReports();
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (Report report : all) {
+			if (report.end != 0) {
+				first = Math.min(first, report.start);
+				last = Math.max(last, report.end);
+			}
+		}
+		Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+		try (Writer out = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+			out.write("{\n  \"threads\": " + threads + ",\n  \"wallMillis\": "
+					+ format(first <= last ? millis(last - first) : 0) + ",\n  \"reports\": [");
+			for (int i = 0; i < all.size(); i++) {
+				Report report = all.get(i);
+				out.write(i == 0 ? "\n" : ",\n");
+				out.write("    {\"source\": " + quote(report.sourceName) + ", \"thread\": " + quote(report.thread)
+						+ ", \"restored\": " + report.restored + ", \"failed\": " + report.failed
+						+ ", \"bytes\": " + report.bytes + ", \"totalMillis\": " + format(millis(report.getTotal())));
+				for (Phase phase : Phase.values()) {
+					out.write(", \"" + phase.label + "Millis\": " + format(millis(report.nanos(phase))));
+				}
+				out.write(", \"verifyMillis\": " + format(millis(report.getVerify())) + "}");
+			}
+			out.write("\n  ]\n}\n");
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	private static String format(double millis) {
+		return String.format(Locale.ROOT, "%.3f", millis);
+	}
+
+	private static String quote(String value) {
+		if (value == null) {
+			return "null";
+		}
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			}
+			else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * The metrics of one report. It is filled by the thread that compiles the report, one phase at a
+	 * time.
+	 */
+	static final class Report {
+
+		private final String sourceName;
+		private final long[] nanos = new long[Phase.values().length];
+		private final long[] started = new long[Phase.values().length];
+		private final Object[] events = new Object[Phase.values().length];
+		private volatile String thread;
+		private volatile long start;
+		private volatile long end;
+		private volatile long bytes;
+		private volatile boolean restored;
+		private volatile boolean failed;
+
+		private Report(String sourceName) {
+			this.sourceName = sourceName;
+		}
+
+		void start() {
+			thread = Thread.currentThread().getName();
+			start = System.nanoTime();
+		}
+
+		void end(boolean succeeded) {
+			failed = !succeeded;
+			end = System.nanoTime();
+		}
+
+		void begin(Phase phase) {
+			events[phase.ordinal()] = CompilePhaseEvents.begin(sourceName, phase.label);
+			started[phase.ordinal()] = System.nanoTime();
+		}
+
+		void end(Phase phase) {
+			nanos[phase.ordinal()] += System.nanoTime() - started[phase.ordinal()];
+			CompilePhaseEvents.end(events[phase.ordinal()]);
+			events[phase.ordinal()] = null;
+		}
+
+		/**
+		 * Adds time spent in a phase outside this JVM, like in a worker JVM.
+		 */
+		void add(Phase phase, long nanos) {
+			this.nanos[phase.ordinal()] += nanos;
+		}
+
+		void setBytes(long bytes) {
+			this.bytes = bytes;
+		}
+
+		void setRestored() {
+			restored = true;
+		}
+
+		long nanos(Phase phase) {
+			return nanos[phase.ordinal()];
+		}
+
+		long getTotal() {
+			return end == 0 ? 0 : end - start;
+		}
+
+		/**
+		 * @return The time the compiler spent outside generating and compiling the expressions,
+		 *         mostly verifying the design.
+		 */
+		long getVerify() {
+			return Math.max(0, nanos(Phase.COMPILE) - nanos(Phase.GENERATE) - nanos(Phase.JAVA_COMPILE));
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the phases of compiling a report as JFR events named
+ * <code>com.alexnederlof.jasperreport.CompilePhase</code>, so that they show up in a flight
+ * recording of the build. The events are defined through the JFR API at runtime, because the plugin
+ * also runs on JVMs without JFR. On such a JVM no events are recorded. Defining the events takes a
+ * while, so that only happens once the flight recorder is running. Until then, whether it runs is
+ * looked up at most once per second, so compile threads do not wait for each other on every phase.
+ */
+final class CompilePhaseEvents {
+
+	private static final Method IS_RECORDER_INITIALIZED = findIsRecorderInitialized();
+	private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static volatile CompilePhaseEvents instance;
+	private static volatile boolean created;
+	private static volatile long nextCheck = System.nanoTime();
+
+	private final Object factory;
+	private final Method newEvent;
+	private final Method set;
+	private final Method begin;
+	private final Method end;
+	private final Method shouldCommit;
+	private final Method commit;
+
+	private CompilePhaseEvents(Object factory, Class<?> factoryClass, Class<?> eventClass)
+			throws NoSuchMethodException {
+		this.factory = factory;
+		newEvent = factoryClass.getMethod("newEvent");
+		set = eventClass.getMethod("set", int.class, Object.class);
+		begin = eventClass.getMethod("begin");
+		end = eventClass.getMethod("end");
+		shouldCommit = eventClass.getMethod("shouldCommit");
+		commit = eventClass.getMethod("commit");
+	}
+
+	private static Method findIsRecorderInitialized() {
+		try {
+			return Class.forName("jdk.jfr.FlightRecorder").getMethod("isInitialized");
+		}
+		catch (Exception | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The events, or <code>null</code> if the flight recorder is not running.
+	 */
+	private static CompilePhaseEvents getInstance() {
+		CompilePhaseEvents events = instance;
+		if (events != null || created || IS_RECORDER_INITIALIZED == null || System.nanoTime() - nextCheck < 0) {
+			return events;
+		}
+		synchronized (CompilePhaseEvents.class) {
+			if (!created) {
+				nextCheck = System.nanoTime() + CHECK_INTERVAL;
+				try {
+					if (!(Boolean) IS_RECORDER_INITIALIZED.invoke(null)) {
+						return null;
+					}
+				}
+				catch (ReflectiveOperationException e) {
+					return null;
+				}
+				instance = create();
+				created = true;
+			}
+			return instance;
+		}
+	}
+
+	private static CompilePhaseEvents create() {
+		try {
+			Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+			Constructor<?> value = valueClass.getConstructor(Class.class, String.class);
+			List<Object> annotations = Arrays.asList(
+					annotation.newInstance(Class.forName("jdk.jfr.Name"), "com.alexnederlof.jasperreport.CompilePhase"),
+					annotation.newInstance(Class.forName("jdk.jfr.Label"), "Report Compile Phase"),
+					annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "JasperReports", "Compiler" }));
+			List<Object> fields = Arrays.asList(value.newInstance(String.class, "report"),
+					value.newInstance(String.class, "phase"));
+			Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			return new CompilePhaseEvents(factory, factoryClass, Class.forName("jdk.jfr.Event"));
+		}
+		catch (Exception | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Starts an event.
+	 *
+	 * @param report The path of the source of the report.
+	 * @param phase The phase of the compilation.
+	 * @return The event to {@link #end(Object) end}, or <code>null</code> when there is no JFR.
+	 */
+	static Object begin(String report, String phase) {
+		CompilePhaseEvents events = getInstance();
+		if (events == null) {
+			return null;
+		}
+		try {
+			Object event = events.newEvent.invoke(events.factory);
+			events.set.invoke(event, 0, report);
+			events.set.invoke(event, 1, phase);
+			events.begin.invoke(event);
+			return event;
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Ends an event and commits it if it is recorded.
+	 *
+	 * @param event An event that was started, or <code>null</code>.
+	 */
+	static void end(Object event) {
+		if (event == null) {
+			return;
+		}
+		CompilePhaseEvents events = instance;
+		try {
+			events.end.invoke(event);
+			if ((Boolean) events.shouldCommit.invoke(event)) {
+				events.commit.invoke(event);
+			}
+		}
+		catch (ReflectiveOperationException e) {
+			// The event is lost, the compilation is not affected
+		}
+	}
+}
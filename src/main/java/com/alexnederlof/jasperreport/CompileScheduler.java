@@ -0,0 +1,418 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.sf.jasperreports.engine.JRException;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Runs {@link CompileTask}s on a pool of threads. A report is only compiled after the subreports it
+ * embeds have been compiled, so independent branches of the report graph compile in parallel while
+ * a master never gets ahead of its subreports.
+ * <p>
+ * Of the reports that are ready to compile, the one with the longest remaining path is started
+ * first: its own estimated cost plus that of the longest chain of masters waiting for it. Starting
+ * the expensive reports first keeps the threads busy until the end, instead of leaving one large
+ * report to compile on its own.
+ * <p>
+ * When a heap budget is set, a report is only started while the estimated footprints of the
+ * running reports and its own fit in the budget. If the report with the highest priority does not
+ * fit, a smaller ready report that does fit takes the free thread. A report is always started when
+ * nothing else runs, so a report larger than the budget compiles on its own.
+ * <p>
+ * Results are handled in the order the tasks complete. When a maximum number of errors is set, the
+ * scheduler stops as soon as that many reports failed: reports that did not start yet are dropped
+ * and running ones are interrupted.
+ */
+class CompileScheduler {
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final int parallelism;
+	private final Log log;
+	private final Map<CompileTask, Set<CompileTask>> subreports = new LinkedHashMap<>();
+	private final Map<CompileTask, Set<CompileTask>> dependents = new HashMap<>();
+	private final Map<CompileTask, Long> costs = new HashMap<>();
+	private final Map<CompileTask, Long> durations = new ConcurrentHashMap<>();
+	private final Map<CompileTask, Long> footprints = new HashMap<>();
+	private final Map<CompileTask, Long> allocations = new ConcurrentHashMap<>();
+	private long heapBudget;
+	private int maxErrors;
+	private Executor executor;
+
+	/**
+	 * @param parallelism The number of reports that are compiled at the same time.
+	 * @param log The logger.
+	 */
+	CompileScheduler(int parallelism, Log log) {
+		this.parallelism = parallelism;
+		this.log = log;
+	}
+
+	void add(CompileTask task) {
+		if (!subreports.containsKey(task)) {
+			subreports.put(task, new LinkedHashSet<CompileTask>());
+			dependents.put(task, new LinkedHashSet<CompileTask>());
+		}
+	}
+
+	/**
+	 * @param task A task.
+	 * @param cost The estimated time it takes to run the task, in any unit, as long as it is the
+	 *            same for all tasks.
+	 */
+	void setCost(CompileTask task, long cost) {
+		add(task);
+		costs.put(task, cost);
+	}
+
+	/**
+	 * @param task A task.
+	 * @param footprint The estimated memory the task needs while it runs, in bytes.
+	 */
+	void setFootprint(CompileTask task, long footprint) {
+		add(task);
+		footprints.put(task, footprint);
+	}
+
+	/**
+	 * @param heapBudget The memory in bytes that the running tasks may use together, or 0 to only
+	 *            limit the number of running tasks.
+	 */
+	void setHeapBudget(long heapBudget) {
+		this.heapBudget = heapBudget;
+	}
+
+	/**
+	 * @param maxErrors The number of failed reports after which the remaining reports are
+	 *            cancelled, or 0 to always compile all reports.
+	 */
+	void setMaxErrors(int maxErrors) {
+		this.maxErrors = maxErrors;
+	}
+
+	/**
+	 * @param executor The executor to run the tasks on, or <code>null</code> to run them on a pool of
+	 *            <code>parallelism</code> threads of its own. At most <code>parallelism</code> tasks
+	 *            are submitted to it at the same time.
+	 */
+	void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @param task A task that finished.
+	 * @return The time it took to run the task in milliseconds, or <code>null</code> if it never
+	 *         ran.
+	 */
+	Long getDuration(CompileTask task) {
+		return durations.get(task);
+	}
+
+	/**
+	 * @param task A task that finished.
+	 * @return The bytes allocated by the thread that ran the task while running it, or
+	 *         <code>null</code> if it never ran or the JVM does not measure allocations.
+	 */
+	Long getAllocatedBytes(CompileTask task) {
+		return allocations.get(task);
+	}
+
+	/**
+	 * @param master A task that may only start when the other task finished.
+	 * @param subreport The task that compiles a subreport of the master.
+	 */
+	void addDependency(CompileTask master, CompileTask subreport) {
+		add(master);
+		add(subreport);
+		subreports.get(master).add(subreport);
+		dependents.get(subreport).add(master);
+	}
+
+	/**
+	 * Runs all tasks and waits for them to finish.
+	 *
+	 * @return The exception of every task that failed. Masters of a failed subreport are not
+	 *         compiled and fail with a {@link JRException}, as do the reports that were cancelled
+	 *         because the maximum number of errors was reached.
+	 * @throws InterruptedException When interrupted while waiting for the tasks.
+	 */
+	Map<CompileTask, Exception> run() throws InterruptedException {
+		Map<CompileTask, Exception> failures = new LinkedHashMap<>();
+		Map<CompileTask, Integer> unfinishedSubreports = new HashMap<>();
+		Set<CompileTask> waiting = new LinkedHashSet<>();
+		final Map<CompileTask, Long> priorities = new HashMap<>();
+		for (CompileTask task : subreports.keySet()) {
+			priority(task, priorities, new HashSet<CompileTask>());
+		}
+		Queue<CompileTask> ready = new PriorityQueue<>(Math.max(1, subreports.size()), new Comparator<CompileTask>() {
+			@Override
+			public int compare(CompileTask a, CompileTask b) {
+				return Long.compare(priorities.get(b), priorities.get(a));
+			}
+		});
+		for (Map.Entry<CompileTask, Set<CompileTask>> entry : subreports.entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				ready.add(entry.getKey());
+			}
+			else {
+				unfinishedSubreports.put(entry.getKey(), entry.getValue().size());
+				waiting.add(entry.getKey());
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		ExecutorService pool = executor == null ? Executors.newFixedThreadPool(parallelism) : null;
+		Map<Future<Void>, CompileTask> running = new HashMap<>();
+		try {
+			CompletionService<Void> completionService = new ExecutorCompletionService<>(pool == null ? executor
+					: pool);
+			int errors = 0;
+			while (!ready.isEmpty() || !waiting.isEmpty() || !running.isEmpty()) {
+				while (running.size() < parallelism && !ready.isEmpty()) {
+					CompileTask task = admit(ready, priorities, running.values());
+					if (task == null) {
+						break;
+					}
+					running.put(completionService.submit(timed(task)), task);
+				}
+				if (running.isEmpty()) {
+					// Only reports in a subreport cycle are left, break it.
+					CompileTask task = waiting.iterator().next();
+					log.warn("Circular subreport reference, compiling " + task.getSourceName()
+							+ " before its subreports");
+					waiting.remove(task);
+					ready.add(task);
+					continue;
+				}
+
+				Future<Void> done = completionService.take();
+				CompileTask task = running.remove(done);
+				try {
+					done.get();
+					for (CompileTask dependent : dependents.get(task)) {
+						Integer unfinished = unfinishedSubreports.get(dependent);
+						if (unfinished != null && waiting.contains(dependent)) {
+							unfinishedSubreports.put(dependent, unfinished - 1);
+							if (unfinished == 1) {
+								waiting.remove(dependent);
+								ready.add(dependent);
+							}
+						}
+					}
+				}
+				catch (ExecutionException e) {
+					failures.put(task, asException(e.getCause()));
+					skipDependents(task, waiting, failures);
+					errors++;
+					if (maxErrors > 0 && errors >= maxErrors) {
+						cancel(running, ready, waiting, failures, errors);
+					}
+				}
+			}
+		}
+		finally {
+			for (Future<Void> future : running.keySet()) {
+				future.cancel(true);
+			}
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+		logEfficiency(System.currentTimeMillis() - start);
+		return failures;
+	}
+
+	/**
+	 * Takes the ready task with the highest priority whose footprint fits in what is left of the heap
+	 * budget.
+	 *
+	 * @return The task to start, or <code>null</code> if no ready task fits.
+	 */
+	private CompileTask admit(Queue<CompileTask> ready, Map<CompileTask, Long> priorities,
+			Collection<CompileTask> running) {
+		if (heapBudget <= 0 || running.isEmpty()) {
+			return ready.poll();
+		}
+		long available = heapBudget;
+		for (CompileTask task : running) {
+			available -= footprint(task);
+		}
+		if (footprint(ready.peek()) <= available) {
+			return ready.poll();
+		}
+		CompileTask best = null;
+		for (CompileTask task : ready) {
+			if (footprint(task) <= available && (best == null || priorities.get(task) > priorities.get(best))) {
+				best = task;
+			}
+		}
+		if (best != null) {
+			ready.remove(best);
+			if (log.isDebugEnabled()) {
+				log.debug("Starting " + best.getSourceName() + " before " + ready.peek().getSourceName()
+						+ ", which does not fit in the heap budget yet");
+			}
+		}
+		return best;
+	}
+
+	private long footprint(CompileTask task) {
+		Long footprint = footprints.get(task);
+		return footprint == null ? 0 : footprint;
+	}
+
+	/**
+	 * Computes the priority of a task: its own cost plus the highest priority of its masters.
+	 */
+	private long priority(CompileTask task, Map<CompileTask, Long> priorities, Set<CompileTask> visiting) {
+		Long known = priorities.get(task);
+		if (known != null) {
+			return known;
+		}
+		long highest = 0;
+		if (visiting.add(task)) {
+			for (CompileTask dependent : dependents.get(task)) {
+				highest = Math.max(highest, priority(dependent, priorities, visiting));
+			}
+			visiting.remove(task);
+		}
+		Long cost = costs.get(task);
+		long priority = (cost == null ? 0 : cost) + highest;
+		priorities.put(task, priority);
+		return priority;
+	}
+
+	private Callable<Void> timed(final CompileTask task) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				long start = System.currentTimeMillis();
+				long allocatedBefore = allocatedBytes();
+				try {
+					return task.call();
+				}
+				finally {
+					durations.put(task, System.currentTimeMillis() - start);
+					if (allocatedBefore >= 0) {
+						allocations.put(task, allocatedBytes() - allocatedBefore);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return The bytes allocated by the current thread so far, or -1 if the JVM does not tell.
+	 */
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Logs how much of the available thread time was spent compiling, and the slowest report, which
+	 * is the lower bound of the total time.
+	 */
+	private void logEfficiency(long elapsed) {
+		long busy = 0;
+		long slowest = 0;
+		CompileTask slowestTask = null;
+		for (Map.Entry<CompileTask, Long> duration : durations.entrySet()) {
+			busy += duration.getValue();
+			if (duration.getValue() >= slowest) {
+				slowest = duration.getValue();
+				slowestTask = duration.getKey();
+			}
+		}
+		int threads = Math.min(parallelism, Math.max(1, durations.size()));
+		if (elapsed > 0 && slowestTask != null) {
+			log.info("Parallel efficiency " + Math.min(100, Math.round(100.0 * busy / (elapsed * threads)))
+					+ "% on " + threads + " threads, slowest report " + slowestTask.getSourceName() + " took "
+					+ (slowest / 1000.0) + " seconds");
+		}
+	}
+
+	/**
+	 * Drops all reports that did not start yet and interrupts the running ones.
+	 */
+	private void cancel(Map<Future<Void>, CompileTask> running, Collection<CompileTask> ready,
+			Set<CompileTask> waiting, Map<CompileTask, Exception> failures, int errors) {
+		List<CompileTask> cancelled = new ArrayList<>();
+		for (Map.Entry<Future<Void>, CompileTask> entry : running.entrySet()) {
+			entry.getKey().cancel(true);
+			cancelled.add(entry.getValue());
+		}
+		cancelled.addAll(ready);
+		cancelled.addAll(waiting);
+		running.clear();
+		ready.clear();
+		waiting.clear();
+		if (!cancelled.isEmpty()) {
+			log.warn("Stopping after " + errors + " failed reports, " + cancelled.size()
+					+ " reports are not compiled");
+		}
+		for (CompileTask task : cancelled) {
+			failures.put(task, new JRException("Compilation of " + task.getSourceName() + " was cancelled"));
+		}
+	}
+
+	private void skipDependents(CompileTask failed, Set<CompileTask> waiting, Map<CompileTask, Exception> failures) {
+		Deque<CompileTask> queue = new ArrayDeque<>(dependents.get(failed));
+		while (!queue.isEmpty()) {
+			CompileTask dependent = queue.poll();
+			if (waiting.remove(dependent)) {
+				log.warn("Not compiling " + dependent.getSourceName() + " because its subreport "
+						+ failed.getSourceName() + " could not be compiled");
+				failures.put(dependent, new JRException("Subreport " + failed.getSourceName()
+						+ " of " + dependent.getSourceName() + " could not be compiled"));
+				queue.addAll(dependents.get(dependent));
+			}
+		}
+	}
+
+	private static Exception asException(Throwable cause) {
+		return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+	}
+}
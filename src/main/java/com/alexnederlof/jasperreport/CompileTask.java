@@ -10,15 +10,31 @@ package com.alexnederlof.jasperreport;
  * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
  * for the specific language governing permissions and limitations under the License.
  */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
 import java.util.concurrent.Callable;
 
 import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JRReport;
 import net.sf.jasperreports.engine.JasperCompileManager;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.design.JasperDesign;
+import net.sf.jasperreports.engine.util.JRSaver;
+import net.sf.jasperreports.engine.xml.JRXmlLoader;
 
 import org.apache.maven.plugin.logging.Log;
 
@@ -28,22 +44,59 @@ import org.apache.maven.plugin.logging.Log;
 public class CompileTask implements Callable<Void> {
 
     private final File source;
+    private final String sourceName;
     private final File destination;
     private final Log log;
     private final boolean verbose;
+    private final JasperReportsContext jasperContext;
+    private final BuildCache buildCache;
+    private final ExpressionBatch expressionBatch;
+    private final ExpressionClassWriter classWriter;
+    private final WorkerJvmPool.Session workers;
+    private final boolean jdtCompiler;
+    private final boolean reproducible;
+    private final CompileMetrics metrics;
+    private final Set<String> referencedTypes = Collections.synchronizedSet(new TreeSet<String>());
+    private volatile boolean typesTracked;
+    private volatile boolean restored;
 
     /**
      * @param source The source file.
+     * @param sourceName The path of the source file, relative to the source directory.
      * @param destination The destination file.
      * @param log The logger.
      * @param verbose If the output should be verbose.
+     * @param jasperContext The Jasper configuration of the execution.
+     * @param buildCache The cache of compiled reports, or <code>null</code> if there is none.
+     * @param expressionBatch The batch that compiles the expressions, or <code>null</code> to compile
+     *            them per report.
+     * @param classWriter Writes the compiled expressions as class files, or <code>null</code> to keep
+     *            them in the compiled report.
+     * @param workers The worker JVMs to compile the report on, or <code>null</code> to compile it in
+     *            this JVM.
+     * @param jdtCompiler If Java expressions are compiled by the JDT compiler, which allows them to
+     *            be batched and measured.
+     * @param reproducible If every compilation of the same source gives the same bytes.
+     * @param metrics Receives the time spent in every phase of the compilation.
      */
-    CompileTask(File source, File destination, Log log, boolean verbose) {
+    CompileTask(File source, String sourceName, File destination, Log log, boolean verbose,
+            JasperReportsContext jasperContext, BuildCache buildCache, ExpressionBatch expressionBatch,
+            ExpressionClassWriter classWriter, WorkerJvmPool.Session workers, boolean jdtCompiler,
+            boolean reproducible, CompileMetrics metrics) {
         super();
         this.source = source;
+        this.sourceName = sourceName;
         this.destination = destination;
         this.log = log;
         this.verbose = verbose;
+        this.jasperContext = jasperContext;
+        this.buildCache = buildCache;
+        this.expressionBatch = expressionBatch;
+        this.classWriter = classWriter;
+        this.workers = workers;
+        this.jdtCompiler = jdtCompiler;
+        this.reproducible = reproducible;
+        this.metrics = metrics;
     }
 
     /**
@@ -54,22 +107,178 @@ public class CompileTask implements Callable<Void> {
      */
     @Override
     public Void call() throws Exception {
-        try (OutputStream out = new FileOutputStream(destination); InputStream in = new FileInputStream(source)) {
-            JasperCompileManager.compileReportToStream(in, out);
+        CompileMetrics.Report report = metrics.add(sourceName);
+        report.start();
+        boolean succeeded = false;
+        if (expressionBatch != null) {
+            expressionBatch.enter();
+        }
+        try {
+            compile(report);
+            succeeded = true;
+        }
+        finally {
+            if (expressionBatch != null) {
+                expressionBatch.exit();
+            }
+            report.end(succeeded);
+        }
+        return null;
+    }
+
+    private void compile(CompileMetrics.Report report) throws Exception {
+        String cacheKey = null;
+        if (buildCache != null) {
+            cacheKey = buildCache.key(source);
+            if (buildCache.fetch(cacheKey, destination)) {
+                restored = true;
+                report.setRestored();
+                if (verbose) {
+                    log.info("Restored " + source.getName() + " from the build cache");
+                }
+                return;
+            }
+        }
+        try {
+            byte[] compiled = workers == null ? compileToBytes(report) : workers.compile(this, report);
+            report.setBytes(compiled.length);
+            boolean changed;
+            report.begin(CompileMetrics.Phase.WRITE);
+            try {
+                changed = AtomicFiles.writeIfChanged(destination.toPath(), compiled);
+            }
+            finally {
+                report.end(CompileMetrics.Phase.WRITE);
+            }
             if (verbose) {
                 log.info("Compiling " + source.getName());
             }
+            if (!changed) {
+                log.debug(destination.getName() + " is unchanged");
+            }
         } catch (Exception e) {
-            cleanUpAndThrowError(destination, e);
+            throwError(e);
+        }
+        if (buildCache != null) {
+            buildCache.store(cacheKey, destination);
         }
-        return null;
     }
 
-    private void cleanUpAndThrowError(File out, Exception e) throws JRException {
-        log.error("Could not compile " + source.getName() + " because " + e.getMessage(), e);
-        if (out != null && out.exists()) {
-            out.delete();
+    /**
+     * Parses, compiles and serializes the source.
+     *
+     * @return The compiled report.
+     */
+    byte[] compileToBytes(CompileMetrics.Report report) throws JRException, IOException {
+        JasperDesign design;
+        Set<UUID> declaredUuids = null;
+        report.begin(CompileMetrics.Phase.PARSE);
+        try {
+            if (reproducible) {
+                byte[] bytes = Files.readAllBytes(source.toPath());
+                declaredUuids = ReproducibleOutputStream.findUuids(bytes);
+                design = JRXmlLoader.load(jasperContext, new ByteArrayInputStream(bytes));
+            }
+            else {
+                try (InputStream in = new FileInputStream(source)) {
+                    design = JRXmlLoader.load(jasperContext, in);
+                }
+            }
+        }
+        finally {
+            report.end(CompileMetrics.Phase.PARSE);
+        }
+
+        JasperReport jasperReport;
+        Map<String, String> stableNames = Collections.emptyMap();
+        report.begin(CompileMetrics.Phase.COMPILE);
+        try {
+            if (jdtCompiler && (design.getLanguage() == null || JRReport.LANGUAGE_JAVA.equals(design.getLanguage()))) {
+                InstrumentedJdtCompiler compiler = new InstrumentedJdtCompiler(jasperContext, report,
+                        expressionBatch, classWriter, referencedTypes, sourceName, design.getName(), reproducible);
+                jasperReport = compiler.compile(design);
+                stableNames = compiler.getStableNameSuffix();
+                referencedTypes.addAll(TypeDependencies.declaredTypes(design));
+                typesTracked = true;
+            }
+            else {
+                jasperReport = JasperCompileManager.getInstance(jasperContext).compile(design);
+            }
+        }
+        finally {
+            report.end(CompileMetrics.Phase.COMPILE);
+        }
+
+        report.begin(CompileMetrics.Phase.SERIALIZE);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (reproducible) {
+                try (ObjectOutputStream objects = new ReproducibleOutputStream(out, sourceName, declaredUuids,
+                        stableNames)) {
+                    objects.writeObject(jasperReport);
+                }
+            }
+            else {
+                JRSaver.saveObject(jasperReport, out);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            report.end(CompileMetrics.Phase.SERIALIZE);
         }
+    }
+
+    File getSource() {
+        return source;
+    }
+
+    String getSourceName() {
+        return sourceName;
+    }
+
+    boolean isJdtCompiler() {
+        return jdtCompiler;
+    }
+
+    boolean isReproducible() {
+        return reproducible;
+    }
+
+    /**
+     * @return The internal names of the classes the compiled expressions and the declarations of
+     *         the report refer to, or <code>null</code> if they are not known, because the report was
+     *         not compiled by the JDT compiler.
+     */
+    Set<String> getReferencedTypes() {
+        return typesTracked ? referencedTypes : null;
+    }
+
+    /**
+     * @return The names of the expression classes written for the report, or <code>null</code> if
+     *         the expressions are not written as class files.
+     */
+    List<String> getExpressionClasses() {
+        return classWriter == null ? null : classWriter.getClasses(sourceName);
+    }
+
+    /**
+     * @param types Classes the compiled expressions refer to, as found by a worker JVM.
+     */
+    void addReferencedTypes(Collection<String> types) {
+        referencedTypes.addAll(types);
+        typesTracked = true;
+    }
+
+    /**
+     * @return <code>true</code> if the report was restored from the build cache instead of compiled.
+     */
+    boolean isRestored() {
+        return restored;
+    }
+
+    private void throwError(Exception e) throws JRException {
+        // The previous compiled report, if any, is left in place
+        log.error("Could not compile " + source.getName() + " because " + e.getMessage(), e);
         throw new JRException("Could not compile " + source.getName(), e);
     }
 }
@@ -0,0 +1,212 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.sf.jasperreports.engine.DefaultJasperReportsContext;
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.SimpleJasperReportsContext;
+
+/**
+ * The program that runs in a worker JVM of the <code>forkWorkers</code> mode. It reads compile
+ * requests from its standard input and writes the compiled reports, or the errors, to its standard
+ * output, one request at a time, until its input is closed. Anything else the JVM prints goes to
+ * the error stream.
+ * <p>
+ * Every request carries the classpath and the Jasper properties of the execution that sent it, so
+ * one worker compiles the reports of every module of the build. The class loaders and Jasper
+ * contexts of the last executions are kept.
+ * <p>
+ * A request is the classpath, the properties, the path of the design, its name relative to the
+ * source directory, whether the expressions are compiled by the JDT compiler and whether the
+ * compiled report has to be reproducible. A response starts
+ * with {@link #OK}, followed by the nanoseconds spent in every {@link CompileMetrics.Phase}, the
+ * classes the expressions refer to when they are known, and the compiled report, or with
+ * {@link #FAILED}, followed by the message and the stack trace.
+ */
+public final class CompileWorker {
+
+	static final int OK = 0;
+	static final int FAILED = 1;
+
+	private static final int MAX_CLASS_LOADERS = 8;
+
+	private final Map<List<String>, URLClassLoader> classLoaders =
+			new LinkedHashMap<List<String>, URLClassLoader>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<List<String>, URLClassLoader> eldest) {
+					if (size() <= MAX_CLASS_LOADERS) {
+						return false;
+					}
+					try {
+						eldest.getValue().close();
+					}
+					catch (IOException e) {
+						System.err.println("Could not close the class loader of " + eldest.getKey() + ": " + e);
+					}
+					return true;
+				}
+			};
+	private final Map<Map<String, String>, JasperReportsContext> contexts = new HashMap<>();
+
+	private CompileWorker() {
+	}
+
+	/**
+	 * @param args Not used.
+	 * @throws IOException When the requests could not be read or the responses written.
+	 */
+	public static void main(String[] args) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+		// Whatever the compiler or the classes of the reports print must not end up between the responses
+		System.setOut(System.err);
+		CompileWorker worker = new CompileWorker();
+		while (true) {
+			List<String> classpath;
+			try {
+				classpath = readStrings(in);
+			}
+			catch (EOFException e) {
+				return;
+			}
+			Map<String, String> properties = new TreeMap<>();
+			List<String> keyValues = readStrings(in);
+			for (int i = 0; i + 1 < keyValues.size(); i += 2) {
+				properties.put(keyValues.get(i), keyValues.get(i + 1));
+			}
+			File source = new File(readString(in));
+			String sourceName = readString(in);
+			boolean jdtCompiler = in.readBoolean();
+			boolean reproducible = in.readBoolean();
+			worker.compile(classpath, properties, source, sourceName, jdtCompiler, reproducible, out);
+			out.flush();
+		}
+	}
+
+	private void compile(List<String> classpath, Map<String, String> properties, File source, String sourceName,
+			boolean jdtCompiler, boolean reproducible, DataOutputStream out) throws IOException {
+		Thread thread = Thread.currentThread();
+		ClassLoader previous = thread.getContextClassLoader();
+		CompileMetrics.Report report = new CompileMetrics().add(sourceName);
+		CompileTask task;
+		byte[] compiled;
+		try {
+			thread.setContextClassLoader(getClassLoader(classpath));
+			task = new CompileTask(source, sourceName, null, null, false, getContext(properties), null,
+					null, null, null, jdtCompiler, reproducible, null);
+			compiled = task.compileToBytes(report);
+		}
+		catch (Exception | LinkageError e) {
+			StringWriter trace = new StringWriter();
+			e.printStackTrace(new PrintWriter(trace));
+			out.writeByte(FAILED);
+			writeString(out, String.valueOf(e.getMessage()));
+			writeString(out, trace.toString());
+			return;
+		}
+		finally {
+			thread.setContextClassLoader(previous);
+		}
+		out.writeByte(OK);
+		for (CompileMetrics.Phase phase : CompileMetrics.Phase.values()) {
+			out.writeLong(report.nanos(phase));
+		}
+		Set<String> referencedTypes = task.getReferencedTypes();
+		out.writeBoolean(referencedTypes != null);
+		if (referencedTypes != null) {
+			writeStrings(out, new ArrayList<>(referencedTypes));
+		}
+		out.writeInt(compiled.length);
+		out.write(compiled);
+	}
+
+	private ClassLoader getClassLoader(List<String> classpath) throws MalformedURLException {
+		URLClassLoader classLoader = classLoaders.get(classpath);
+		if (classLoader == null) {
+			URL[] urls = new URL[classpath.size()];
+			for (int i = 0; i < urls.length; i++) {
+				urls[i] = new File(classpath.get(i)).toURI().toURL();
+			}
+			classLoader = new URLClassLoader(urls, CompileWorker.class.getClassLoader());
+			classLoaders.put(classpath, classLoader);
+		}
+		return classLoader;
+	}
+
+	private JasperReportsContext getContext(Map<String, String> properties) {
+		JasperReportsContext context = contexts.get(properties);
+		if (context == null) {
+			SimpleJasperReportsContext simpleContext =
+					new SimpleJasperReportsContext(DefaultJasperReportsContext.getInstance());
+			for (Map.Entry<String, String> property : properties.entrySet()) {
+				simpleContext.setProperty(property.getKey(), property.getValue());
+			}
+			context = simpleContext;
+			contexts.put(properties, context);
+		}
+		return context;
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	static List<String> readStrings(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		List<String> values = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			values.add(readString(in));
+		}
+		return values;
+	}
+}
@@ -0,0 +1,481 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.SAXParser;
+
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.xml.JRReportSaxParserFactory;
+import net.sf.jasperreports.engine.xml.JRSaxParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A quick check of report designs before they are compiled. Every design is parsed once, with the
+ * XML validation of the compiler, and the styles, subreports, images, style templates and classes it
+ * refers to are resolved. All problems of all designs are collected, instead of stopping at the
+ * first, so they can be fixed in one go. Designs are checked in parallel with one parser factory,
+ * which parses the schemas once for all designs.
+ * <p>
+ * Only references that are string literals, like <code>"logo.png"</code>, can be resolved. Styles
+ * are not checked in designs with style templates, the styles may come from the template.
+ */
+class DesignLinter {
+
+	private static final String DTD_RESOURCE_PREFIX = "net/sf/jasperreports/engine/dtds/";
+	private static final Pattern STRING_LITERAL = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+	private static final Pattern URL = Pattern.compile("[a-zA-Z][a-zA-Z0-9+.-]+:/.*");
+	private static final Set<String> PRIMITIVES = new HashSet<>(Arrays.asList("boolean", "byte", "char", "short",
+			"int", "long", "float", "double"));
+
+	private final JRSaxParserFactory parserFactory;
+	private final ClassLoader classLoader;
+	private final File sourceDirectory;
+	private final String sourceFileExt;
+	private final File outputDirectory;
+	private final String outputFileExt;
+	private final Map<String, Integer> designNames = new HashMap<>();
+	private final Map<String, Boolean> classes = new ConcurrentHashMap<>();
+
+	/**
+	 * @param jasperContext The Jasper configuration of the execution, which decides if the designs
+	 *            are validated against the schema.
+	 * @param classLoader The class loader of the reports.
+	 * @param sourceDirectory The source directory.
+	 * @param allSources All report designs in the source directory, which subreports may refer to.
+	 * @param sourceFileExt The extension of the report designs.
+	 * @param outputDirectory The directory of the compiled reports.
+	 * @param outputFileExt The extension of the compiled reports.
+	 */
+	DesignLinter(JasperReportsContext jasperContext, ClassLoader classLoader, File sourceDirectory,
+			Collection<File> allSources, String sourceFileExt, File outputDirectory, String outputFileExt) {
+		this.parserFactory = new JRReportSaxParserFactory(jasperContext);
+		this.classLoader = classLoader;
+		this.sourceDirectory = sourceDirectory;
+		this.sourceFileExt = sourceFileExt;
+		this.outputDirectory = outputDirectory;
+		this.outputFileExt = outputFileExt;
+		for (File source : allSources) {
+			Integer count = designNames.get(source.getName());
+			designNames.put(source.getName(), count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * Checks the designs in parallel.
+	 *
+	 * @param sources The designs to check.
+	 * @param threads The number of threads to check them on.
+	 * @return The problems of all designs, by design and line.
+	 * @throws InterruptedException When the check is interrupted.
+	 */
+	List<Problem> lint(Collection<File> sources, int threads) throws InterruptedException {
+		List<Problem> problems = new ArrayList<>();
+		if (sources.isEmpty()) {
+			return problems;
+		}
+		// The first parser loads the schemas, the parsers of the threads reuse them
+		parserFactory.createParser();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sources.size())));
+		try {
+			List<Future<List<Problem>>> futures = new ArrayList<>();
+			for (final File source : sources) {
+				futures.add(executor.submit(new Callable<List<Problem>>() {
+					@Override
+					public List<Problem> call() {
+						Thread thread = Thread.currentThread();
+						ClassLoader previous = thread.getContextClassLoader();
+						thread.setContextClassLoader(classLoader);
+						try {
+							return lint(source);
+						}
+						finally {
+							thread.setContextClassLoader(previous);
+						}
+					}
+				}));
+			}
+			for (Future<List<Problem>> future : futures) {
+				try {
+					problems.addAll(future.get());
+				}
+				catch (ExecutionException e) {
+					throw new IllegalStateException("Could not check a report design", e.getCause());
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		Collections.sort(problems);
+		return problems;
+	}
+
+	/**
+	 * Parses one design and resolves its references.
+	 */
+	private List<Problem> lint(File source) {
+		DesignHandler handler = new DesignHandler(source);
+		try {
+			SAXParser parser = parserFactory.createParser();
+			parser.parse(source, handler);
+		}
+		catch (SAXParseException e) {
+			// Already reported as fatal error
+			return handler.problems;
+		}
+		catch (SAXException | IOException e) {
+			handler.problems.add(new Problem(getName(source), 0, 0, "Could not be read: " + e.getMessage()));
+			return handler.problems;
+		}
+		handler.resolveReferences();
+		return handler.problems;
+	}
+
+	private String getName(File source) {
+		Path root = sourceDirectory.getAbsoluteFile().toPath();
+		Path path = source.getAbsoluteFile().toPath();
+		return (path.startsWith(root) ? root.relativize(path) : path).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @return If the literal of a subreport expression names a design in the sources, a compiled
+	 *         report or a resource of the class loader.
+	 */
+	private boolean isSubreport(String reference, File source) {
+		if (reference.endsWith(outputFileExt)) {
+			String design = reference.substring(0, reference.length() - outputFileExt.length()) + sourceFileExt;
+			if (new File(source.getParentFile(), design).isFile() || new File(sourceDirectory, design).isFile()) {
+				return true;
+			}
+			Integer sameName = designNames.get(new File(design).getName());
+			if (sameName != null && sameName == 1) {
+				return true;
+			}
+		}
+		return isResource(reference, source);
+	}
+
+	/**
+	 * @return If the literal of an image or template expression names a file next to the design, in
+	 *         the source or output directory, or a resource of the class loader.
+	 */
+	private boolean isResource(String reference, File source) {
+		if (URL.matcher(reference).matches()) {
+			return true;
+		}
+		File file = new File(reference);
+		if (file.isAbsolute()) {
+			return file.exists();
+		}
+		for (File directory : new File[] { source.getParentFile(), sourceDirectory, outputDirectory }) {
+			if (new File(directory, reference).exists()) {
+				return true;
+			}
+		}
+		String resource = reference.startsWith("/") ? reference.substring(1) : reference;
+		return file.exists() || classLoader.getResource(resource) != null;
+	}
+
+	/**
+	 * @return If the class can be loaded, also when it is an array or a nested class written with
+	 *         dots.
+	 */
+	private boolean isClass(String name) {
+		Boolean found = classes.get(name);
+		if (found == null) {
+			found = loadClass(name);
+			classes.put(name, found);
+		}
+		return found;
+	}
+
+	private boolean loadClass(String name) {
+		String className = name.trim();
+		while (className.endsWith("[]")) {
+			className = className.substring(0, className.length() - 2).trim();
+		}
+		if (PRIMITIVES.contains(className)) {
+			return true;
+		}
+		while (true) {
+			try {
+				Class.forName(className, false, classLoader);
+				return true;
+			}
+			catch (ClassNotFoundException | LinkageError e) {
+				int dot = className.lastIndexOf('.');
+				if (dot < 0) {
+					return false;
+				}
+				className = className.substring(0, dot) + '$' + className.substring(dot + 1);
+			}
+		}
+	}
+
+	/**
+	 * @return The value of the expression if it is nothing but a string literal, otherwise
+	 *         <code>null</code>.
+	 */
+	private static String getLiteral(String expression) {
+		Matcher literal = STRING_LITERAL.matcher(expression.trim());
+		return literal.matches() ? literal.group(1) : null;
+	}
+
+	/**
+	 * Collects the errors of the parser and the references of one design.
+	 */
+	private final class DesignHandler extends DefaultHandler {
+
+		private final File source;
+		private final String name;
+		private final List<Problem> problems = new ArrayList<>();
+		private final Set<String> styles = new HashSet<>();
+		private final List<Reference> styleReferences = new ArrayList<>();
+		private final List<Reference> classReferences = new ArrayList<>();
+		private final List<Reference> subreportReferences = new ArrayList<>();
+		private final List<Reference> resourceReferences = new ArrayList<>();
+		private boolean templates;
+		private Locator locator;
+		private StringBuilder expression;
+		private List<Reference> expressionReferences;
+		private int expressionLine;
+		private int expressionColumn;
+
+		DesignHandler(File source) {
+			this.source = source;
+			this.name = getName(source);
+		}
+
+		@Override
+		public void setDocumentLocator(Locator locator) {
+			this.locator = locator;
+		}
+
+		@Override
+		public InputSource resolveEntity(String publicId, String systemId) throws IOException, SAXException {
+			// The DTD of old designs is taken from the Jasper jar instead of the internet
+			if (systemId != null && systemId.endsWith(".dtd")) {
+				String resource = DTD_RESOURCE_PREFIX + systemId.substring(systemId.lastIndexOf('/') + 1);
+				InputStream dtd = JRReportSaxParserFactory.class.getClassLoader().getResourceAsStream(resource);
+				if (dtd != null) {
+					InputSource input = new InputSource(dtd);
+					input.setPublicId(publicId);
+					input.setSystemId(systemId);
+					return input;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			String element = localName == null || localName.isEmpty() ? qName : localName;
+			if ("style".equals(element)) {
+				String style = attributes.getValue("name");
+				if (style != null) {
+					styles.add(style);
+				}
+				addReference(styleReferences, attributes.getValue("style"));
+			}
+			else if ("reportElement".equals(element) || "cellContents".equals(element)) {
+				addReference(styleReferences, attributes.getValue("style"));
+			}
+			else if ("jasperReport".equals(element)) {
+				addReference(classReferences, attributes.getValue("scriptletClass"));
+			}
+			else if ("import".equals(element)) {
+				String value = attributes.getValue("value");
+				if (value != null && !value.endsWith("*") && !value.startsWith("static ")) {
+					addReference(classReferences, value);
+				}
+			}
+			else if ("parameter".equals(element) || "field".equals(element) || "variable".equals(element)
+					|| "scriptlet".equals(element) || element.endsWith("Expression")) {
+				addReference(classReferences, attributes.getValue("class"));
+				addReference(classReferences, attributes.getValue("nestedType"));
+			}
+
+			if ("subreportExpression".equals(element)) {
+				startExpression(subreportReferences);
+			}
+			else if ("imageExpression".equals(element)) {
+				startExpression(resourceReferences);
+			}
+			else if ("template".equals(element)) {
+				templates = true;
+				startExpression(resourceReferences);
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (expression != null) {
+				expression.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if (expression != null) {
+				String literal = getLiteral(expression.toString());
+				if (literal != null) {
+					expressionReferences.add(new Reference(literal, expressionLine, expressionColumn));
+				}
+				expression = null;
+				expressionReferences = null;
+			}
+		}
+
+		@Override
+		public void error(SAXParseException e) {
+			problems.add(new Problem(name, e.getLineNumber(), e.getColumnNumber(), e.getMessage()));
+		}
+
+		@Override
+		public void fatalError(SAXParseException e) throws SAXException {
+			error(e);
+			throw e;
+		}
+
+		private void startExpression(List<Reference> references) {
+			expression = new StringBuilder();
+			expressionReferences = references;
+			expressionLine = locator == null ? 0 : locator.getLineNumber();
+			expressionColumn = locator == null ? 0 : locator.getColumnNumber();
+		}
+
+		private void addReference(List<Reference> references, String value) {
+			if (value != null && !value.trim().isEmpty()) {
+				references.add(new Reference(value.trim(), locator == null ? 0 : locator.getLineNumber(),
+						locator == null ? 0 : locator.getColumnNumber()));
+			}
+		}
+
+		void resolveReferences() {
+			if (!templates) {
+				for (Reference reference : styleReferences) {
+					if (!styles.contains(reference.value)) {
+						problem(reference, "Style " + reference.value + " is not defined");
+					}
+				}
+			}
+			for (Reference reference : classReferences) {
+				if (!isClass(reference.value)) {
+					problem(reference, "Class " + reference.value + " is not on the classpath");
+				}
+			}
+			for (Reference reference : subreportReferences) {
+				if (!isSubreport(reference.value, source)) {
+					problem(reference, "Subreport " + reference.value + " is not found");
+				}
+			}
+			for (Reference reference : resourceReferences) {
+				if (!isResource(reference.value, source)) {
+					problem(reference, "Resource " + reference.value + " is not found");
+				}
+			}
+		}
+
+		private void problem(Reference reference, String message) {
+			problems.add(new Problem(name, reference.line, reference.column, message));
+		}
+	}
+
+	private static final class Reference {
+
+		private final String value;
+		private final int line;
+		private final int column;
+
+		Reference(String value, int line, int column) {
+			this.value = value;
+			this.line = line;
+			this.column = column;
+		}
+	}
+
+	/**
+	 * A problem in a report design.
+	 */
+	static final class Problem implements Comparable<Problem> {
+
+		private final String sourceName;
+		private final int line;
+		private final int column;
+		private final String message;
+
+		Problem(String sourceName, int line, int column, String message) {
+			this.sourceName = sourceName;
+			this.line = line;
+			this.column = column;
+			this.message = message;
+		}
+
+		/**
+		 * @return The path of the design, relative to the source directory.
+		 */
+		String getSourceName() {
+			return sourceName;
+		}
+
+		String getMessage() {
+			return message;
+		}
+
+		@Override
+		public int compareTo(Problem other) {
+			int compared = sourceName.compareTo(other.sourceName);
+			if (compared == 0) {
+				compared = Integer.compare(line, other.line);
+			}
+			return compared == 0 ? Integer.compare(column, other.column) : compared;
+		}
+
+		/**
+		 * @return The problem as <code>path:line:column: message</code>, which most editors link to
+		 *         the line.
+		 */
+		@Override
+		public String toString() {
+			return sourceName + ":" + line + ":" + column + ": " + message;
+		}
+	}
+}
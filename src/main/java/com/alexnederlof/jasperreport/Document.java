@@ -0,0 +1,106 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A document that the <code>render</code> goal creates: a compiled report, the data it is filled
+ * with and the formats it is exported to.
+ */
+public class Document {
+
+	/**
+	 * The compiled report, relative to the <code>outputDirectory</code>, like
+	 * <code>catalog/Catalog.jasper</code>.
+	 */
+	private String report;
+
+	/**
+	 * The file the report is filled with: a UTF-8 CSV file whose first row holds the field names, a
+	 * JSON file, or an Excel (<code>.xls</code> or <code>.xlsx</code>) file whose first row holds the
+	 * field names. Without a file the report is filled with <code>records</code> empty records.
+	 */
+	private File dataFile;
+
+	/**
+	 * The expression that selects the records of a JSON <code>dataFile</code>, like
+	 * <code>Northwind.Customers</code>.
+	 */
+	private String selectExpression;
+
+	/**
+	 * The number of empty records the report is filled with when there is no <code>dataFile</code>.
+	 */
+	private int records = 1;
+
+	/**
+	 * The formats to export to: pdf, xlsx, docx, csv or html. Default value is pdf.
+	 */
+	private List<String> formats = Collections.singletonList("pdf");
+
+	/**
+	 * The name of the exported files, without extension. Default value is the name of the report.
+	 */
+	private String name;
+
+	/**
+	 * The parameters of the report. The values are passed as strings.
+	 */
+	private Map<String, String> parameters = Collections.emptyMap();
+
+	String getReport() {
+		return report;
+	}
+
+	File getDataFile() {
+		return dataFile;
+	}
+
+	String getSelectExpression() {
+		return selectExpression;
+	}
+
+	int getRecords() {
+		return records;
+	}
+
+	List<String> getFormats() {
+		return formats == null ? Collections.singletonList("pdf") : formats;
+	}
+
+	/**
+	 * @return The name of the exported files: the configured name, or the file name of the report
+	 *         without its extension.
+	 */
+	String getName() {
+		if (name != null) {
+			return name;
+		}
+		String fileName = new File(report).getName();
+		int extension = fileName.lastIndexOf('.');
+		return extension > 0 ? fileName.substring(0, extension) : fileName;
+	}
+
+	Map<String, String> getParameters() {
+		return parameters == null ? Collections.<String, String> emptyMap() : parameters;
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,228 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.design.JRCompilationUnit;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Collects the expression compilation units of reports that are compiled at the same time, so that
+ * they are compiled by one run of the JDT compiler instead of one run per report. Setting up a
+ * compiler run, with its type lookups, costs more than compiling the expressions of a typical report.
+ * <p>
+ * Every task that compiles a report {@link #enter() enters} the batch. When its report reaches the
+ * Java compilation, the task waits until either the batch is full or every other task in the batch is
+ * waiting too. One of the waiting tasks then compiles the units of all of them.
+ */
+class ExpressionBatch {
+
+	private final int batchSize;
+	private final Log log;
+	private final List<Request> pending = new ArrayList<>();
+	private final AtomicInteger compilerRuns = new AtomicInteger();
+	private final AtomicInteger compiledReports = new AtomicInteger();
+	private int active;
+	private int compiling;
+
+	/**
+	 * @param batchSize The maximum number of reports compiled by one compiler run.
+	 * @param log The logger.
+	 */
+	ExpressionBatch(int batchSize, Log log) {
+		this.batchSize = batchSize;
+		this.log = log;
+	}
+
+	/**
+	 * Registers a task that may compile expressions.
+	 */
+	synchronized void enter() {
+		active++;
+	}
+
+	/**
+	 * Unregisters a task, whether it compiled expressions or not.
+	 */
+	synchronized void exit() {
+		active--;
+		notifyAll();
+	}
+
+	/**
+	 * Compiles the units of one report together with those of the other waiting reports.
+	 *
+	 * @return The compile errors of the given units, or <code>null</code> if there are none.
+	 */
+	String compile(InstrumentedJdtCompiler compiler, JRCompilationUnit[] units, String classpath, File tempDirFile)
+			throws JRException {
+		Request request = new Request(units);
+		List<Request> batch;
+		synchronized (this) {
+			pending.add(request);
+			notifyAll();
+			try {
+				while (!request.started && !isFull()) {
+					wait();
+				}
+				if (request.started) {
+					while (!request.done) {
+						wait();
+					}
+					return request.getErrors();
+				}
+			}
+			catch (InterruptedException e) {
+				pending.remove(request);
+				Thread.currentThread().interrupt();
+				throw new JRException("Interrupted while waiting for the expression compiler", e);
+			}
+			batch = new ArrayList<>(pending);
+			pending.clear();
+			for (Request started : batch) {
+				started.started = true;
+			}
+			compiling += batch.size();
+		}
+
+		try {
+			compileBatch(compiler, batch, classpath, tempDirFile);
+		}
+		finally {
+			synchronized (this) {
+				compiling -= batch.size();
+				for (Request done : batch) {
+					done.done = true;
+				}
+				notifyAll();
+			}
+		}
+		return request.getErrors();
+	}
+
+	/**
+	 * @return <code>true</code> if the batch should be compiled, because it is full or no other
+	 *         task can join it.
+	 */
+	private boolean isFull() {
+		return pending.size() >= batchSize || pending.size() + compiling >= active;
+	}
+
+	private void compileBatch(InstrumentedJdtCompiler compiler, List<Request> batch, String classpath, File tempDirFile) {
+		// Units with the same class name can not be compiled together
+		List<List<Request>> runs = new ArrayList<>();
+		List<Set<String>> runNames = new ArrayList<>();
+		for (Request request : batch) {
+			int run = 0;
+			while (run < runs.size() && !Request.disjoint(runNames.get(run), request.units)) {
+				run++;
+			}
+			if (run == runs.size()) {
+				runs.add(new ArrayList<Request>());
+				runNames.add(new HashSet<String>());
+			}
+			runs.get(run).add(request);
+			for (JRCompilationUnit unit : request.units) {
+				runNames.get(run).add(unit.getName());
+			}
+		}
+
+		for (List<Request> run : runs) {
+			List<JRCompilationUnit> units = new ArrayList<>();
+			for (Request request : run) {
+				units.addAll(Arrays.asList(request.units));
+			}
+			String errors;
+			try {
+				compilerRuns.incrementAndGet();
+				errors = compiler.compileNow(units.toArray(new JRCompilationUnit[0]), classpath, tempDirFile);
+			}
+			catch (JRException e) {
+				errors = e.getMessage();
+				if (run.size() == 1) {
+					run.get(0).failure = e;
+					continue;
+				}
+			}
+			catch (RuntimeException e) {
+				for (Request request : run) {
+					request.failure = new JRException("Could not compile the report expressions", e);
+				}
+				continue;
+			}
+			compiledReports.addAndGet(run.size());
+			if (errors == null || run.size() == 1) {
+				for (Request request : run) {
+					request.errors = errors;
+				}
+			}
+			else {
+				// Compile every report on its own to tell which one has the errors
+				log.debug("Expression batch of " + run.size() + " reports failed, compiling them one by one");
+				for (Request request : run) {
+					try {
+						compilerRuns.incrementAndGet();
+						request.errors = compiler.compileNow(request.units, classpath, tempDirFile);
+					}
+					catch (JRException e) {
+						request.failure = e;
+					}
+				}
+			}
+		}
+	}
+
+	void logStatistics() {
+		if (compilerRuns.get() > 0) {
+			log.info("Compiled the expressions of " + compiledReports.get() + " reports in " + compilerRuns.get()
+					+ " compiler runs");
+		}
+	}
+
+	private static final class Request {
+
+		private final JRCompilationUnit[] units;
+		private boolean started;
+		private boolean done;
+		private String errors;
+		private JRException failure;
+
+		Request(JRCompilationUnit[] units) {
+			this.units = units;
+		}
+
+		String getErrors() throws JRException {
+			if (failure != null) {
+				throw failure;
+			}
+			return errors;
+		}
+
+		static boolean disjoint(Set<String> names, JRCompilationUnit[] units) {
+			for (JRCompilationUnit unit : units) {
+				if (names.contains(unit.getName())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.design.JRCompilationUnit;
+
+import com.alexnederlof.jasperreport.runtime.PrecompiledJdtCompiler;
+
+/**
+ * Writes the compiled expressions of reports as class files with stable names, instead of keeping
+ * their bytecode in the compiled report. The compiled report only holds the names of its classes,
+ * which {@link PrecompiledJdtCompiler} loads when the report is filled. Loaded through the class
+ * loader of the application, the classes are loaded once, verified once and can be part of a class
+ * data sharing archive, where classes defined from the bytes in a report are defined again by a
+ * new class loader for every report that is loaded.
+ * <p>
+ * The JDT compiler names the class of every expression unit after the report with a suffix that is
+ * unique for every compilation. The classes are renamed to the path of the design in the given
+ * package: the expressions of <code>invoices/Invoice.jrxml</code> become
+ * <code>invoices.Invoice</code> in the package, those of its dataset <code>Lines</code>
+ * <code>invoices.Invoice_Lines</code>.
+ * <p>
+ * Different designs can get the same class name, like <code>invoices/Invoice_Lines.jrxml</code>
+ * and the dataset <code>Lines</code> of <code>invoices/Invoice.jrxml</code>, or
+ * <code>level.1/Report.jrxml</code> and <code>level-1/Report.jrxml</code>. The second one to be
+ * written fails, naming both, instead of replacing the classes of the first. The classes of designs
+ * that are not compiled again in an incremental build are reserved with
+ * {@link #reserve(String, Collection)} first, so that a changed design can not replace them either.
+ */
+class ExpressionClassWriter {
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+
+	private final File directory;
+	private final String packageName;
+	private final ConcurrentMap<String, String> owners = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Set<String>> written = new ConcurrentHashMap<>();
+
+	/**
+	 * @param directory The root directory of the classes.
+	 * @param packageName The package of the classes.
+	 */
+	ExpressionClassWriter(File directory, String packageName) {
+		this.directory = directory;
+		this.packageName = packageName;
+	}
+
+	/**
+	 * @param name A package name.
+	 * @return If the name is a valid Java package name.
+	 */
+	static boolean isPackageName(String name) {
+		for (String part : name.split("\\.", -1)) {
+			if (part.isEmpty() || !Character.isJavaIdentifierStart(part.charAt(0))) {
+				return false;
+			}
+			for (int i = 1; i < part.length(); i++) {
+				if (!Character.isJavaIdentifierPart(part.charAt(i))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the compiled units of a report as class files and replaces their compile data with the
+	 * names of the classes.
+	 *
+	 * @param sourceName The path of the design, relative to the source directory.
+	 * @param reportName The name of the report in the design.
+	 * @param units The compiled units of the report, the main dataset first.
+	 * @throws JRException When a class could not be written, or has the same name as a class of
+	 *             another design.
+	 */
+	void write(String sourceName, String reportName, JRCompilationUnit[] units) throws JRException {
+		String baseName = getBaseName(sourceName);
+		String mainUnit = units.length == 0 ? "" : units[0].getName();
+		String reportUnit = toIdentifier(reportName);
+		String suffix = mainUnit.startsWith(reportUnit) ? mainUnit.substring(reportUnit.length()) : null;
+		for (int i = 0; i < units.length; i++) {
+			JRCompilationUnit unit = units[i];
+			Serializable compileData = unit.getCompileData();
+			if (!(compileData instanceof byte[])) {
+				continue;
+			}
+			String unitName = unit.getName();
+			String datasetPart;
+			if (suffix != null && unitName.startsWith(reportUnit) && unitName.endsWith(suffix)
+					&& unitName.length() >= reportUnit.length() + suffix.length()) {
+				datasetPart = unitName.substring(reportUnit.length(), unitName.length() - suffix.length());
+			}
+			else {
+				datasetPart = i == 0 ? "" : "_" + i;
+			}
+			String className = baseName + datasetPart;
+			claim(className, datasetPart.isEmpty() ? sourceName : sourceName + " dataset " + datasetPart.substring(1));
+			byte[] renamed;
+			try {
+				renamed = rename((byte[]) compileData, unitName.replace('.', '/'), className.replace('.', '/'));
+			}
+			catch (IOException e) {
+				throw new JRException("Could not rename the expressions class " + unitName, e);
+			}
+			Path file = new File(directory, className.replace('.', File.separatorChar) + ".class").toPath();
+			try {
+				Files.createDirectories(file.getParent());
+				AtomicFiles.writeIfChanged(file, renamed);
+			}
+			catch (IOException e) {
+				throw new JRException("Could not write the expressions class " + file, e);
+			}
+			unit.setCompileData(className);
+			Set<String> classes = written.get(sourceName);
+			if (classes == null) {
+				Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				classes = written.putIfAbsent(sourceName, created);
+				if (classes == null) {
+					classes = created;
+				}
+			}
+			classes.add(className);
+		}
+	}
+
+	/**
+	 * Reserves the classes of a design that may not be compiled in this build, so that another
+	 * design can not get the same names.
+	 *
+	 * @param sourceName The path of the design, relative to the source directory.
+	 * @param classNames The classes that were written for the design before, or <code>null</code>
+	 *            if they are not known. The class of the main dataset is always reserved.
+	 * @throws JRException When a class already belongs to another design.
+	 */
+	void reserve(String sourceName, Collection<String> classNames) throws JRException {
+		String baseName = getBaseName(sourceName);
+		claim(baseName, sourceName);
+		if (classNames == null) {
+			return;
+		}
+		for (String className : classNames) {
+			if (className.startsWith(baseName + "_")) {
+				claim(className, sourceName + " dataset " + className.substring(baseName.length() + 1));
+			}
+		}
+	}
+
+	/**
+	 * @param sourceName The path of the design, relative to the source directory.
+	 * @return The names of the classes written for the design, sorted.
+	 */
+	List<String> getClasses(String sourceName) {
+		Set<String> classes = written.get(sourceName);
+		List<String> sorted = classes == null ? new ArrayList<String>() : new ArrayList<>(classes);
+		Collections.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Deletes the class files of classes, like the ones of a design that was deleted.
+	 *
+	 * @param directory The root directory of the classes.
+	 * @param classNames The names of the classes.
+	 * @return The class files that were deleted.
+	 * @throws IOException When a class file could not be deleted.
+	 */
+	static List<File> delete(File directory, Collection<String> classNames) throws IOException {
+		List<File> deleted = new ArrayList<>();
+		for (String className : classNames) {
+			File file = new File(directory, className.replace('.', File.separatorChar) + ".class");
+			if (Files.deleteIfExists(file.toPath())) {
+				deleted.add(file);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Records which design a class belongs to.
+	 *
+	 * @param className The name of the class.
+	 * @param owner The design, and the dataset if it is not the main dataset.
+	 * @throws JRException When the class already belongs to another design.
+	 */
+	private void claim(String className, String owner) throws JRException {
+		// Class files that only differ in case are the same file on some file systems
+		String previous = owners.putIfAbsent(className.toLowerCase(Locale.ROOT), owner);
+		if (previous != null && !previous.equals(owner)) {
+			throw new JRException("The expressions class " + className + " of " + owner
+					+ " has the same name as the one of " + previous + ", rename one of them");
+		}
+	}
+
+	/**
+	 * @return The class name of the main dataset of a design, like
+	 *         <code>com.example.invoices.Invoice</code> for <code>invoices/Invoice.jrxml</code>.
+	 */
+	private String getBaseName(String sourceName) {
+		String path = sourceName.replace(File.separatorChar, '/');
+		int dot = path.lastIndexOf('.');
+		if (dot > path.lastIndexOf('/')) {
+			path = path.substring(0, dot);
+		}
+		StringBuilder name = new StringBuilder(packageName);
+		for (String part : path.split("/")) {
+			name.append('.').append(toIdentifier(part));
+		}
+		return name.toString();
+	}
+
+	private static String toIdentifier(String name) {
+		StringBuilder identifier = new StringBuilder(name.length() + 1);
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			identifier.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		}
+		if (identifier.length() == 0 || !Character.isJavaIdentifierStart(identifier.charAt(0))) {
+			identifier.insert(0, '_');
+		}
+		return identifier.toString();
+	}
+
+	/**
+	 * Renames a class by rewriting the names in its constant pool. The class itself, any type
+	 * descriptor or signature that refers to it and its source file get the new name. The rest of
+	 * the class file is copied as it is.
+	 *
+	 * @param classFile The class file.
+	 * @param oldName The internal name of the class, like <code>Invoice_1_2</code>.
+	 * @param newName The new internal name, like <code>com/example/Invoice</code>.
+	 * @return The renamed class file.
+	 * @throws IOException When the class file is not valid.
+	 */
+	static byte[] rename(byte[] classFile, String oldName, String newName) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(classFile.length + 64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		// magic, minor and major version
+		out.writeInt(in.readInt());
+		out.writeInt(in.readInt());
+		int count = in.readUnsignedShort();
+		out.writeShort(count);
+		String oldDescriptor = "L" + oldName + ";";
+		String newDescriptor = "L" + newName + ";";
+		String oldSourceFile = oldName.substring(oldName.lastIndexOf('/') + 1) + ".java";
+		String newSourceFile = newName.substring(newName.lastIndexOf('/') + 1) + ".java";
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			out.writeByte(tag);
+			if (tag == CONSTANT_UTF8) {
+				String value = in.readUTF();
+				if (value.equals(oldName)) {
+					value = newName;
+				}
+				else if (value.equals(oldSourceFile)) {
+					value = newSourceFile;
+				}
+				else if (value.contains(oldDescriptor)) {
+					value = value.replace(oldDescriptor, newDescriptor);
+				}
+				out.writeUTF(value);
+				continue;
+			}
+			int length = getConstantLength(tag);
+			byte[] constant = new byte[length];
+			in.readFully(constant);
+			out.write(constant);
+			if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+				// Takes two entries of the pool
+				i++;
+			}
+		}
+		byte[] rest = new byte[in.available()];
+		in.readFully(rest);
+		out.write(rest);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return The length of a constant pool entry after its tag, for all entries but UTF-8 strings.
+	 */
+	static int getConstantLength(int tag) throws IOException {
+		switch (tag) {
+		case 7: // class
+		case 8: // string
+		case 16: // method type
+		case 19: // module
+		case 20: // package
+			return 2;
+		case 15: // method handle
+			return 3;
+		case 3: // integer
+		case 4: // float
+		case 9: // field
+		case 10: // method
+		case 11: // interface method
+		case 12: // name and type
+		case 17: // dynamic
+		case 18: // invoke dynamic
+			return 4;
+		case CONSTANT_LONG:
+		case CONSTANT_DOUBLE:
+			return 8;
+		default:
+			throw new IOException("Unknown constant pool tag " + tag);
+		}
+	}
+}
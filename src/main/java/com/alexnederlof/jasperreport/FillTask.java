@@ -0,0 +1,211 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import net.sf.jasperreports.engine.JRDataSource;
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JREmptyDataSource;
+import net.sf.jasperreports.engine.JasperFillManager;
+import net.sf.jasperreports.engine.JasperPrint;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.SimpleJasperReportsContext;
+import net.sf.jasperreports.engine.data.JRCsvDataSource;
+import net.sf.jasperreports.engine.export.HtmlExporter;
+import net.sf.jasperreports.engine.export.JRCsvExporter;
+import net.sf.jasperreports.engine.export.JRPdfExporter;
+import net.sf.jasperreports.engine.export.ooxml.JRDocxExporter;
+import net.sf.jasperreports.engine.export.ooxml.JRXlsxExporter;
+import net.sf.jasperreports.engine.util.JRLoader;
+import net.sf.jasperreports.engine.util.NullOutputStream;
+import net.sf.jasperreports.export.Exporter;
+import net.sf.jasperreports.export.ExporterInput;
+import net.sf.jasperreports.export.ExporterOutput;
+import net.sf.jasperreports.export.SimpleExporterInput;
+import net.sf.jasperreports.export.SimpleHtmlExporterOutput;
+import net.sf.jasperreports.export.SimpleOutputStreamExporterOutput;
+import net.sf.jasperreports.export.SimpleWriterExporterOutput;
+import net.sf.jasperreports.repo.FileRepositoryService;
+import net.sf.jasperreports.repo.RepositoryService;
+
+/**
+ * A task that fills a compiled report and exports it to a stream that discards everything, to find
+ * reports that compile but fail or are slow when they are used.
+ */
+class FillTask implements Callable<FillTask> {
+
+	/** The formats a report can be exported to. */
+	static final List<String> FORMATS = Arrays.asList("pdf", "xlsx", "docx", "csv", "html");
+
+	private final File report;
+	private final String name;
+	private final File sampleData;
+	private final File outputDirectory;
+	private final JasperReportsContext jasperContext;
+	private final List<String> formats;
+	private final int runs;
+	private final Map<String, Long> exportNanos = new LinkedHashMap<>();
+	private long fillNanos;
+	private int pages;
+
+	/**
+	 * @param report The compiled report.
+	 * @param name The path of the report, relative to the output directory.
+	 * @param sampleData A CSV file with a header row to fill the report with, or <code>null</code> to
+	 *            fill it with a single empty record.
+	 * @param outputDirectory The directory with all compiled reports, where subreports are looked up
+	 *            when they are not next to the report.
+	 * @param jasperContext The Jasper configuration of the execution.
+	 * @param formats The formats to export to, see {@link #FORMATS}.
+	 * @param runs How many times the report is filled and exported. The times are the medians of all
+	 *            runs, so that a run slowed down by class loading or garbage collection does not count.
+	 */
+	FillTask(File report, String name, File sampleData, File outputDirectory, JasperReportsContext jasperContext,
+			List<String> formats, int runs) {
+		this.report = report;
+		this.name = name;
+		this.sampleData = sampleData;
+		this.outputDirectory = outputDirectory;
+		this.jasperContext = jasperContext;
+		this.formats = formats;
+		this.runs = Math.max(1, runs);
+	}
+
+	@Override
+	public FillTask call() throws Exception {
+		SimpleJasperReportsContext context = createContext(jasperContext, report, outputDirectory);
+		JasperReport jasperReport = (JasperReport) JRLoader.loadObject(report);
+		double[] fills = new double[runs];
+		double[][] exports = new double[formats.size()][runs];
+		for (int run = 0; run < runs; run++) {
+			long start = System.nanoTime();
+			JasperPrint print = fill(context, jasperReport);
+			fills[run] = System.nanoTime() - start;
+			pages = print.getPages().size();
+
+			for (int i = 0; i < formats.size(); i++) {
+				start = System.nanoTime();
+				export(context, print, formats.get(i), new NullOutputStream());
+				exports[i][run] = System.nanoTime() - start;
+			}
+		}
+		fillNanos = (long) PerformanceBaseline.median(fills);
+		for (int i = 0; i < formats.size(); i++) {
+			exportNanos.put(formats.get(i), (long) PerformanceBaseline.median(exports[i]));
+		}
+		return this;
+	}
+
+	/**
+	 * @param jasperContext The Jasper configuration of the execution.
+	 * @param report The compiled report.
+	 * @param outputDirectory The directory with all compiled reports.
+	 * @return A context that finds subreports, images and other resources next to the report and in
+	 *         the output directory.
+	 */
+	static SimpleJasperReportsContext createContext(JasperReportsContext jasperContext, File report,
+			File outputDirectory) {
+		SimpleJasperReportsContext context = new SimpleJasperReportsContext(jasperContext);
+		context.setExtensions(RepositoryService.class, Arrays.asList(
+				new FileRepositoryService(context, report.getAbsoluteFile().getParent(), true),
+				new FileRepositoryService(context, outputDirectory.getAbsolutePath(), true)));
+		return context;
+	}
+
+	private JasperPrint fill(SimpleJasperReportsContext context, JasperReport jasperReport) throws Exception {
+		if (sampleData == null) {
+			return fill(context, jasperReport, new JREmptyDataSource());
+		}
+		JRCsvDataSource dataSource = new JRCsvDataSource(sampleData, "UTF-8");
+		dataSource.setUseFirstRowAsHeader(true);
+		try {
+			return fill(context, jasperReport, dataSource);
+		}
+		finally {
+			dataSource.close();
+		}
+	}
+
+	private static JasperPrint fill(SimpleJasperReportsContext context, JasperReport report, JRDataSource dataSource)
+			throws JRException {
+		return JasperFillManager.getInstance(context).fill(report, new HashMap<String, Object>(), dataSource);
+	}
+
+	/**
+	 * Exports a filled report to a stream, which is not closed.
+	 *
+	 * @param format One of the {@link #FORMATS}.
+	 */
+	static void export(JasperReportsContext context, JasperPrint print, String format, OutputStream out)
+			throws JRException {
+		// The elements of the print resolve their default fonts through its context, the global one by default
+		print.setJasperReportsContext(context);
+		switch (format) {
+		case "pdf":
+			export(new JRPdfExporter(context), print, new SimpleOutputStreamExporterOutput(out));
+			break;
+		case "xlsx":
+			export(new JRXlsxExporter(context), print, new SimpleOutputStreamExporterOutput(out));
+			break;
+		case "docx":
+			export(new JRDocxExporter(context), print, new SimpleOutputStreamExporterOutput(out));
+			break;
+		case "csv":
+			export(new JRCsvExporter(context), print, new SimpleWriterExporterOutput(out));
+			break;
+		case "html":
+			export(new HtmlExporter(context), print, new SimpleHtmlExporterOutput(out));
+			break;
+		default:
+			throw new JRException("Unknown export format " + format);
+		}
+	}
+
+	private static <O extends ExporterOutput> void export(Exporter<ExporterInput, ?, ?, O> exporter, JasperPrint print,
+			O output) throws JRException {
+		exporter.setExporterInput(new SimpleExporterInput(print));
+		exporter.setExporterOutput(output);
+		exporter.exportReport();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The median time spent filling the report, in nanoseconds.
+	 */
+	long getFillNanos() {
+		return fillNanos;
+	}
+
+	/**
+	 * @return The median time spent exporting to every format, in nanoseconds.
+	 */
+	Map<String, Long> getExportNanos() {
+		return exportNanos;
+	}
+
+	int getPages() {
+		return pages;
+	}
+}
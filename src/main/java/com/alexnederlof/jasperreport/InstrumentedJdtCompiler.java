@@ -0,0 +1,236 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.design.JRCompilationSourceCode;
+import net.sf.jasperreports.engine.design.JRCompilationUnit;
+import net.sf.jasperreports.engine.design.JRJdtCompiler;
+import net.sf.jasperreports.engine.design.JRSourceCompileTask;
+import net.sf.jasperreports.engine.design.JasperDesign;
+
+import com.alexnederlof.jasperreport.runtime.PrecompiledJdtCompiler;
+
+/**
+ * The JDT compiler, recording how long it takes to generate and compile the expressions of a
+ * report. When there is an {@link ExpressionBatch}, it hands the compilation of the expressions to
+ * the batch. With an {@link ExpressionClassWriter}, the compiled expressions are written as class
+ * files. The classes the compiled expressions refer to are collected for the
+ * {@link TypeDependencies} of the report.
+ * <p>
+ * JasperReports names the expression classes after the report with a suffix of the time and a
+ * random number, so that classes of different compilations never clash. In reproducible mode the
+ * suffix is a hash of the compiled classes instead, which is just as unique for classes that
+ * differ, but the same for every compilation of the same design.
+ */
+final class InstrumentedJdtCompiler extends JRJdtCompiler {
+
+	/** The suffix JasperReports gives the expression classes: the time and a random number. */
+	private static final Pattern RANDOM_SUFFIX = Pattern.compile("_\\d+_\\d+$");
+	private static final int STABLE_SUFFIX_LENGTH = 16;
+
+	private final CompileMetrics.Report metrics;
+	private final ExpressionBatch batch;
+	private final ExpressionClassWriter classWriter;
+	private final Set<String> referencedTypes;
+	private final String sourceName;
+	private final String reportName;
+	private final boolean reproducible;
+	private Map<String, String> stableNameSuffix = Collections.emptyMap();
+	private JRException failure;
+
+	/**
+	 * @param jasperReportsContext The Jasper context of the report.
+	 * @param metrics The metrics of the report.
+	 * @param batch The batch that compiles the expressions, or <code>null</code> to compile them
+	 *            per report.
+	 * @param classWriter Writes the compiled expressions as class files, or <code>null</code> to keep
+	 *            them in the compiled report.
+	 * @param referencedTypes Receives the internal names of the classes the compiled expressions
+	 *            refer to.
+	 * @param sourceName The path of the design, relative to the source directory.
+	 * @param reportName The name of the report in the design.
+	 * @param reproducible If the expression classes get a suffix that is the same for every
+	 *            compilation of the design.
+	 */
+	InstrumentedJdtCompiler(JasperReportsContext jasperReportsContext, CompileMetrics.Report metrics,
+			ExpressionBatch batch, ExpressionClassWriter classWriter, Set<String> referencedTypes, String sourceName,
+			String reportName, boolean reproducible) {
+		super(jasperReportsContext);
+		this.metrics = metrics;
+		this.batch = batch;
+		this.classWriter = classWriter;
+		this.referencedTypes = referencedTypes;
+		this.sourceName = sourceName;
+		this.reportName = reportName;
+		this.reproducible = reproducible;
+	}
+
+	/**
+	 * The compiled report names the compiler that loads its expressions when it is filled. This
+	 * class only exists in the plugin, so the report names the JDT compiler instead, or the compiler
+	 * that loads the class files of the expressions.
+	 */
+	@Override
+	protected String getCompilerClass() {
+		return classWriter == null ? JRJdtCompiler.class.getName() : PrecompiledJdtCompiler.class.getName();
+	}
+
+	@Override
+	protected JRCompilationSourceCode generateSourceCode(JRSourceCompileTask sourceTask) throws JRException {
+		metrics.begin(CompileMetrics.Phase.GENERATE);
+		try {
+			return super.generateSourceCode(sourceTask);
+		}
+		finally {
+			metrics.end(CompileMetrics.Phase.GENERATE);
+		}
+	}
+
+	/**
+	 * Compiles a design like {@link #compileReport(JasperDesign)}, but throws the exception of a
+	 * failure after the expressions compiled, which JasperReports only gets as a message.
+	 *
+	 * @param design The design.
+	 * @return The compiled report.
+	 * @throws JRException When the design could not be compiled.
+	 */
+	JasperReport compile(JasperDesign design) throws JRException {
+		JasperReport report;
+		try {
+			report = compileReport(design);
+		}
+		catch (JRException e) {
+			if (failure != null) {
+				throw failure;
+			}
+			throw e;
+		}
+		if (reproducible && stableNameSuffix.isEmpty() && report.getCompileNameSuffix() != null) {
+			// JasperReports evaluates simple expressions directly, so a report of only those has no
+			// classes to take a hash of, but still holds the random suffix
+			String stableSuffix = "_" + Digests.sha256(sourceName.replace(File.separatorChar, '/')).substring(0,
+					STABLE_SUFFIX_LENGTH);
+			stableNameSuffix = Collections.singletonMap(report.getCompileNameSuffix(), stableSuffix);
+		}
+		return report;
+	}
+
+	/**
+	 * Compiles the expressions. JasperReports does not let this method throw, so a failure is kept
+	 * for {@link #compile(JasperDesign)} and its message returned as compile errors.
+	 */
+	@Override
+	protected String compileUnits(JRCompilationUnit[] units, String classpath, File tempDirFile) {
+		metrics.begin(CompileMetrics.Phase.JAVA_COMPILE);
+		try {
+			String errors = batch == null ? compileNow(units, classpath, tempDirFile)
+					: batch.compile(this, units, classpath, tempDirFile);
+			if (errors == null && reproducible) {
+				stabilizeNames(units);
+			}
+			if (errors == null) {
+				collectReferencedTypes(units);
+			}
+			if (errors == null && classWriter != null) {
+				classWriter.write(sourceName, reportName, units);
+			}
+			return errors;
+		}
+		catch (JRException e) {
+			failure = e;
+			return e.getMessage();
+		}
+		finally {
+			metrics.end(CompileMetrics.Phase.JAVA_COMPILE);
+		}
+	}
+
+	/**
+	 * Replaces the random suffix of the expression classes by a hash of their bytecode. When the
+	 * classes are written as class files they get names of their own, so only the suffix is
+	 * replaced.
+	 */
+	private void stabilizeNames(JRCompilationUnit[] units) throws JRException {
+		Matcher matcher = RANDOM_SUFFIX.matcher(units[0].getName());
+		if (!matcher.find()) {
+			return;
+		}
+		String suffix = matcher.group();
+		MessageDigest digest = Digests.newDigest();
+		try {
+			for (JRCompilationUnit unit : units) {
+				if (unit.getCompileData() instanceof byte[]) {
+					String name = unit.getName();
+					digest.update(ExpressionClassWriter.rename((byte[]) unit.getCompileData(), name,
+							name.substring(0, name.length() - suffix.length())));
+				}
+			}
+			String stableSuffix = "_" + Digests.toHex(digest.digest()).substring(0, STABLE_SUFFIX_LENGTH);
+			if (classWriter == null) {
+				for (JRCompilationUnit unit : units) {
+					if (unit.getCompileData() instanceof byte[]) {
+						String name = unit.getName();
+						unit.setCompileData(ExpressionClassWriter.rename((byte[]) unit.getCompileData(), name,
+								name.substring(0, name.length() - suffix.length()) + stableSuffix));
+					}
+				}
+			}
+			stableNameSuffix = Collections.singletonMap(suffix, stableSuffix);
+		}
+		catch (IOException e) {
+			throw new JRException("Could not rename the compiled expressions of " + sourceName, e);
+		}
+	}
+
+	/**
+	 * @return The random suffix of the expression classes, mapped to the suffix that replaced it in
+	 *         reproducible mode. The compiled report still holds the random suffix, which has to be
+	 *         replaced when it is written.
+	 */
+	Map<String, String> getStableNameSuffix() {
+		return stableNameSuffix;
+	}
+
+	private void collectReferencedTypes(JRCompilationUnit[] units) throws JRException {
+		for (JRCompilationUnit unit : units) {
+			Serializable compileData = unit.getCompileData();
+			if (compileData instanceof byte[]) {
+				try {
+					referencedTypes.addAll(TypeDependencies.referencedTypes((byte[]) compileData));
+				}
+				catch (IOException e) {
+					throw new JRException("Could not read the compiled expressions of " + sourceName, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compiles the units right away, without a batch.
+	 */
+	String compileNow(JRCompilationUnit[] units, String classpath, File tempDirFile) throws JRException {
+		return super.compileUnits(units, classpath, tempDirFile);
+	}
+}
@@ -0,0 +1,344 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Fills every compiled report in a new JVM that records the classes it loads, and writes them as a
+ * class list for class data sharing. With the list, or an archive created from it, an application
+ * that fills the reports starts without loading and verifying the classes of JasperReports, its
+ * exporters, charts and fonts one by one. Requires Java 9 or later to run the JVM with.
+ */
+@Mojo(name = "class-list", defaultPhase = LifecyclePhase.PACKAGE, requiresDependencyResolution = ResolutionScope.RUNTIME)
+public class JasperClassListGenerator extends JasperReporter {
+
+	/** Classes of the plugin itself, which the application does not load. */
+	private static final String PLUGIN_PACKAGE = ClassListDriver.class.getPackage().getName().replace('.', '/') + "/";
+	private static final String RUNTIME_PACKAGE = PLUGIN_PACKAGE + "runtime/";
+
+	/**
+	 * The class list to write, one class per line, for
+	 * <code>-XX:SharedClassListFile</code>.
+	 *
+	 */
+	@Parameter(property = "jasper.classListFile", defaultValue = "${project.build.directory}/jasperreports.classlist")
+	private File classListFile;
+
+	/**
+	 * The formats every report is exported to, so their classes are in the
+	 * list too: pdf, xlsx, docx, csv or html. Default value is pdf.
+	 *
+	 */
+	@Parameter(defaultValue = "pdf")
+	private List<String> classListFormats = Collections.singletonList("pdf");
+
+	/**
+	 * Also create a class data sharing archive of the classes in the list,
+	 * for <code>-XX:SharedArchiveFile</code>. The archive holds the classes
+	 * of the jars on the classpath of the project, which the application has
+	 * to be started with in the same order, before any other entry. Default
+	 * value is false.
+	 *
+	 */
+	@Parameter(property = "jasper.createArchive", defaultValue = "false")
+	private boolean createArchive;
+
+	/**
+	 * The class data sharing archive to create.
+	 *
+	 */
+	@Parameter(property = "jasper.archiveFile", defaultValue = "${project.build.directory}/jasperreports.jsa")
+	private File archiveFile;
+
+	/**
+	 * How many times the reports are filled in a new JVM with and without the
+	 * archive, to log how much time the archive saves. The median of the runs
+	 * is logged. Default value is 3, 0 skips the comparison.
+	 *
+	 */
+	@Parameter(property = "jasper.startupRuns", defaultValue = "3")
+	private int startupRuns = 3;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		Log log = getLog();
+		if (isSkip()) {
+			log.info("Creating a class list for Jasper reports is skipped.");
+			return;
+		}
+		for (String format : classListFormats) {
+			if (!FillTask.FORMATS.contains(format)) {
+				throw new MojoExecutionException("Unknown class list format " + format + ", use one of "
+						+ FillTask.FORMATS);
+			}
+		}
+		List<String> reports = findCompiledReports(null);
+		if (reports.isEmpty()) {
+			log.info("No compiled Jasper reports to fill in " + getOutputDirectory());
+			return;
+		}
+
+		List<String> archivedJars = new ArrayList<>();
+		Set<String> classpath = new LinkedHashSet<>();
+		for (File file : getClasspathFiles()) {
+			if (file.isFile()) {
+				archivedJars.add(file.getAbsolutePath());
+			}
+		}
+		// An archive only holds classes of jars, which have to come first on the classpath
+		classpath.addAll(archivedJars);
+		for (File file : getClasspathFiles()) {
+			if (file.isDirectory()) {
+				classpath.add(file.getAbsolutePath());
+			}
+		}
+		classpath.addAll(getPluginClasspath());
+
+		File directory = classListFile.getAbsoluteFile().getParentFile();
+		try {
+			Files.createDirectories(directory.toPath());
+			File loaded = Files.createTempFile(directory.toPath(), "loaded", ".classlist").toFile();
+			try {
+				log.info("Filling " + reports.size() + " Jasper reports to record the classes they load.");
+				List<String> options = new ArrayList<>();
+				options.add("-Xshare:off");
+				options.add("-XX:DumpLoadedClassList=" + loaded.getAbsolutePath());
+				int exitCode = fill(options, classpath, reports, true);
+				if (loaded.length() == 0) {
+					throw new MojoExecutionException("Could not fill the reports with " + getJvm()
+							+ ", which needs to be Java 9 or later, see the output above");
+				}
+				if (exitCode != 0) {
+					log.warn("Not all reports could be filled, the class list misses the classes they need");
+				}
+				int classes = writeClassList(loaded, classListFile);
+				log.info("Wrote " + classes + " classes to " + classListFile);
+			}
+			finally {
+				Files.deleteIfExists(loaded.toPath());
+			}
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not write the class list " + classListFile, e);
+		}
+
+		if (!createArchive) {
+			return;
+		}
+		if (archivedJars.isEmpty()) {
+			log.warn("There are no jars on the classpath of the project, not creating an archive");
+			return;
+		}
+		createArchive(archivedJars);
+		if (startupRuns > 0) {
+			compareStartup(classpath, reports);
+		}
+	}
+
+	private void createArchive(List<String> archivedJars) throws MojoExecutionException {
+		File archive = archiveFile.getAbsoluteFile();
+		try {
+			Files.createDirectories(archive.getParentFile().toPath());
+			Files.deleteIfExists(archive.toPath());
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not create the archive " + archive, e);
+		}
+		List<String> command = new ArrayList<>();
+		command.add(getJvm());
+		command.add("-Xshare:dump");
+		command.add("-XX:SharedClassListFile=" + classListFile.getAbsolutePath());
+		command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+		command.add("-cp");
+		command.add(join(archivedJars));
+		if (run(command, null) != 0 || !archive.isFile()) {
+			throw new MojoExecutionException("Could not create the class data sharing archive " + archive
+					+ ", see the output above");
+		}
+		getLog().info("Created the class data sharing archive " + archive + " of " + archive.length() / 1024 + " KB");
+	}
+
+	/**
+	 * Fills all reports in new JVMs with and without the archive, and logs the median times.
+	 */
+	private void compareStartup(Set<String> classpath, List<String> reports) throws MojoExecutionException {
+		double[] without = new double[startupRuns];
+		double[] with = new double[startupRuns];
+		List<String> archive = Collections.singletonList("-XX:SharedArchiveFile=" + archiveFile.getAbsolutePath());
+		for (int i = 0; i < startupRuns; i++) {
+			without[i] = timeFill(Collections.<String> emptyList(), classpath, reports);
+			with[i] = timeFill(archive, classpath, reports);
+		}
+		double withoutMillis = PerformanceBaseline.median(without);
+		double withMillis = PerformanceBaseline.median(with);
+		getLog().info(String.format(Locale.ROOT,
+				"Starting a JVM and filling all reports takes %.0f ms, %.0f ms with the archive: %.0f ms (%.0f%%) less",
+				withoutMillis, withMillis, withoutMillis - withMillis,
+				withoutMillis > 0 ? (withoutMillis - withMillis) * 100 / withoutMillis : 0));
+	}
+
+	private double timeFill(List<String> options, Set<String> classpath, List<String> reports)
+			throws MojoExecutionException {
+		long start = System.nanoTime();
+		fill(options, classpath, reports, false);
+		return (System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Runs the {@link ClassListDriver} in a new JVM.
+	 *
+	 * @return The exit code of the JVM.
+	 */
+	private int fill(List<String> options, Set<String> classpath, List<String> reports, boolean logOutput)
+			throws MojoExecutionException {
+		// The arguments are passed in a file, the command line of many reports may be too long
+		List<String> arguments = new ArrayList<>(options);
+		arguments.add("-cp");
+		arguments.add(join(classpath));
+		arguments.add(ClassListDriver.class.getName());
+		arguments.add(getOutputDirectory().getAbsolutePath());
+		arguments.add(join(classListFormats, ","));
+		arguments.addAll(reports);
+		File argumentFile = null;
+		try {
+			argumentFile = File.createTempFile("jasper", ".args");
+			StringBuilder content = new StringBuilder();
+			for (String argument : arguments) {
+				content.append('"').append(argument.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"\n");
+			}
+			Files.write(argumentFile.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+			List<String> command = new ArrayList<>();
+			command.add(getJvm());
+			command.add("@" + argumentFile.getAbsolutePath());
+			return run(command, logOutput ? null : new ArrayList<String>());
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not run " + getJvm(), e);
+		}
+		finally {
+			if (argumentFile != null && !argumentFile.delete()) {
+				argumentFile.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Runs a command and logs its output.
+	 *
+	 * @param output Receives the output instead of the log, or <code>null</code> to log it.
+	 * @return The exit code.
+	 */
+	private int run(List<String> command, List<String> output) throws MojoExecutionException {
+		Log log = getLog();
+		if (log.isDebugEnabled()) {
+			log.debug("Running " + command);
+		}
+		try {
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			process.getOutputStream().close();
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(),
+					StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (output != null) {
+						output.add(line);
+					}
+					else {
+						log.info("[jvm] " + line);
+					}
+				}
+			}
+			return process.waitFor();
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not run " + command.get(0), e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while running " + command.get(0), e);
+		}
+	}
+
+	/**
+	 * Copies the classes of the loaded list that the application loads, without duplicates.
+	 *
+	 * @return The number of classes in the list.
+	 */
+	static int writeClassList(File loaded, File classList) throws IOException {
+		Set<String> classes = new HashSet<>();
+		StringBuilder content = new StringBuilder();
+		for (String line : Files.readAllLines(loaded.toPath(), StandardCharsets.UTF_8)) {
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+			// Lines like "java/lang/Object id: 1", or "@lambda-proxy ..." for lambdas
+			String name = trimmed.startsWith("@") ? trimmed : trimmed.split("\\s+")[0];
+			if (name.startsWith(PLUGIN_PACKAGE) && !name.startsWith(RUNTIME_PACKAGE)) {
+				continue;
+			}
+			if (trimmed.startsWith("@") && trimmed.contains(" " + PLUGIN_PACKAGE)
+					&& !trimmed.contains(" " + RUNTIME_PACKAGE)) {
+				continue;
+			}
+			if (classes.add(name)) {
+				content.append(trimmed).append('\n');
+			}
+		}
+		AtomicFiles.writeIfChanged(classList.getAbsoluteFile().toPath(), content.toString().getBytes(
+				StandardCharsets.UTF_8));
+		int count = 0;
+		for (String name : classes) {
+			if (!name.startsWith("@")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static String join(Iterable<String> values) {
+		return join(values, File.pathSeparator);
+	}
+
+	private static String join(Iterable<String> values, String separator) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			if (joined.length() > 0) {
+				joined.append(separator);
+			}
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+}
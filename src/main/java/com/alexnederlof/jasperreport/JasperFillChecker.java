@@ -0,0 +1,255 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jasperreports.engine.JasperReportsContext;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Fills every compiled report in the output directory and exports it, in parallel, and logs how
+ * long filling and exporting took and how many pages the report has. Reports are filled with a
+ * single empty record, or with sample data when there is any. This finds reports that compile but
+ * fail when they are filled, like a missing subreport, a class cast in an expression or a font that
+ * is not available, and reports that are far slower than they should be. Any failure fails the
+ * build after all reports were checked.
+ */
+@Mojo(name = "fill-check", defaultPhase = LifecyclePhase.TEST, requiresDependencyResolution = ResolutionScope.COMPILE)
+public class JasperFillChecker extends JasperReporter {
+
+	/**
+	 * The number of runs from which on the median of the timings is stable
+	 * enough to fail the build on a regression.
+	 */
+	private static final int MEDIAN_RUNS = 3;
+
+	/**
+	 * The formats every report is exported to after it was filled: pdf,
+	 * xlsx, docx, csv or html. The exported reports are discarded. Default
+	 * value is pdf.
+	 *
+	 */
+	@Parameter(defaultValue = "pdf")
+	private List<String> fillCheckFormats = Collections.singletonList("pdf");
+
+	/**
+	 * A directory with sample data for the reports, with the same structure
+	 * as the <code>outputDirectory</code>. A report like
+	 * <code>invoices/Invoice.jasper</code> is filled with the records of
+	 * <code>invoices/Invoice.csv</code>, a UTF-8 CSV file whose first row
+	 * holds the field names. Reports without a CSV file are filled with a
+	 * single empty record.
+	 *
+	 */
+	@Parameter
+	private File sampleDataDirectory;
+
+	/**
+	 * Patterns of reports that are not checked, relative to the
+	 * <code>outputDirectory</code>, like <code>internal/**</code>.
+	 *
+	 */
+	@Parameter
+	private List<String> fillCheckExcludes;
+
+	/**
+	 * The longest a report may take to fill, in milliseconds. Reports that
+	 * take longer fail the check. Default value is 0, which allows any time.
+	 *
+	 */
+	@Parameter(property = "jasper.maxFillTime", defaultValue = "0")
+	private long maxFillTime;
+
+	/**
+	 * How many times every report is filled and exported. The logged times,
+	 * and the times compared with the <code>performanceBaseline</code>, are
+	 * the medians of all runs, which makes them less sensitive to noise like
+	 * the first run loading classes. With fewer than 3 runs a regression only
+	 * logs a warning, see <code>failOnSingleRunRegression</code>. Default
+	 * value is 1.
+	 *
+	 */
+	@Parameter(property = "jasper.fillCheckRuns", defaultValue = "1")
+	private int fillCheckRuns = 1;
+
+	/**
+	 * Skips the fill check. Default value is the <code>skipTests</code>
+	 * property.
+	 *
+	 */
+	@Parameter(property = "jasper.skipFillCheck", defaultValue = "${skipTests}")
+	private boolean skipFillCheck;
+
+	private List<FillTask> filledReports = Collections.emptyList();
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		Log log = getLog();
+		if (isSkip() || skipFillCheck) {
+			log.info("Checking Jasper reports is skipped.");
+			return;
+		}
+		for (String format : fillCheckFormats) {
+			if (!FillTask.FORMATS.contains(format)) {
+				throw new MojoExecutionException("Unknown fill check format " + format + ", use one of "
+						+ FillTask.FORMATS);
+			}
+		}
+		File outputDirectory = getOutputDirectory();
+		List<FillTask> tasks = createTasks(outputDirectory, createJasperContext());
+		if (tasks.isEmpty()) {
+			log.info("No compiled Jasper reports to check in " + outputDirectory);
+			return;
+		}
+
+		log.info("Filling " + tasks.size() + " Jasper reports.");
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		ClassLoader fillClassLoader = getClassLoader(classLoader);
+		Thread.currentThread().setContextClassLoader(fillClassLoader);
+		int threads = getNumberOfThreads();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			long start = System.nanoTime();
+			List<Future<FillTask>> futures = new ArrayList<>();
+			for (FillTask task : tasks) {
+				futures.add(executor.submit(task));
+			}
+
+			List<FillTask> filled = new ArrayList<>();
+			Map<String, String> failures = new TreeMap<>();
+			for (int i = 0; i < tasks.size(); i++) {
+				String name = tasks.get(i).getName();
+				try {
+					FillTask task = futures.get(i).get();
+					filled.add(task);
+					long millis = TimeUnit.NANOSECONDS.toMillis(task.getFillNanos());
+					if (maxFillTime > 0 && millis > maxFillTime) {
+						failures.put(name, "took " + millis + " ms to fill, more than " + maxFillTime + " ms");
+					}
+				}
+				catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					log.error("Could not fill " + name + " because " + cause.getMessage(), cause);
+					failures.put(name, String.valueOf(cause.getMessage()));
+				}
+			}
+
+			filledReports = filled;
+			logResults(log, filled);
+			log.info("Checked " + tasks.size() + " reports in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms on " + threads + " threads");
+			if (!failures.isEmpty()) {
+				for (Map.Entry<String, String> failure : failures.entrySet()) {
+					log.error(failure.getKey() + ": " + failure.getValue());
+				}
+				throw new MojoExecutionException(failures.size() + " of " + tasks.size()
+						+ " reports failed the fill check: " + failures.keySet());
+			}
+			checkPerformance(getTimings(filled), fillCheckRuns >= MEDIAN_RUNS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while filling reports", e);
+		}
+		finally {
+			executor.shutdownNow();
+			Thread.currentThread().setContextClassLoader(classLoader);
+			releaseClassLoader(fillClassLoader);
+		}
+	}
+
+	/**
+	 * @return The reports the last execution filled, sorted by name, without the ones that failed.
+	 */
+	List<FillTask> getFilledReports() {
+		return filledReports;
+	}
+
+	/**
+	 * Creates a task for every compiled report, sorted by name.
+	 */
+	private List<FillTask> createTasks(File outputDirectory, JasperReportsContext jasperContext)
+			throws MojoExecutionException {
+		String extension = getOutputFileExt();
+		List<FillTask> tasks = new ArrayList<>();
+		for (String name : findCompiledReports(fillCheckExcludes)) {
+			tasks.add(new FillTask(new File(outputDirectory, name), name, getSampleData(name, extension),
+					outputDirectory, jasperContext, fillCheckFormats, fillCheckRuns));
+		}
+		return tasks;
+	}
+
+	private File getSampleData(String name, String extension) {
+		if (sampleDataDirectory == null) {
+			return null;
+		}
+		File csv = new File(sampleDataDirectory, name.substring(0, name.length() - extension.length()) + ".csv");
+		return csv.isFile() ? csv : null;
+	}
+
+	private void logResults(Log log, List<FillTask> filled) {
+		if (filled.isEmpty()) {
+			return;
+		}
+		StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "%9s %6s", "fill", "pages"));
+		for (String format : fillCheckFormats) {
+			header.append(String.format(Locale.ROOT, " %8s", format));
+		}
+		log.info("Filled reports (ms):");
+		log.info(header.append("  report").toString());
+		for (FillTask task : filled) {
+			StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%9.1f %6d", millis(task.getFillNanos()),
+					task.getPages()));
+			for (String format : fillCheckFormats) {
+				line.append(String.format(Locale.ROOT, " %8.1f", millis(task.getExportNanos().get(format))));
+			}
+			log.info(line.append("  ").append(task.getName()).toString());
+		}
+	}
+
+	/**
+	 * @return The fill and export times by their name in the performance baseline.
+	 */
+	private static Map<String, Double> getTimings(List<FillTask> filled) {
+		Map<String, Double> timings = new TreeMap<>();
+		for (FillTask task : filled) {
+			timings.put("fill/" + task.getName(), millis(task.getFillNanos()));
+			for (Map.Entry<String, Long> export : task.getExportNanos().entrySet()) {
+				timings.put("export." + export.getKey() + "/" + task.getName(), millis(export.getValue()));
+			}
+		}
+		return timings;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,205 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jasperreports.engine.JasperReportsContext;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Fills the configured {@link Document}s with their data files and exports them to PDF, Excel,
+ * Word, CSV or HTML files, several documents at the same time. The pages of every document are
+ * swapped to disk beyond a number of pages in memory, and the exports are written straight to
+ * their files, so the memory a document needs does not grow with its number of pages. The pages
+ * per second of every document are logged. Any failure fails the build after all documents were
+ * rendered.
+ */
+@Mojo(name = "render", defaultPhase = LifecyclePhase.PREPARE_PACKAGE, requiresDependencyResolution = ResolutionScope.RUNTIME)
+public class JasperRenderer extends JasperReporter {
+
+	/**
+	 * The documents to render.
+	 *
+	 */
+	@Parameter
+	private List<Document> documents;
+
+	/**
+	 * The directory to write the rendered documents to.
+	 *
+	 */
+	@Parameter(property = "jasper.renderDirectory", defaultValue = "${project.build.directory}/jasperreports")
+	private File renderDirectory;
+
+	/**
+	 * The number of pages of a document that are kept in memory while it is
+	 * filled and exported. The other pages are kept in a swap file. Default
+	 * value is 100.
+	 *
+	 */
+	@Parameter(property = "jasper.virtualizerMaxPages", defaultValue = "100")
+	private int virtualizerMaxPages = 100;
+
+	/**
+	 * The directory of the swap files. Default value is the temporary
+	 * directory of the JVM.
+	 *
+	 */
+	@Parameter(property = "jasper.swapDirectory")
+	private File swapDirectory;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		Log log = getLog();
+		if (isSkip()) {
+			log.info("Rendering Jasper reports is skipped.");
+			return;
+		}
+		if (documents == null || documents.isEmpty()) {
+			log.info("No documents to render.");
+			return;
+		}
+		checkDocuments();
+		File swap = swapDirectory == null ? new File(System.getProperty("java.io.tmpdir")) : swapDirectory;
+		try {
+			Files.createDirectories(renderDirectory.toPath());
+			Files.createDirectories(swap.toPath());
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not create the directories to render in", e);
+		}
+
+		JasperReportsContext jasperContext = createJasperContext();
+		List<RenderTask> tasks = new ArrayList<>();
+		for (Document document : documents) {
+			tasks.add(new RenderTask(document, getOutputDirectory(), renderDirectory, swap, virtualizerMaxPages,
+					jasperContext));
+		}
+
+		log.info("Rendering " + tasks.size() + " documents.");
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		ClassLoader renderClassLoader = getClassLoader(classLoader);
+		Thread.currentThread().setContextClassLoader(renderClassLoader);
+		int threads = Math.min(getNumberOfThreads(), tasks.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			long start = System.nanoTime();
+			CompletionService<RenderTask> completionService = new ExecutorCompletionService<>(executor);
+			Map<Future<RenderTask>, Document> futures = new HashMap<>();
+			for (RenderTask task : tasks) {
+				futures.put(completionService.submit(task), task.getDocument());
+			}
+
+			Map<String, String> failures = new TreeMap<>();
+			int pages = 0;
+			for (int i = 0; i < tasks.size(); i++) {
+				Future<RenderTask> done = completionService.take();
+				Document document = futures.get(done);
+				try {
+					RenderTask task = done.get();
+					pages += task.getPages();
+					logResult(log, task);
+				}
+				catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					log.error("Could not render " + document + " because " + cause.getMessage(), cause);
+					failures.put(document.toString(), String.valueOf(cause.getMessage()));
+				}
+			}
+
+			long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			log.info(String.format(Locale.ROOT, "Rendered %d pages of %d documents in %d ms on %d threads",
+					pages, tasks.size() - failures.size(), millis, threads));
+			if (!failures.isEmpty()) {
+				for (Map.Entry<String, String> failure : failures.entrySet()) {
+					log.error(failure.getKey() + ": " + failure.getValue());
+				}
+				throw new MojoExecutionException(failures.size() + " of " + tasks.size()
+						+ " documents could not be rendered: " + failures.keySet());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while rendering documents", e);
+		}
+		finally {
+			executor.shutdownNow();
+			Thread.currentThread().setContextClassLoader(classLoader);
+			releaseClassLoader(renderClassLoader);
+		}
+	}
+
+	/**
+	 * Checks that every document has a report and known formats, and that no two documents write the
+	 * same file.
+	 */
+	private void checkDocuments() throws MojoExecutionException {
+		Set<String> files = new HashSet<>();
+		for (Document document : documents) {
+			if (document.getReport() == null) {
+				throw new MojoExecutionException("A document has no report");
+			}
+			for (String format : document.getFormats()) {
+				if (!FillTask.FORMATS.contains(format)) {
+					throw new MojoExecutionException("Unknown format " + format + " of document " + document
+							+ ", use one of " + FillTask.FORMATS);
+				}
+				if (!files.add(document.getName() + "." + format)) {
+					throw new MojoExecutionException("More than one document renders " + document.getName() + "."
+							+ format + ", give them different names");
+				}
+			}
+		}
+	}
+
+	private static void logResult(Log log, RenderTask task) {
+		long total = task.getFillNanos();
+		StringBuilder exports = new StringBuilder();
+		for (Map.Entry<String, Long> export : task.getExportNanos().entrySet()) {
+			total += export.getValue();
+			exports.append(String.format(Locale.ROOT, ", %s %.1f s %d KB", export.getKey(), seconds(export
+					.getValue()), task.getFiles().get(export.getKey()).length() / 1024));
+		}
+		log.info(String.format(Locale.ROOT, "Rendered %s: %d pages in %.1f s, %.1f pages/s (fill %.1f s%s)",
+				task.getDocument(), task.getPages(), seconds(total), total > 0 ? task.getPages() / seconds(total) : 0,
+				seconds(task.getFillNanos()), exports));
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+	}
+}
@@ -13,24 +13,38 @@ package com.alexnederlof.jasperreport;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.jasperreports.engine.DefaultJasperReportsContext;
 import net.sf.jasperreports.engine.JRException;
-import net.sf.jasperreports.engine.JRPropertiesUtil;
+import net.sf.jasperreports.engine.JasperCompileManager;
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.SimpleJasperReportsContext;
 import net.sf.jasperreports.engine.design.JRCompiler;
 import net.sf.jasperreports.engine.design.JRJdtCompiler;
 import net.sf.jasperreports.engine.xml.JRReportSaxParserFactory;
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
@@ -56,6 +70,12 @@ public class JasperReporter extends AbstractMojo {
 	static final String ERROR_JRE_COMPILE_ERROR =
 			"Some Jasper reports could not be compiled. See log above for details.";
 
+	/**
+	 * The hashes of the classpath files the build cache was keyed with, by
+	 * path, with the size and modification time they had.
+	 */
+	private static final Map<String, String> CONTENT_HASHES = new ConcurrentHashMap<>();
+
 	/**
 	 * This is the java compiler used
 	 */
@@ -112,12 +132,12 @@ public class JasperReporter extends AbstractMojo {
 	private boolean verbose;
 
 	/**
-	 * The number of threads the reporting will use. Default is 4 which is good
-	 * for a lot of reports on a hard drive (in stead of SSD). If you only have
-	 * a few, or if you have SSD, it might be faster to set it to 2.
+	 * The number of threads the reporting will use. Default is 0, which uses
+	 * one thread per available processor. Reports are started longest first,
+	 * based on how long they took to compile in earlier builds.
 	 *
 	 */
-	@Parameter(defaultValue = "4")
+	@Parameter(defaultValue = "0")
 	private int numberOfThreads;
 
 	@Parameter(property = "project.compileClasspathElements")
@@ -181,6 +201,304 @@ public class JasperReporter extends AbstractMojo {
 	@Parameter
 	private String additionalClasspath;
 
+	/**
+	 * This is where the plug-in keeps its state between builds, such as the
+	 * manifest of compiled reports. Every execution uses its own directory.
+	 *
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/jasperreports-plugin/${mojoExecution.executionId}")
+	private File stateDirectory;
+
+	/**
+	 * If incremental is on, the plug-in records a hash of every compiled report,
+	 * of the Jasper configuration and of the classpath in a manifest in the
+	 * <code>stateDirectory</code>. Only reports whose inputs changed since the
+	 * previous build are compiled, regardless of file timestamps. This replaces
+	 * the timestamp check of the <code>StaleSourceScanner</code>. Default value
+	 * is true.
+	 *
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean incremental = true;
+
+	/**
+	 * Set this to a directory to reuse compiled reports from earlier builds,
+	 * other branches or other machines. Reports are looked up by the hash of
+	 * their design, the Jasper version, the Jasper configuration and the
+	 * contents of the classpath, wherever it is. The directory may be on a
+	 * shared file system. By default no build cache is used.
+	 *
+	 */
+	@Parameter(property = "jasper.buildCacheDirectory")
+	private File buildCacheDirectory;
+
+	/**
+	 * The maximum size of the <code>buildCacheDirectory</code> in megabytes.
+	 * The least recently used reports are removed when the cache grows larger.
+	 * Default value is 1024.
+	 *
+	 */
+	@Parameter(defaultValue = "1024")
+	private long buildCacheMaxSize = 1024;
+
+	/**
+	 * The number of reports whose expressions are compiled by one run of the
+	 * JDT compiler. Setting up a compiler run costs more than compiling the
+	 * expressions of a typical report, so batching speeds up large report sets.
+	 * Up to <code>numberOfThreads</code> batches are compiled at the same time,
+	 * which means that up to <code>numberOfThreads</code> times
+	 * <code>expressionBatchSize</code> report designs are kept in memory. Only
+	 * applies to the default JDT <code>compiler</code>. Default value is 0,
+	 * which compiles the expressions of every report on its own.
+	 *
+	 */
+	@Parameter(defaultValue = "0")
+	private int expressionBatchSize;
+
+	/**
+	 * Write the compiled expressions of every report as a class file in this
+	 * package, instead of keeping their bytecode in the compiled report. The
+	 * class of <code>invoices/Invoice.jrxml</code> is named
+	 * <code>invoices.Invoice</code> in the package. The compiled reports only
+	 * name their classes, and need the <code>runtime</code> artifact of the
+	 * plugin to be filled. Only applies to the default JDT
+	 * <code>compiler</code>. Default value is none, which keeps the
+	 * expressions in the compiled reports.
+	 *
+	 */
+	@Parameter(property = "jasper.expressionClassesPackage")
+	private String expressionClassesPackage;
+
+	/**
+	 * The root directory of the classes of the
+	 * <code>expressionClassesPackage</code>. Default value is the class output
+	 * directory of the project, so the classes are packaged and loaded like
+	 * the other classes of the project.
+	 *
+	 */
+	@Parameter(defaultValue = "${project.build.outputDirectory}")
+	private File expressionClassesDirectory;
+
+	/**
+	 * Compile every report to the same bytes, as long as its design, the
+	 * version of JasperReports and the configuration stay the same. The
+	 * expression classes are named after a hash of their bytecode instead of
+	 * the time, and elements without a <code>uuid</code> in the design get
+	 * one derived from the path of the design instead of a random one. The
+	 * names of the expression classes are only stable with the default JDT
+	 * <code>compiler</code>. Default value is false.
+	 *
+	 */
+	@Parameter(property = "jasper.reproducible", defaultValue = "false")
+	private boolean reproducible;
+
+	/**
+	 * Stop compiling at the first report that fails. Reports that did not
+	 * start yet are skipped and running ones are interrupted, so a broken
+	 * build fails without waiting for all other reports. Default value is
+	 * false.
+	 *
+	 */
+	@Parameter(property = "jasper.failFast", defaultValue = "false")
+	private boolean failFast;
+
+	/**
+	 * Stop compiling when this many reports failed, like <code>failFast</code>
+	 * but allowing more errors to be reported at once. Default value is 0,
+	 * which compiles all reports whatever the number of errors.
+	 *
+	 */
+	@Parameter(property = "jasper.maxErrors", defaultValue = "0")
+	private int maxErrors;
+
+	/**
+	 * Check the report designs before the first one is compiled: the XML
+	 * and the styles, subreports, images, style templates and classes they
+	 * refer to. All problems of all designs are reported at once and nothing
+	 * is compiled when there is any. The same check is run on its own by the
+	 * <code>validate</code> goal. Default value is false.
+	 *
+	 */
+	@Parameter(property = "jasper.lint", defaultValue = "false")
+	private boolean lint;
+
+	/**
+	 * The number of reports that took longest to compile that are logged,
+	 * with the time spent in every phase of their compilation. The metrics of
+	 * all reports are written to <code>metrics.json</code> in the
+	 * <code>stateDirectory</code>. Default value is 20, 0 logs none.
+	 *
+	 */
+	@Parameter(defaultValue = "20")
+	private int slowestReports = 20;
+
+	/**
+	 * Set this to a file to also pack all compiled reports into a single
+	 * bundle, with an index of the reports at its start. At runtime the
+	 * bundle is opened with
+	 * <code>com.alexnederlof.jasperreport.runtime.ReportBundle</code>, from
+	 * the <code>runtime</code> artifact of this plug-in, which maps it into
+	 * memory and loads reports by their path relative to the
+	 * <code>outputDirectory</code>. By default no bundle is written.
+	 *
+	 */
+	@Parameter(property = "jasper.bundleFile")
+	private File bundleFile;
+
+	/**
+	 * If the reports in the <code>bundleFile</code> are compressed. This makes
+	 * the bundle smaller, but loading a report slower. Default value is false.
+	 *
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean bundleCompression;
+
+	/**
+	 * Set this to a file, like
+	 * <code>src/test/jasper-baseline.properties</code>, to compare the
+	 * compile times of the reports, and the fill and export times of the
+	 * <code>fill-check</code> goal, with the times recorded in it. A report
+	 * that became slower than <code>regressionTolerance</code> allows is a
+	 * regression. Record the baseline with <code>recordBaseline</code>. By
+	 * default timings are not compared.
+	 *
+	 */
+	@Parameter(property = "jasper.performanceBaseline")
+	private File performanceBaseline;
+
+	/**
+	 * Write the timings of this build to the <code>performanceBaseline</code>
+	 * instead of comparing them with it. Timings of reports that were not
+	 * compiled or filled in this build are kept. Default value is false.
+	 *
+	 */
+	@Parameter(property = "jasper.recordBaseline", defaultValue = "false")
+	private boolean recordBaseline;
+
+	/**
+	 * How much slower than the <code>performanceBaseline</code> a report may
+	 * become, in percent. Default value is 50.
+	 *
+	 */
+	@Parameter(property = "jasper.regressionTolerance", defaultValue = "50")
+	private int regressionTolerance = 50;
+
+	/**
+	 * How much slower than the <code>performanceBaseline</code> a report must
+	 * become to be a regression, in milliseconds, so that a few milliseconds
+	 * of noise on a fast report are not reported. Default value is 50.
+	 *
+	 */
+	@Parameter(property = "jasper.regressionMinimum", defaultValue = "50")
+	private long regressionMinimum = 50;
+
+	/**
+	 * Fail the build when a report regressed against the
+	 * <code>performanceBaseline</code>. When off, regressions are only logged
+	 * as warnings. Only timings that are the median of several runs, the fill
+	 * and export times of a <code>fill-check</code> with at least 3
+	 * <code>fillCheckRuns</code>, fail the build, unless
+	 * <code>failOnSingleRunRegression</code> is on. Default value is true.
+	 *
+	 */
+	@Parameter(property = "jasper.failOnRegression", defaultValue = "true")
+	private boolean failOnRegression = true;
+
+	/**
+	 * Also fail the build when a timing that was measured once regressed:
+	 * the compile times, which are measured once per build, and the fill and
+	 * export times of a <code>fill-check</code> with less than 3
+	 * <code>fillCheckRuns</code>. A single run is easily slowed down by a
+	 * busy machine, so by default these regressions are only logged as
+	 * warnings. Default value is false.
+	 *
+	 */
+	@Parameter(property = "jasper.failOnSingleRunRegression", defaultValue = "false")
+	private boolean failOnSingleRunRegression;
+
+	/**
+	 * Compile the reports of all modules of a parallel build
+	 * (<code>mvn -T</code>) on one pool of threads, instead of a pool of
+	 * <code>numberOfThreads</code> threads per module. The modules take turns
+	 * on the threads of the pool, so the number of reports compiled at the
+	 * same time no longer grows with the number of modules. Default value is
+	 * false.
+	 *
+	 */
+	@Parameter(property = "jasper.sharedWorkerPool", defaultValue = "false")
+	private boolean sharedWorkerPool;
+
+	/**
+	 * The number of threads of the <code>sharedWorkerPool</code>. The first
+	 * execution of the build that uses the pool decides its size. Default
+	 * value is 0, which uses as many threads as there are processors.
+	 *
+	 */
+	@Parameter(property = "jasper.sharedWorkerPoolSize", defaultValue = "0")
+	private int sharedWorkerPoolSize;
+
+	/**
+	 * The memory in megabytes that the reports compiled at the same time may
+	 * use together. The memory a report needs is estimated from its size,
+	 * and after it was compiled once from the bytes its compilation
+	 * allocated, which are kept with the compile times in the
+	 * <code>stateDirectory</code>. Allocated bytes include garbage, so they
+	 * overestimate what a report keeps on the heap; the budget compares
+	 * reports with each other rather than measuring the heap. A large report
+	 * waits for running reports to finish while smaller ones take the free
+	 * threads; a report larger than the budget compiles on its own. Default
+	 * value is 0, which only limits the number of threads.
+	 *
+	 */
+	@Parameter(property = "jasper.heapBudget", defaultValue = "0")
+	private int heapBudget;
+
+	/**
+	 * Compile the reports in worker JVMs instead of in the JVM of Maven.
+	 * Every worker has a heap, garbage collector and JIT of its own, so more
+	 * reports compile at the same time without competing for memory, and a
+	 * compiler that misbehaves can not bring down the build. The workers are
+	 * started once and compile the reports of every module of the build.
+	 * Default value is false.
+	 *
+	 */
+	@Parameter(property = "jasper.forkWorkers", defaultValue = "false")
+	private boolean forkWorkers;
+
+	/**
+	 * The number of worker JVMs of <code>forkWorkers</code>. The first
+	 * execution of the build that forks decides the number. Default value is
+	 * 0, which starts as many workers as there are processors.
+	 *
+	 */
+	@Parameter(property = "jasper.forkCount", defaultValue = "0")
+	private int forkCount;
+
+	/**
+	 * The options of the worker JVMs of <code>forkWorkers</code>, separated
+	 * by spaces, for example <code>-Xmx512m</code>.
+	 *
+	 */
+	@Parameter(property = "jasper.forkJvmArgs")
+	private String forkJvmArgs;
+
+	/**
+	 * The java executable of the JVMs the plugin starts: the worker JVMs of
+	 * <code>forkWorkers</code> and the JVM of the <code>class-list</code>
+	 * goal, which should be the Java version of the application, as a class
+	 * list or archive only works with the JVM it was created with. Default
+	 * value is the java of the build.
+	 *
+	 */
+	@Parameter(property = "jasper.jvm", defaultValue = "${java.home}/bin/java")
+	private String jvm;
+
+	@Parameter(defaultValue = "${plugin.artifacts}", readonly = true)
+	private List<Artifact> pluginArtifacts;
+
+	@Parameter(defaultValue = "${session}", readonly = true)
+	private Object session;
+
 	private Log log;
 
 	public JasperReporter() {
@@ -203,43 +521,277 @@ public class JasperReporter extends AbstractMojo {
 		checkOutDirWritable(outputDirectory);
 
 		SourceMapping mapping = new SuffixMapping(sourceFileExt, outputFileExt);
-		Set<File> sources = jrxmlFilesToCompile(mapping);
-		if (sources.isEmpty()) {
-			log.info("Nothing to compile - all Jasper reports are up to date");
-		}
-		else {
-			log.info("Compiling " + sources.size() + " Jasper reports design files.");
+		CompilationManifest manifest = loadManifest();
+		Map<File, String> hashes = new HashMap<>();
+		Set<File> allSources = allJrxmlFiles(mapping);
+		ReportDependencyGraph graph = createDependencyGraph(allSources);
+		Set<File> sources = jrxmlFilesToCompile(allSources, graph, mapping, manifest, hashes);
+		try {
+			if (sources.isEmpty()) {
+				log.info("Nothing to compile - all Jasper reports are up to date");
+			}
+			else {
+				log.info("Compiling " + sources.size() + " Jasper reports design files.");
 
-			List<CompileTask> tasks = generateTasks(sources, mapping);
-			if (tasks.isEmpty()) {
-				log.info("Nothing to compile");
-				return;
+				ExpressionClassWriter classWriter = createExpressionClassWriter(allSources, manifest);
+				if (reproducible && !isJdtCompiler()) {
+					log.warn("The expression classes are only named reproducibly by " + JRJdtCompiler.class.getName());
+				}
+				WorkerJvmPool workerPool = getWorkerPool(classWriter);
+				BuildCache buildCache = createBuildCache();
+				ExpressionBatch expressionBatch = workerPool == null ? createExpressionBatch() : null;
+				CompileMetrics metrics = new CompileMetrics();
+				JasperReportsContext jasperContext = createJasperContext();
+				List<CompileTask> tasks = generateTasks(sources, mapping, jasperContext, buildCache, expressionBatch,
+						classWriter, workerPool == null ? null : workerPool.newSession(getClasspathFiles(),
+								getJasperProperties()), metrics);
+				if (tasks.isEmpty()) {
+					log.info("Nothing to compile");
+					return;
+				}
+
+				ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+				ClassLoader compileClassLoader = getClassLoader(classLoader);
+				Thread.currentThread().setContextClassLoader(compileClassLoader);
+				int threads = getNumberOfThreads();
+				try {
+					if (lint) {
+						lint(sources, allSources, jasperContext, compileClassLoader);
+					}
+					if (workerPool != null) {
+						// The workers have heaps of their own
+						executeTasks(tasks, graph, manifest, hashes, workerPool.getSize(), 0);
+					}
+					else {
+						executeTasks(tasks, graph, manifest, hashes, expressionBatch == null ? threads
+								: threads * expressionBatchSize, getHeapBudgetBytes());
+					}
+					checkPerformance(metrics.getCompileMillis(), false);
+				}
+				finally {
+					reportMetrics(metrics, threads);
+					if (expressionBatch != null) {
+						expressionBatch.logStatistics();
+					}
+					if (buildCache != null) {
+						buildCache.logStatistics();
+						buildCache.evict();
+					}
+					if (classLoader != null) {
+						Thread.currentThread().setContextClassLoader(classLoader);
+					}
+					releaseClassLoader(compileClassLoader);
+				}
 			}
+		}
+		finally {
+			saveManifest(manifest);
+		}
+		writeBundle(allSources);
+	}
 
-			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-			Thread.currentThread().setContextClassLoader(getClassLoader(classLoader));
+	/**
+	 * Compiles the report designs that changed, together with the reports
+	 * that embed them, with the class loader that is already in place. The
+	 * compiled reports of deleted designs are removed.
+	 *
+	 * @param files The files that changed. Files that are not report designs
+	 *            are ignored.
+	 * @param jasperContext The Jasper configuration to compile with, see
+	 *            {@link #createJasperContext()}.
+	 * @return The number of compiled reports.
+	 * @throws MojoExecutionException When a report could not be compiled.
+	 */
+	int recompile(Set<File> files, JasperReportsContext jasperContext) throws MojoExecutionException {
+		SourceMapping mapping = new SuffixMapping(sourceFileExt, outputFileExt);
+		CompilationManifest manifest = loadManifest();
+		String root = getCanonicalSourceDirectory();
+		Set<String> changed = new HashSet<>();
+		boolean deleted = false;
+		for (File file : files) {
+			if (!file.getName().endsWith(sourceFileExt)) {
+				continue;
+			}
+			String srcName = getRelativePath(root, file);
+			if (file.isFile()) {
+				changed.add(srcName);
+				continue;
+			}
 			try {
-				configureJasper();
-				executeTasks(tasks);
+				for (File destination : mapping.getTargetFiles(outputDirectory, srcName)) {
+					if (destination.delete()) {
+						log.info("Removed " + destination.getName() + " because " + srcName + " was deleted");
+					}
+				}
 			}
-			finally {
-				if (classLoader != null) {
-					Thread.currentThread().setContextClassLoader(classLoader);
+			catch (InclusionScanException e) {
+				throw new MojoExecutionException("Error removing compiled report of " + srcName, e);
+			}
+			if (manifest != null) {
+				deleteExpressionClasses(manifest.forget(srcName));
+			}
+			deleted = true;
+		}
+
+		try {
+			Set<File> allSources = allJrxmlFiles(mapping);
+			Set<File> stale = new HashSet<>();
+			for (File src : allSources) {
+				if (changed.contains(getRelativePath(root, src))) {
+					stale.add(src);
+				}
+			}
+			if (stale.isEmpty()) {
+				if (deleted) {
+					writeBundle(allSources);
+				}
+				return 0;
+			}
+			ReportDependencyGraph graph = createDependencyGraph(allSources);
+			Set<File> sources = graph.withDependents(stale);
+			Map<File, String> hashes = new HashMap<>();
+			for (File src : sources) {
+				try {
+					hashes.put(src, Digests.sha256(src));
+				}
+				catch (IOException e) {
+					throw new MojoExecutionException("Could not read report design " + src, e);
 				}
 			}
+			List<CompileTask> tasks = generateTasks(sources, mapping, jasperContext, null, null,
+					createExpressionClassWriter(allSources, manifest), null, new CompileMetrics());
+			executeTasks(tasks, graph, manifest, hashes, getNumberOfThreads(), getHeapBudgetBytes());
+			writeBundle(allSources);
+			return tasks.size();
+		}
+		finally {
+			saveManifest(manifest);
+		}
+	}
+
+	/**
+	 * Checks report designs with a {@link DesignLinter}, on
+	 * <code>numberOfThreads</code> threads.
+	 *
+	 * @param sources The designs to check.
+	 * @param allSources All designs, which subreports may refer to.
+	 * @param jasperContext The Jasper configuration, see
+	 *            {@link #createJasperContext()}.
+	 * @param classLoader The class loader of the reports, see
+	 *            {@link #getClassLoader(ClassLoader)}.
+	 * @throws MojoExecutionException Listing all problems, when there are
+	 *             any.
+	 */
+	void lint(Set<File> sources, Set<File> allSources, JasperReportsContext jasperContext, ClassLoader classLoader)
+			throws MojoExecutionException {
+		Log log = getLog();
+		long start = System.nanoTime();
+		DesignLinter linter = new DesignLinter(jasperContext, classLoader, sourceDirectory, allSources,
+				sourceFileExt, outputDirectory, outputFileExt);
+		List<DesignLinter.Problem> problems;
+		try {
+			problems = linter.lint(sources, getNumberOfThreads());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted while checking report designs", e);
+		}
+		log.info("Checked " + sources.size() + " report designs in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		if (problems.isEmpty()) {
+			return;
+		}
+		Set<String> designs = new TreeSet<>();
+		StringBuilder message = new StringBuilder();
+		for (DesignLinter.Problem problem : problems) {
+			log.error(problem.toString());
+			designs.add(problem.getSourceName());
+			message.append(System.lineSeparator()).append(problem);
+		}
+		throw new MojoExecutionException(problems.size() + " problems in " + designs.size() + " of "
+				+ sources.size() + " report designs:" + message);
+	}
+
+	/**
+	 * @return All report designs in the <code>sourceDirectory</code>.
+	 * @throws MojoExecutionException When the source directory could not be
+	 *             scanned.
+	 */
+	Set<File> findSources() throws MojoExecutionException {
+		return allJrxmlFiles(new SuffixMapping(sourceFileExt, outputFileExt));
+	}
+
+	File getSourceDirectory() {
+		return sourceDirectory;
+	}
+
+	File getOutputDirectory() {
+		return outputDirectory;
+	}
+
+	String getOutputFileExt() {
+		return outputFileExt;
+	}
+
+	/**
+	 * Finds the compiled reports in the <code>outputDirectory</code>.
+	 *
+	 * @param excludes Patterns of reports to leave out, relative to the
+	 *            output directory, like <code>internal/**</code>, or
+	 *            <code>null</code>.
+	 * @return The paths of the reports relative to the output directory, with
+	 *         <code>/</code> as separator, sorted.
+	 * @throws MojoExecutionException When the output directory could not be
+	 *             read.
+	 */
+	List<String> findCompiledReports(List<String> excludes) throws MojoExecutionException {
+		final List<String> names = new ArrayList<>();
+		if (!outputDirectory.isDirectory()) {
+			return names;
+		}
+		final Path root = outputDirectory.toPath();
+		final List<PathMatcher> matchers = new ArrayList<>();
+		if (excludes != null) {
+			for (String exclude : excludes) {
+				matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + exclude));
+			}
+		}
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					Path relative = root.relativize(file);
+					String name = relative.toString().replace(File.separatorChar, '/');
+					if (!name.endsWith(outputFileExt)) {
+						return FileVisitResult.CONTINUE;
+					}
+					for (PathMatcher exclude : matchers) {
+						if (exclude.matches(relative)) {
+							return FileVisitResult.CONTINUE;
+						}
+					}
+					names.add(name);
+					return FileVisitResult.CONTINUE;
+				}
+			});
 		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not find the compiled reports in " + outputDirectory, e);
+		}
+		Collections.sort(names);
+		return names;
 	}
 
 	/**
-	 * Determines source files to be compiled.
+	 * Finds all source files, whether they are up to date or not.
 	 *
 	 * @param mapping The source files
 	 *
-	 * @return set of jxml files to compile
+	 * @return set of all jxml files
 	 *
 	 * @throws MojoExecutionException When there's trouble with the input
 	 */
-	private Set<File> jrxmlFilesToCompile(SourceMapping mapping) throws MojoExecutionException {
+	private Set<File> allJrxmlFiles(SourceMapping mapping) throws MojoExecutionException {
 		if (!sourceDirectory.isDirectory()) {
 			String message = sourceDirectory.getName() + " is not a directory";
 			if (failOnMissingSourceDirectory) {
@@ -251,8 +803,59 @@ public class JasperReporter extends AbstractMojo {
 			}
 		}
 
+		return scan(new SimpleSourceInclusionScanner(Collections.singleton("**/*" + sourceFileExt),
+				Collections.emptySet()), mapping);
+	}
+
+	/**
+	 * Determines source files to be compiled. Next to the stale sources,
+	 * these are the reports that embed a stale source as subreport.
+	 *
+	 * @param allSources All source files
+	 * @param graph The subreports of the source files
+	 * @param mapping The source files
+	 * @param manifest The manifest of the previous build, or <code>null</code>
+	 *            if the source scanner decides what is stale.
+	 * @param hashes Receives the content hash of every source when a manifest
+	 *            is used.
+	 *
+	 * @return set of jxml files to compile
+	 *
+	 * @throws MojoExecutionException When there's trouble with the input
+	 */
+	private Set<File> jrxmlFilesToCompile(Set<File> allSources, ReportDependencyGraph graph, SourceMapping mapping,
+			CompilationManifest manifest, Map<File, String> hashes) throws MojoExecutionException {
+		if (allSources.isEmpty()) {
+			return allSources;
+		}
+
+		Set<File> stale;
+		try {
+			stale = manifest == null ? scan(createSourceInclusionScanner(), mapping)
+					: staleSources(allSources, mapping, manifest, hashes);
+		}
+		catch (InclusionScanException e) {
+			throw new MojoExecutionException("Error compiling report design", e);
+		}
+
+		Set<File> sources = graph.withDependents(stale);
+		String root = getCanonicalSourceDirectory();
+		for (File src : sources) {
+			if (!stale.contains(src)) {
+				String srcName = getRelativePath(root, src);
+				if (verbose) {
+					log.info("Compiling " + srcName + " because one of its subreports changed");
+				}
+				if (manifest != null) {
+					manifest.remove(srcName);
+				}
+			}
+		}
+		return sources;
+	}
+
+	private Set<File> scan(SourceInclusionScanner scanner, SourceMapping mapping) throws MojoExecutionException {
 		try {
-			SourceInclusionScanner scanner = createSourceInclusionScanner();
 			scanner.addSourceMapping(mapping);
 			return scanner.getIncludedSources(sourceDirectory, outputDirectory);
 		}
@@ -261,6 +864,583 @@ public class JasperReporter extends AbstractMojo {
 		}
 	}
 
+	private ReportDependencyGraph createDependencyGraph(Set<File> sources) throws MojoExecutionException {
+		try {
+			return ReportDependencyGraph.build(sources, sourceDirectory, sourceFileExt, outputFileExt);
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not read the subreports of the report designs", e);
+		}
+	}
+
+	/**
+	 * Selects the sources whose content, configuration or classpath changed
+	 * since they were recorded in the manifest, or whose compiled report is
+	 * missing. For sources with recorded classes, only a change of those
+	 * classes counts as a classpath change. The hash of every source is put
+	 * in <code>hashes</code>.
+	 */
+	private Set<File> staleSources(Set<File> sources, SourceMapping mapping, CompilationManifest manifest,
+			Map<File, String> hashes) throws MojoExecutionException, InclusionScanException {
+		boolean compileAll = !sourceScanner.equals(StaleSourceScanner.class.getName());
+		boolean sameConfiguration = manifest.useConfiguration(getConfigurationFingerprint());
+		boolean sameClasspath = manifest.useClasspath(getClasspathFingerprint());
+		if (!sameConfiguration) {
+			if (verbose) {
+				log.info("Jasper configuration changed, all reports are compiled");
+			}
+			compileAll = true;
+		}
+		else if (!sameClasspath && verbose) {
+			log.info("Classpath changed, only reports that use a changed class are compiled");
+		}
+
+		String root = getCanonicalSourceDirectory();
+		Set<File> stale = new HashSet<>();
+		Set<String> paths = new HashSet<>();
+		// With the same classpath the recorded classes can not have changed, so they are not read
+		TypeDependencies types = sameClasspath ? null : new TypeDependencies(getClasspathFiles());
+		try {
+			for (File src : sources) {
+				String srcName = getRelativePath(root, src);
+				paths.add(srcName);
+				String hash;
+				try {
+					hash = Digests.sha256(src);
+				}
+				catch (IOException e) {
+					throw new MojoExecutionException("Could not read report design " + src, e);
+				}
+				hashes.put(src, hash);
+				File destination = mapping.getTargetFiles(outputDirectory, srcName).iterator().next();
+				if (compileAll || !destination.isFile() || !manifest.isUpToDate(srcName, hash)) {
+					manifest.remove(srcName);
+					stale.add(src);
+					continue;
+				}
+				String changedType = types == null ? null : findChangedType(types, manifest.getTypes(srcName));
+				if (changedType != null) {
+					if (verbose) {
+						log.info("Compiling " + srcName + " because " + changedType.replace('/', '.') + " changed");
+					}
+					manifest.remove(srcName);
+					stale.add(src);
+				}
+				else if (verbose) {
+					log.info("Skipping unchanged " + srcName);
+				}
+			}
+		}
+		finally {
+			if (types != null) {
+				close(types);
+			}
+		}
+		deleteExpressionClasses(manifest.retainAll(paths));
+		return stale;
+	}
+
+	/**
+	 * @return The first of the recorded classes that changed, or
+	 *         <code>null</code> if none did or there are no recorded classes.
+	 */
+	private String findChangedType(TypeDependencies types, Map<String, String> recorded) {
+		if (recorded == null) {
+			return null;
+		}
+		try {
+			return types.findChanged(recorded);
+		}
+		catch (IOException e) {
+			log.warn("Could not read the classes of the reports, compiling them again: " + e.getMessage());
+			return recorded.isEmpty() ? null : recorded.keySet().iterator().next();
+		}
+	}
+
+	/**
+	 * @return The classes on the classpath the compiled expressions of the
+	 *         task refer to, or <code>null</code> if they are not known.
+	 */
+	private Map<String, String> resolveTypes(TypeDependencies types, CompileTask task) {
+		Set<String> referenced = task.getReferencedTypes();
+		if (referenced == null) {
+			return null;
+		}
+		try {
+			return types.resolve(referenced);
+		}
+		catch (IOException e) {
+			log.warn("Could not read the classes of " + task.getSourceName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the classes of the reports, logging a failure instead of
+	 * throwing it.
+	 */
+	private void close(TypeDependencies types) {
+		try {
+			types.close();
+		}
+		catch (IOException e) {
+			log.debug("Could not close the classpath: " + e.getMessage());
+		}
+	}
+
+	private ExpressionBatch createExpressionBatch() {
+		if (expressionBatchSize <= 1) {
+			return null;
+		}
+		if (!isJdtCompiler()) {
+			log.warn("expressionBatchSize only applies to " + JRJdtCompiler.class.getName()
+					+ ", compiling the expressions of every report on its own");
+			return null;
+		}
+		return new ExpressionBatch(expressionBatchSize, log);
+	}
+
+	/**
+	 * @param allSources All designs, whose classes are reserved.
+	 * @param manifest The manifest with the classes of the designs, or
+	 *            <code>null</code>.
+	 * @return The writer of the expression classes, or <code>null</code> if
+	 *         there is no <code>expressionClassesPackage</code>.
+	 */
+	private ExpressionClassWriter createExpressionClassWriter(Set<File> allSources, CompilationManifest manifest)
+			throws MojoExecutionException {
+		if (expressionClassesPackage == null || expressionClassesPackage.trim().isEmpty()) {
+			return null;
+		}
+		String packageName = expressionClassesPackage.trim();
+		if (!ExpressionClassWriter.isPackageName(packageName)) {
+			throw new MojoExecutionException("expressionClassesPackage " + packageName + " is not a package name");
+		}
+		if (!isJdtCompiler()) {
+			throw new MojoExecutionException("expressionClassesPackage only applies to "
+					+ JRJdtCompiler.class.getName() + ", not to " + compiler);
+		}
+		ExpressionClassWriter classWriter = new ExpressionClassWriter(getExpressionClassesDirectory(), packageName);
+		// A changed design must not get the classes of one that is not compiled again
+		String root = getCanonicalSourceDirectory();
+		for (File src : allSources) {
+			String srcName = getRelativePath(root, src);
+			try {
+				classWriter.reserve(srcName, manifest == null ? null : manifest.getClasses(srcName));
+			}
+			catch (JRException e) {
+				throw new MojoExecutionException(e.getMessage(), e);
+			}
+		}
+		return classWriter;
+	}
+
+	private File getExpressionClassesDirectory() {
+		return expressionClassesDirectory == null ? outputDirectory : expressionClassesDirectory;
+	}
+
+	/**
+	 * Deletes the expression classes of designs that were deleted or no
+	 * longer have them.
+	 *
+	 * @param classNames The names of the classes.
+	 * @throws MojoExecutionException When a class could not be deleted.
+	 */
+	private void deleteExpressionClasses(Collection<String> classNames) throws MojoExecutionException {
+		if (classNames.isEmpty()) {
+			return;
+		}
+		try {
+			for (File deleted : ExpressionClassWriter.delete(getExpressionClassesDirectory(), classNames)) {
+				log.info("Removed expressions class " + deleted);
+			}
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not remove the expression classes " + classNames, e);
+		}
+	}
+
+	/**
+	 * @param classWriter The writer of the expression classes, if any.
+	 * @return The worker JVMs to compile on, or <code>null</code> to compile
+	 *         in this JVM.
+	 * @throws MojoExecutionException When the classpath of the workers could
+	 *             not be determined, or the configuration does not allow
+	 *             forking.
+	 */
+	private WorkerJvmPool getWorkerPool(ExpressionClassWriter classWriter) throws MojoExecutionException {
+		if (!forkWorkers) {
+			return null;
+		}
+		if (classWriter != null) {
+			throw new MojoExecutionException("expressionClassesPackage can not be used with forkWorkers");
+		}
+		if (expressionBatchSize > 1) {
+			log.warn("expressionBatchSize does not apply to forkWorkers, compiling the expressions of every report "
+					+ "on its own");
+		}
+		List<String> jvmArgs = new ArrayList<>();
+		if (forkJvmArgs != null && !forkJvmArgs.trim().isEmpty()) {
+			jvmArgs.addAll(Arrays.asList(forkJvmArgs.trim().split("\\s+")));
+		}
+		StringBuilder classpath = new StringBuilder();
+		for (String entry : getPluginClasspath()) {
+			if (classpath.length() > 0) {
+				classpath.append(File.pathSeparator);
+			}
+			classpath.append(entry);
+		}
+		WorkerJvmPool pool = WorkerJvmPool.get(getJvm(), jvmArgs, classpath.toString(),
+				forkCount > 0 ? forkCount : Runtime.getRuntime().availableProcessors(), log);
+		log.debug("Compiling on " + pool.getSize() + " worker JVMs");
+		return pool;
+	}
+
+	/**
+	 * @return The jars of the plugin and its dependencies. Without plugin
+	 *         artifacts, like in tests, the classpath of this JVM.
+	 * @throws MojoExecutionException When the jar of the plugin could not be
+	 *             found.
+	 */
+	List<String> getPluginClasspath() throws MojoExecutionException {
+		List<String> entries = new ArrayList<>();
+		if (pluginArtifacts == null) {
+			Collections.addAll(entries, System.getProperty("java.class.path").split(File.pathSeparator));
+			return entries;
+		}
+		try {
+			entries.add(new File(JasperReporter.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+					.getAbsolutePath());
+		}
+		catch (URISyntaxException e) {
+			throw new MojoExecutionException("Could not find the jar of the plugin", e);
+		}
+		for (Artifact artifact : pluginArtifacts) {
+			if (artifact.getFile() != null) {
+				entries.add(artifact.getFile().getAbsolutePath());
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return The java executable of the JVMs the plugin starts.
+	 */
+	String getJvm() {
+		return jvm == null ? System.getProperty("java.home") + File.separator + "bin" + File.separator + "java" : jvm;
+	}
+
+	private boolean isJdtCompiler() {
+		return compiler == null || compiler.equals(JRJdtCompiler.class.getName());
+	}
+
+	/**
+	 * Logs the slowest reports and writes the metrics of all reports to the
+	 * <code>stateDirectory</code>.
+	 */
+	private void reportMetrics(CompileMetrics metrics, int threads) {
+		metrics.logSlowest(log, slowestReports);
+		if (stateDirectory == null) {
+			return;
+		}
+		File file = new File(stateDirectory, "metrics.json");
+		try {
+			metrics.write(file, threads);
+		}
+		catch (IOException e) {
+			log.warn("Could not write the compile metrics to " + file + ": " + e.getMessage());
+		}
+	}
+
+	private BuildCache createBuildCache() {
+		if (buildCacheDirectory == null) {
+			return null;
+		}
+		if (expressionClassesPackage != null && !expressionClassesPackage.trim().isEmpty()) {
+			log.warn("The build cache does not hold expression classes, not using it with expressionClassesPackage");
+			return null;
+		}
+		String environment = Digests.sha256(getJasperVersion(), getConfigurationFingerprint(),
+				getClasspathContentFingerprint());
+		return new BuildCache(buildCacheDirectory, buildCacheMaxSize * 1024 * 1024, environment, log);
+	}
+
+	/**
+	 * @return The version of JasperReports the plug-in compiles with, or the
+	 *         location of its jar if the version is not known.
+	 */
+	private String getJasperVersion() {
+		Package jasperPackage = JasperCompileManager.class.getPackage();
+		if (jasperPackage != null && jasperPackage.getImplementationVersion() != null) {
+			return jasperPackage.getImplementationVersion();
+		}
+		return String.valueOf(JasperCompileManager.class.getProtectionDomain().getCodeSource().getLocation());
+	}
+
+	/**
+	 * Packs the compiled reports of all sources into the
+	 * <code>bundleFile</code>, if there is one.
+	 */
+	private void writeBundle(Set<File> allSources) throws MojoExecutionException {
+		if (bundleFile == null) {
+			return;
+		}
+		String root = getCanonicalSourceDirectory();
+		Map<String, File> reports = new TreeMap<>();
+		for (File src : allSources) {
+			String srcName = getRelativePath(root, src);
+			String name = srcName.substring(0, srcName.length() - sourceFileExt.length()) + outputFileExt;
+			File compiled = new File(outputDirectory, name);
+			if (compiled.isFile()) {
+				reports.put(name.replace(File.separatorChar, '/'), compiled);
+			}
+			else {
+				log.warn("Bundle " + bundleFile.getName() + " does not contain " + srcName
+						+ " because it is not compiled");
+			}
+		}
+		try {
+			if (ReportBundleWriter.write(bundleFile, reports, bundleCompression)) {
+				log.info("Packed " + reports.size() + " reports into " + bundleFile);
+			}
+			else if (verbose) {
+				log.info("Bundle " + bundleFile + " is up to date");
+			}
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not write bundle " + bundleFile, e);
+		}
+	}
+
+	/**
+	 * Compares timings with the <code>performanceBaseline</code>, or records
+	 * them in it.
+	 *
+	 * @param timings The timings in milliseconds, by their name in the
+	 *            baseline.
+	 * @param medians Whether the timings are medians of several runs, rather
+	 *            than single runs.
+	 * @throws MojoExecutionException When a timing regressed and
+	 *             <code>failOnRegression</code> is on, or the baseline could
+	 *             not be read or written.
+	 */
+	void checkPerformance(Map<String, Double> timings, boolean medians) throws MojoExecutionException {
+		if (performanceBaseline == null || timings.isEmpty()) {
+			return;
+		}
+		Log log = getLog();
+		try {
+			PerformanceBaseline baseline = PerformanceBaseline.load(performanceBaseline);
+			if (recordBaseline) {
+				baseline.putAll(timings);
+				baseline.save();
+				log.info("Recorded " + timings.size() + " timings in " + performanceBaseline);
+				return;
+			}
+			if (baseline.isEmpty()) {
+				log.warn("There is no performance baseline yet, record it with -Djasper.recordBaseline");
+				return;
+			}
+			List<PerformanceBaseline.Difference> differences =
+					baseline.compare(timings, regressionTolerance, regressionMinimum);
+			PerformanceBaseline.log(log, differences, slowestReports);
+			List<String> regressed = new ArrayList<>();
+			for (PerformanceBaseline.Difference difference : differences) {
+				if (difference.isRegressed()) {
+					regressed.add(difference.getName());
+				}
+			}
+			if (regressed.isEmpty()) {
+				return;
+			}
+			String message = regressed.size() + " timings are more than " + regressionTolerance
+					+ "% slower than the baseline: " + regressed;
+			if (failOnRegression && (medians || failOnSingleRunRegression)) {
+				throw new MojoExecutionException(message);
+			}
+			log.warn(message);
+			if (failOnRegression && !medians) {
+				log.warn("Timings of a single run do not fail the build unless failOnSingleRunRegression is on");
+			}
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not use performance baseline " + performanceBaseline, e);
+		}
+	}
+
+	private CompilationManifest loadManifest() throws MojoExecutionException {
+		if (!incremental || stateDirectory == null) {
+			return null;
+		}
+		File file = new File(stateDirectory, "manifest.properties");
+		try {
+			return CompilationManifest.load(file);
+		}
+		catch (IOException e) {
+			log.warn("Could not read manifest " + file + ", all reports are compiled: " + e.getMessage());
+			return CompilationManifest.empty(file);
+		}
+	}
+
+	private CompileHistory loadHistory() {
+		if (!incremental || stateDirectory == null) {
+			return null;
+		}
+		File file = new File(stateDirectory, "timings.properties");
+		try {
+			return CompileHistory.load(file);
+		}
+		catch (IOException e) {
+			log.warn("Could not read compile times " + file + ": " + e.getMessage());
+			return CompileHistory.empty(file);
+		}
+	}
+
+	/**
+	 * @return The heap budget in bytes, or 0 if there is none.
+	 */
+	long getHeapBudgetBytes() {
+		return heapBudget > 0 ? heapBudget * 1024L * 1024L : 0;
+	}
+
+	int getNumberOfThreads() {
+		return numberOfThreads > 0 ? numberOfThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	private void saveManifest(CompilationManifest manifest) throws MojoExecutionException {
+		if (manifest == null) {
+			return;
+		}
+		try {
+			manifest.save();
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not write the compilation manifest", e);
+		}
+	}
+
+	/**
+	 * @return A hash of the properties Jasper compiles with, see
+	 *         {@link #getJasperProperties()}.
+	 */
+	private String getConfigurationFingerprint() {
+		List<String> values = new ArrayList<>();
+		for (Map.Entry<String, String> property : getJasperProperties().entrySet()) {
+			values.add(property.getKey());
+			values.add(property.getValue());
+		}
+		if (expressionClassesPackage != null) {
+			values.add("expressionClassesPackage");
+			values.add(expressionClassesPackage.trim());
+		}
+		if (reproducible) {
+			values.add("reproducible");
+			values.add("true");
+		}
+		return Digests.sha256(values.toArray(new String[0]));
+	}
+
+	/**
+	 * @return A hash of the compile classpath for the manifest. Files are
+	 *         identified by their path, size and modification time,
+	 *         directories by their path and the path, size and modification
+	 *         time of every file in them.
+	 */
+	private String getClasspathFingerprint() {
+		List<String> values = new ArrayList<>();
+		for (File f : getClasspathFiles()) {
+			values.add(f.getAbsolutePath());
+			if (f.isFile()) {
+				values.add(f.length() + "@" + f.lastModified());
+			}
+			else if (f.isDirectory()) {
+				values.add(getDirectoryFingerprint(f, false));
+			}
+			else {
+				values.add("-");
+			}
+		}
+		return Digests.sha256(values.toArray(new String[0]));
+	}
+
+	/**
+	 * @return A hash of the contents of the compile classpath for the build
+	 *         cache: the bytes of every file, and the path relative to the
+	 *         directory and the bytes of every file in a directory. It does
+	 *         not depend on where the classpath is or when it was written, so
+	 *         other checkouts and machines get the same hash.
+	 */
+	private String getClasspathContentFingerprint() {
+		List<String> values = new ArrayList<>();
+		for (File f : getClasspathFiles()) {
+			if (f.isFile()) {
+				try {
+					values.add(getContentHash(f.toPath(), Files.readAttributes(f.toPath(), BasicFileAttributes.class)));
+				}
+				catch (IOException e) {
+					getLog().warn("Could not read the classpath file " + f + ": " + e.getMessage());
+					values.add("?" + System.nanoTime());
+				}
+			}
+			else if (f.isDirectory()) {
+				values.add(getDirectoryFingerprint(f, true));
+			}
+			else {
+				values.add("-");
+			}
+		}
+		return Digests.sha256(values.toArray(new String[0]));
+	}
+
+	/**
+	 * @return The hash of the bytes of a file. A file that did not change
+	 *         since it was hashed before in this JVM is not read again.
+	 */
+	private static String getContentHash(Path file, BasicFileAttributes attrs) throws IOException {
+		String key = file.toAbsolutePath().toString();
+		String stamp = attrs.size() + "@" + attrs.lastModifiedTime().toMillis() + " ";
+		String known = CONTENT_HASHES.get(key);
+		if (known != null && known.startsWith(stamp)) {
+			return known.substring(stamp.length());
+		}
+		String hash = Digests.sha256(file.toFile());
+		CONTENT_HASHES.put(key, stamp + hash);
+		return hash;
+	}
+
+	/**
+	 * @param content If files are identified by the hash of their bytes,
+	 *            instead of by their size and modification time.
+	 * @return A hash of the path, relative to the directory, and the size and
+	 *         modification time or the bytes of every file in the directory.
+	 */
+	private String getDirectoryFingerprint(File directory, final boolean content) {
+		final Path root = directory.toPath();
+		final Map<String, String> files = new TreeMap<>();
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					files.put(root.relativize(file).toString().replace(File.separatorChar, '/'),
+							content ? getContentHash(file, attrs)
+									: attrs.size() + "@" + attrs.lastModifiedTime().toMillis());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e) {
+			// A directory that can not be read counts as changed
+			getLog().warn("Could not read the classpath directory " + directory + ": " + e.getMessage());
+			return "?" + System.nanoTime();
+		}
+		List<String> values = new ArrayList<>();
+		for (Map.Entry<String, String> file : files.entrySet()) {
+			values.add(file.getKey());
+			values.add(file.getValue());
+		}
+		return Digests.sha256(values.toArray(new String[0]));
+	}
+
 	private void logConfiguration(Log log) {
 		log.info("Generating Jasper reports");
 		log.info("Output dir: " + outputDirectory.getAbsolutePath());
@@ -270,10 +1450,19 @@ public class JasperReporter extends AbstractMojo {
 		log.info("Addition properties: " + additionalProperties);
 		log.info("XML Validation: " + xmlValidation);
 		log.info("JasperReports Compiler: " + compiler);
-		log.info("Number of threads: " + numberOfThreads);
+		log.info("Number of threads: " + getNumberOfThreads());
+		log.info("Expression batch size: " + expressionBatchSize);
+		log.info("Fail fast: " + failFast);
+		log.info("Max errors: " + maxErrors);
+		log.info("Heap budget: " + (heapBudget > 0 ? heapBudget + " MB" : "none"));
+		log.info("Fork workers: " + forkWorkers);
 		log.info("classpathElements: " + classpathElements);
 		log.info("additionalClasspath: " + additionalClasspath);
 		log.info("Source Scanner: " + sourceScanner);
+		log.info("Incremental: " + incremental);
+		log.info("Reproducible: " + reproducible);
+		log.info("State dir: " + (stateDirectory == null ? null : stateDirectory.getAbsolutePath()));
+		log.info("Build cache dir: " + (buildCacheDirectory == null ? null : buildCacheDirectory.getAbsolutePath()));
 	}
 
 	/**
@@ -299,56 +1488,79 @@ public class JasperReporter extends AbstractMojo {
 		}
 	}
 
-	private void configureJasper() {
-		DefaultJasperReportsContext jrContext = DefaultJasperReportsContext.getInstance();
+	/**
+	 * Creates the Jasper configuration of this execution. The properties are
+	 * set on a context of its own, on top of the default context, so that
+	 * executions with other properties can compile at the same time in the
+	 * same JVM, like the modules of a parallel build.
+	 *
+	 * @return The context to compile and fill the reports with.
+	 */
+	JasperReportsContext createJasperContext() {
+		SimpleJasperReportsContext jrContext = new SimpleJasperReportsContext(DefaultJasperReportsContext.getInstance());
+		for (Map.Entry<String, String> property : getJasperProperties().entrySet()) {
+			jrContext.setProperty(property.getKey(), property.getValue());
+		}
+		return jrContext;
+	}
 
-		jrContext.setProperty(JRReportSaxParserFactory.COMPILER_XML_VALIDATION, String.valueOf(xmlValidation));
-		jrContext.setProperty(JRCompiler.COMPILER_PREFIX, compiler == null ? JRJdtCompiler.class.getName() : compiler);
-		jrContext.setProperty(JRCompiler.COMPILER_KEEP_JAVA_FILE, Boolean.FALSE.toString());
+	/**
+	 * @return The properties that are set on the Jasper context before
+	 *         compiling, sorted by name.
+	 */
+	private Map<String, String> getJasperProperties() {
+		Map<String, String> properties = new TreeMap<>();
+		properties.put(JRReportSaxParserFactory.COMPILER_XML_VALIDATION, String.valueOf(xmlValidation));
+		properties.put(JRCompiler.COMPILER_PREFIX, compiler == null ? JRJdtCompiler.class.getName() : compiler);
+		properties.put(JRCompiler.COMPILER_KEEP_JAVA_FILE, Boolean.FALSE.toString());
 
 		if (additionalProperties != null) {
-			configureAdditionalProperties(JRPropertiesUtil.getInstance(jrContext));
+			properties.putAll(additionalProperties);
 		}
+		return properties;
 	}
 
-	private ClassLoader getClassLoader(ClassLoader classLoader)
+	/**
+	 * @param classLoader The parent class loader.
+	 * @return A class loader for the classpath of the reports, to be
+	 *         released with {@link #releaseClassLoader(ClassLoader)}. The jars
+	 *         on the classpath are loaded by a class loader that is shared
+	 *         with other executions that use the same jars.
+	 * @throws MojoExecutionException When the classpath is invalid.
+	 */
+	ClassLoader getClassLoader(ClassLoader classLoader)
 			throws MojoExecutionException {
-		List<URL> classpath = new ArrayList<>();
+		return SharedClassLoaders.acquire(getClasspathFiles(), classLoader, session, getLog());
+	}
+
+	/**
+	 * Closes a class loader of {@link #getClassLoader(ClassLoader)}. The
+	 * shared class loader of its jars stays open for other executions.
+	 *
+	 * @param classLoader The class loader.
+	 */
+	void releaseClassLoader(ClassLoader classLoader) {
+		SharedClassLoaders.release(classLoader);
+	}
+
+	/**
+	 * @return The <code>classpathElements</code> followed by the entries of
+	 *         the <code>additionalClasspath</code>.
+	 */
+	List<File> getClasspathFiles() {
+		List<File> files = new ArrayList<>();
 		if (classpathElements != null) {
 			for (String element : classpathElements) {
-				try {
-					File f = new File(element);
-					classpath.add(f.toURI().toURL());
-					log.debug("Added to classpath " + element);
-				}
-				catch (Exception e) {
-					throw new MojoExecutionException(
-							"Error setting classpath " + element + " " + e.getMessage());
-				}
+				files.add(new File(element));
 			}
 		}
 
 		if (additionalClasspath != null) {
 			for (String element : additionalClasspath.split("[;]")) {
-				try {
-					File f = new File(element);
-					classpath.add(f.toURI().toURL());
-					log.debug("Added additionalClasspath to classpath " + element);
-				}
-				catch (Exception e) {
-					throw new MojoExecutionException("Error setting classpath " + element + " " + e.getMessage());
-				}
+				files.add(new File(element));
 			}
 		}
-
-		URL[] urls = classpath.toArray(new URL[0]);
-		return new URLClassLoader(urls, classLoader);
-	}
-
-	private void configureAdditionalProperties(JRPropertiesUtil propertiesUtil) {
-		for (Map.Entry<String, String> additionalProperty : additionalProperties.entrySet()) {
-			propertiesUtil.setProperty(additionalProperty.getKey(), additionalProperty.getValue());
-		}
+		return files;
 	}
 
 	private void checkIfOutputCanBeCreated() throws MojoExecutionException {
@@ -374,26 +1586,33 @@ public class JasperReporter extends AbstractMojo {
 		}
 	}
 
-	private List<CompileTask> generateTasks(Set<File> sources, SourceMapping mapping) throws MojoExecutionException {
-		List<CompileTask> tasks = new LinkedList<>();
+	private String getCanonicalSourceDirectory() throws MojoExecutionException {
 		try {
-			String root = sourceDirectory.getCanonicalPath();
-
-			for (File src : sources) {
-				String srcName = getRelativePath(root, src);
-				try {
-					File destination = mapping.getTargetFiles(outputDirectory, srcName).iterator().next();
-					createDestination(destination.getParentFile());
-					tasks.add(new CompileTask(src, destination, log, verbose));
-				}
-				catch (InclusionScanException e) {
-					throw new MojoExecutionException("Error compiling report design : " + src, e);
-				}
-			}
+			return sourceDirectory.getCanonicalPath();
 		}
 		catch (IOException e) {
 			throw new MojoExecutionException("Could not getCanonicalPath from source directory " + sourceDirectory, e);
 		}
+	}
+
+	private List<CompileTask> generateTasks(Set<File> sources, SourceMapping mapping, JasperReportsContext jasperContext,
+			BuildCache buildCache, ExpressionBatch expressionBatch, ExpressionClassWriter classWriter,
+			WorkerJvmPool.Session workers, CompileMetrics metrics) throws MojoExecutionException {
+		List<CompileTask> tasks = new LinkedList<>();
+		String root = getCanonicalSourceDirectory();
+
+		for (File src : sources) {
+			String srcName = getRelativePath(root, src);
+			try {
+				File destination = mapping.getTargetFiles(outputDirectory, srcName).iterator().next();
+				createDestination(destination.getParentFile());
+				tasks.add(new CompileTask(src, srcName, destination, log, verbose, jasperContext, buildCache,
+						expressionBatch, classWriter, workers, isJdtCompiler(), reproducible, metrics));
+			}
+			catch (InclusionScanException e) {
+				throw new MojoExecutionException("Error compiling report design : " + src, e);
+			}
+		}
 		return tasks;
 	}
 
@@ -408,32 +1627,103 @@ public class JasperReporter extends AbstractMojo {
 		}
 	}
 
-	private void executeTasks(List<CompileTask> tasks) throws MojoExecutionException {
+	private void executeTasks(List<CompileTask> tasks, ReportDependencyGraph graph, CompilationManifest manifest,
+			Map<File, String> hashes, int parallelism, long heapBudgetBytes) throws MojoExecutionException {
+		CompileScheduler scheduler = new CompileScheduler(parallelism, log);
+		scheduler.setMaxErrors(failFast ? 1 : maxErrors);
+		CompileHistory history = loadHistory();
+		Map<File, CompileTask> tasksBySource = new HashMap<>();
+		scheduler.setHeapBudget(heapBudgetBytes);
+		for (CompileTask task : tasks) {
+			long size = task.getSource().length();
+			scheduler.setCost(task, history == null ? size : history.estimate(task.getSourceName(), size));
+			scheduler.setFootprint(task, history == null ? size * CompileHistory.FOOTPRINT_PER_BYTE
+					: history.estimateFootprint(task.getSourceName(), size));
+			tasksBySource.put(task.getSource(), task);
+		}
+		for (CompileTask task : tasks) {
+			for (File subreport : graph.getSubreports(task.getSource())) {
+				CompileTask subreportTask = tasksBySource.get(subreport);
+				if (subreportTask != null) {
+					scheduler.addDependency(task, subreportTask);
+				}
+			}
+		}
+
+		SharedWorkerPool.Lane lane = null;
+		if (sharedWorkerPool) {
+			SharedWorkerPool pool = SharedWorkerPool.get(sharedWorkerPoolSize > 0 ? sharedWorkerPoolSize
+					: Runtime.getRuntime().availableProcessors());
+			lane = pool.newLane();
+			scheduler.setExecutor(lane);
+			log.debug("Compiling on the shared pool of " + pool.getSize() + " threads");
+		}
+
+		Map<CompileTask, Exception> failures;
 		try {
 			long t1 = System.currentTimeMillis();
-			List<Future<Void>> output =
-					Executors.newFixedThreadPool(numberOfThreads).invokeAll(tasks);
+			failures = scheduler.run();
 			long time = (System.currentTimeMillis() - t1);
-			log.info("Generated " + output.size() + " jasper reports in " + (time / 1000.0) + " seconds");
-			checkForExceptions(output);
+			log.info("Generated " + tasks.size() + " jasper reports in " + (time / 1000.0) + " seconds");
 		}
 		catch (InterruptedException e) {
 			log.error("Failed to compile Japser reports: Interrupted!", e);
+			Thread.currentThread().interrupt();
 			throw new MojoExecutionException("Error while compiling Jasper reports", e);
 		}
-		catch (ExecutionException e) {
-			if (e.getCause() instanceof JRException) {
-				throw new MojoExecutionException(ERROR_JRE_COMPILE_ERROR, e);
+		finally {
+			if (lane != null) {
+				lane.close();
 			}
-			else {
-				throw new MojoExecutionException("Error while compiling Jasper reports", e);
+		}
+
+		if (history != null) {
+			recordHistory(history, tasks, failures, scheduler);
+		}
+		if (manifest != null) {
+			// Failed reports are not recorded, so they are compiled again by the next build
+			TypeDependencies types = new TypeDependencies(getClasspathFiles());
+			try {
+				for (CompileTask task : tasks) {
+					if (!failures.containsKey(task)) {
+						deleteExpressionClasses(manifest.update(task.getSourceName(), hashes.get(task.getSource()),
+								resolveTypes(types, task), task.getExpressionClasses()));
+					}
+				}
+			}
+			finally {
+				close(types);
+			}
+		}
+		checkForExceptions(failures);
+	}
+
+	private void recordHistory(CompileHistory history, List<CompileTask> tasks, Map<CompileTask, Exception> failures,
+			CompileScheduler scheduler) {
+		for (CompileTask task : tasks) {
+			Long duration = scheduler.getDuration(task);
+			// Restored reports say nothing about how long it takes to compile them
+			if (duration != null && !task.isRestored() && !failures.containsKey(task)) {
+				history.record(task.getSourceName(), task.getSource().length(), duration,
+						scheduler.getAllocatedBytes(task));
 			}
 		}
+		try {
+			history.save();
+		}
+		catch (IOException e) {
+			log.warn("Could not write the compile times: " + e.getMessage());
+		}
 	}
 
-	private void checkForExceptions(List<Future<Void>> output) throws InterruptedException, ExecutionException {
-		for (Future<Void> future : output) {
-			future.get();
+	private void checkForExceptions(Map<CompileTask, Exception> failures) throws MojoExecutionException {
+		for (Exception failure : failures.values()) {
+			if (!(failure instanceof JRException)) {
+				throw new MojoExecutionException("Error while compiling Jasper reports", failure);
+			}
+		}
+		if (!failures.isEmpty()) {
+			throw new MojoExecutionException(ERROR_JRE_COMPILE_ERROR, failures.values().iterator().next());
 		}
 	}
 
@@ -450,7 +1740,7 @@ public class JasperReporter extends AbstractMojo {
 		}
 	}
 
-    private boolean isSkip()
+    boolean isSkip()
     {
         return skip;
     }
@@ -0,0 +1,60 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.File;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Checks all report designs without compiling them, see {@link DesignLinter}. All problems are
+ * logged, with the design, line and column, and fail the build. The check takes a fraction of the
+ * time of compiling, which makes it suitable for a pre-commit hook.
+ */
+@Mojo(name = "validate", defaultPhase = LifecyclePhase.VALIDATE, requiresDependencyResolution = ResolutionScope.COMPILE)
+public class JasperValidator extends JasperReporter {
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		Log log = getLog();
+		if (isSkip()) {
+			log.info("Validating Jasper reports is skipped.");
+			return;
+		}
+		File sourceDirectory = getSourceDirectory();
+		if (!sourceDirectory.isDirectory()) {
+			throw new MojoExecutionException(sourceDirectory + " is not a directory");
+		}
+		Set<File> sources = findSources();
+		if (sources.isEmpty()) {
+			log.info("No Jasper report designs to validate in " + sourceDirectory);
+			return;
+		}
+
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		ClassLoader lintClassLoader = getClassLoader(classLoader);
+		Thread.currentThread().setContextClassLoader(lintClassLoader);
+		try {
+			lint(sources, sources, createJasperContext(), lintClassLoader);
+		}
+		finally {
+			Thread.currentThread().setContextClassLoader(classLoader);
+			releaseClassLoader(lintClassLoader);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.jasperreports.engine.JasperReportsContext;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Compiles the jasper source files like the <code>jasper</code> goal, and then keeps watching the
+ * source directory. A design that changes is compiled again, together with the reports that embed
+ * it, by the same class loader and compiler, so that only the first compilation pays for loading
+ * the classpath and warming up the compiler. Stop it with Ctrl+C. Changes to the classpath are not
+ * picked up until the goal is started again.
+ */
+@Mojo(name = "watch", requiresDependencyResolution = ResolutionScope.COMPILE)
+public class JasperWatcher extends JasperReporter {
+
+	/**
+	 * How long to wait for more changes after a file changed, in
+	 * milliseconds. Editors often write a file more than once when it is
+	 * saved, which is then compiled only once. Default value is 100.
+	 *
+	 */
+	@Parameter(property = "jasper.watchDelay", defaultValue = "100")
+	private long watchDelay = 100;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		Log log = getLog();
+		if (isSkip()) {
+			log.info("Watching Jasper reports is skipped.");
+			return;
+		}
+		File sourceDirectory = getSourceDirectory();
+		if (!sourceDirectory.isDirectory()) {
+			throw new MojoExecutionException(sourceDirectory + " is not a directory");
+		}
+
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			Map<WatchKey, Path> directories = new HashMap<>();
+			// Registered before the first build, so no change gets lost
+			register(watchService, sourceDirectory.toPath(), directories, null);
+			try {
+				super.execute();
+			}
+			catch (MojoExecutionException e) {
+				log.error(e.getMessage());
+			}
+
+			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			ClassLoader watchClassLoader = getClassLoader(classLoader);
+			Thread.currentThread().setContextClassLoader(watchClassLoader);
+			try {
+				JasperReportsContext jasperContext = createJasperContext();
+				log.info("Watching " + sourceDirectory + " for changes");
+				watch(watchService, directories, jasperContext, log);
+			}
+			finally {
+				Thread.currentThread().setContextClassLoader(classLoader);
+				releaseClassLoader(watchClassLoader);
+			}
+		}
+		catch (IOException e) {
+			throw new MojoExecutionException("Could not watch " + sourceDirectory, e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.info("Stopped watching " + sourceDirectory);
+		}
+	}
+
+	private void watch(WatchService watchService, Map<WatchKey, Path> directories, JasperReportsContext jasperContext,
+			Log log) throws InterruptedException, IOException {
+		while (true) {
+			WatchKey key = watchService.take();
+			Set<File> changed = new LinkedHashSet<>();
+			while (key != null) {
+				Path directory = directories.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						log.warn("Missed changes in " + directory + ", run the jasper goal to compile all reports");
+						continue;
+					}
+					Path path = directory.resolve((Path) event.context());
+					if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+						register(watchService, path, directories, changed);
+					}
+					changed.add(path.toFile());
+				}
+				if (!key.reset()) {
+					directories.remove(key);
+				}
+				key = watchService.poll(watchDelay, TimeUnit.MILLISECONDS);
+			}
+
+			long start = System.nanoTime();
+			try {
+				int compiled = recompile(changed, jasperContext);
+				if (compiled > 0) {
+					log.info("Recompiled " + compiled + " reports in "
+							+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+				}
+			}
+			catch (MojoExecutionException e) {
+				log.error(e.getMessage());
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Watches a directory and all directories below it.
+	 *
+	 * @param files Receives the files that are already in the directories, or <code>null</code>.
+	 */
+	private static void register(final WatchService watchService, Path root, final Map<WatchKey, Path> directories,
+			final Set<File> files) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (files != null) {
+					files.add(file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,214 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Timings of reports that later builds are compared with, to find reports that became slower. The
+ * baseline is meant to be kept under version control, so it is written sorted and without a date.
+ * Timings are named by what was measured and the report, like
+ * <code>compile/invoices/Invoice.jrxml</code> or <code>fill/invoices/Invoice.jasper</code>.
+ */
+class PerformanceBaseline {
+
+	private final File file;
+	private final Properties timings = new Properties();
+
+	private PerformanceBaseline(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param file The baseline file. It does not have to exist yet.
+	 * @return The baseline read from the file, or an empty one if there is none.
+	 * @throws IOException When an existing baseline could not be read.
+	 */
+	static PerformanceBaseline load(File file) throws IOException {
+		PerformanceBaseline baseline = new PerformanceBaseline(file);
+		if (file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				baseline.timings.load(in);
+			}
+		}
+		return baseline;
+	}
+
+	boolean isEmpty() {
+		return timings.isEmpty();
+	}
+
+	/**
+	 * Replaces timings in the baseline. Timings of other reports are kept.
+	 *
+	 * @param current The timings in milliseconds by their name.
+	 */
+	void putAll(Map<String, Double> current) {
+		for (Map.Entry<String, Double> timing : current.entrySet()) {
+			timings.setProperty(timing.getKey(), String.format(Locale.ROOT, "%.1f", timing.getValue()));
+		}
+	}
+
+	/**
+	 * Compares timings with the baseline. Timings that are not in the baseline are ignored.
+	 *
+	 * @param current The timings in milliseconds by their name.
+	 * @param tolerance How much slower than the baseline a timing may be before it is a regression,
+	 *            in percent.
+	 * @param minimum How much slower than the baseline a timing must be to be a regression, in
+	 *            milliseconds. Short timings vary a lot relative to their length, this keeps them
+	 *            from being reported for a few milliseconds.
+	 * @return The differences, the largest relative slowdown first.
+	 */
+	List<Difference> compare(Map<String, Double> current, int tolerance, long minimum) {
+		List<Difference> differences = new ArrayList<>();
+		for (Map.Entry<String, Double> timing : current.entrySet()) {
+			String baseline = timings.getProperty(timing.getKey());
+			if (baseline == null) {
+				continue;
+			}
+			double baselineMillis;
+			try {
+				baselineMillis = Double.parseDouble(baseline);
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+			double millis = timing.getValue();
+			boolean regressed = millis > baselineMillis * (100 + tolerance) / 100
+					&& millis - baselineMillis >= minimum;
+			differences.add(new Difference(timing.getKey(), baselineMillis, millis, regressed));
+		}
+		Collections.sort(differences, new Comparator<Difference>() {
+			@Override
+			public int compare(Difference a, Difference b) {
+				return Double.compare(b.getChange(), a.getChange());
+			}
+		});
+		return differences;
+	}
+
+	/**
+	 * Logs the timings that slowed down most.
+	 *
+	 * @param log The logger.
+	 * @param differences The differences, the largest slowdown first.
+	 * @param count The maximum number of timings to log.
+	 */
+	static void log(Log log, List<Difference> differences, int count) {
+		if (count <= 0 || differences.isEmpty()) {
+			return;
+		}
+		List<Difference> worst = differences.subList(0, Math.min(count, differences.size()));
+		log.info("Largest changes of " + differences.size() + " timings against the baseline (ms):");
+		log.info(String.format(Locale.ROOT, "%10s %10s %8s  %s", "baseline", "current", "change", "timing"));
+		for (Difference difference : worst) {
+			String line = String.format(Locale.ROOT, "%10.1f %10.1f %+7.0f%%  %s", difference.baselineMillis,
+					difference.millis, difference.getChange() * 100, difference.name);
+			if (difference.regressed) {
+				log.warn(line);
+			}
+			else {
+				log.info(line);
+			}
+		}
+	}
+
+	/**
+	 * Writes the baseline, sorted by name.
+	 *
+	 * @throws IOException When the baseline could not be written.
+	 */
+	void save() throws IOException {
+		// Escapes everything outside of ISO 8859-1, which load expects
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		timings.store(out, null);
+		List<String> lines = new ArrayList<>();
+		for (String line : new String(out.toByteArray(), StandardCharsets.ISO_8859_1).split("\r?\n")) {
+			// Drops the date that store always writes
+			if (!line.isEmpty() && !line.startsWith("#")) {
+				lines.add(line);
+			}
+		}
+		Collections.sort(lines);
+		StringBuilder content = new StringBuilder("# Jasper reports timings in milliseconds\n");
+		for (String line : lines) {
+			content.append(line).append('\n');
+		}
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Could not create directory " + parent);
+		}
+		AtomicFiles.writeIfChanged(file.getAbsoluteFile().toPath(),
+				content.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * @param samples Timings of repeated runs, in any order. The array is sorted.
+	 * @return The median of the timings.
+	 */
+	static double median(double[] samples) {
+		Arrays.sort(samples);
+		int middle = samples.length / 2;
+		return samples.length % 2 == 1 ? samples[middle] : (samples[middle - 1] + samples[middle]) / 2;
+	}
+
+	/**
+	 * A timing compared with the baseline.
+	 */
+	static final class Difference {
+
+		private final String name;
+		private final double baselineMillis;
+		private final double millis;
+		private final boolean regressed;
+
+		Difference(String name, double baselineMillis, double millis, boolean regressed) {
+			this.name = name;
+			this.baselineMillis = baselineMillis;
+			this.millis = millis;
+			this.regressed = regressed;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		/**
+		 * @return How much slower the timing is than the baseline, relative to the baseline. Faster
+		 *         timings are negative.
+		 */
+		double getChange() {
+			return baselineMillis <= 0 ? 0 : millis / baselineMillis - 1;
+		}
+
+		boolean isRegressed() {
+			return regressed;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import net.sf.jasperreports.engine.JRDataSource;
+import net.sf.jasperreports.engine.JREmptyDataSource;
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JRParameter;
+import net.sf.jasperreports.engine.JasperFillManager;
+import net.sf.jasperreports.engine.JasperPrint;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.SimpleJasperReportsContext;
+import net.sf.jasperreports.engine.data.ExcelDataSource;
+import net.sf.jasperreports.engine.data.JRCsvDataSource;
+import net.sf.jasperreports.engine.data.JsonDataSource;
+import net.sf.jasperreports.engine.fill.JRSwapFileVirtualizer;
+import net.sf.jasperreports.engine.util.JRLoader;
+import net.sf.jasperreports.engine.util.JRSwapFile;
+
+/**
+ * A task that fills a {@link Document} and exports it to files. The pages of the filled report are
+ * kept in a swap file of its own, apart from the last pages that are used, so a document of many
+ * thousands of pages is filled and exported in a fixed amount of memory. The exporters write
+ * straight to the files.
+ */
+class RenderTask implements Callable<RenderTask> {
+
+	private static final int SWAP_BLOCK_SIZE = 4096;
+	private static final int SWAP_MIN_GROW_COUNT = 64;
+
+	private final Document document;
+	private final File report;
+	private final File outputDirectory;
+	private final File renderDirectory;
+	private final File swapDirectory;
+	private final int maxPages;
+	private final JasperReportsContext jasperContext;
+	private final Map<String, Long> exportNanos = new LinkedHashMap<>();
+	private final Map<String, File> files = new LinkedHashMap<>();
+	private long fillNanos;
+	private int pages;
+
+	/**
+	 * @param document The document to render.
+	 * @param outputDirectory The directory with all compiled reports.
+	 * @param renderDirectory The directory to write the exported files to.
+	 * @param swapDirectory The directory of the swap file.
+	 * @param maxPages The number of pages that are kept in memory, the others are in the swap file.
+	 * @param jasperContext The Jasper configuration of the execution.
+	 */
+	RenderTask(Document document, File outputDirectory, File renderDirectory, File swapDirectory, int maxPages,
+			JasperReportsContext jasperContext) {
+		this.document = document;
+		this.report = new File(outputDirectory, document.getReport());
+		this.outputDirectory = outputDirectory;
+		this.renderDirectory = renderDirectory;
+		this.swapDirectory = swapDirectory;
+		this.maxPages = Math.max(1, maxPages);
+		this.jasperContext = jasperContext;
+	}
+
+	@Override
+	public RenderTask call() throws Exception {
+		SimpleJasperReportsContext context = FillTask.createContext(jasperContext, report, outputDirectory);
+		JasperReport jasperReport = (JasperReport) JRLoader.loadObject(report);
+		JRSwapFileVirtualizer virtualizer = new JRSwapFileVirtualizer(maxPages, new JRSwapFile(
+				swapDirectory.getAbsolutePath(), SWAP_BLOCK_SIZE, SWAP_MIN_GROW_COUNT), true);
+		try {
+			Map<String, Object> parameters = new HashMap<String, Object>(document.getParameters());
+			parameters.put(JRParameter.REPORT_VIRTUALIZER, virtualizer);
+			long start = System.nanoTime();
+			JasperPrint print;
+			JRDataSource dataSource = openDataSource();
+			try {
+				print = JasperFillManager.getInstance(context).fill(jasperReport, parameters, dataSource);
+			}
+			finally {
+				close(dataSource);
+			}
+			fillNanos = System.nanoTime() - start;
+			pages = print.getPages().size();
+			// No pages change while exporting, so pages that are read back need not be written again
+			virtualizer.setReadOnly(true);
+
+			for (String format : document.getFormats()) {
+				File file = new File(renderDirectory, document.getName() + "." + format);
+				start = System.nanoTime();
+				try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+					FillTask.export(context, print, format, out);
+				}
+				exportNanos.put(format, System.nanoTime() - start);
+				files.put(format, file);
+			}
+		}
+		finally {
+			virtualizer.cleanup();
+		}
+		return this;
+	}
+
+	private JRDataSource openDataSource() throws JRException, IOException {
+		File dataFile = document.getDataFile();
+		if (dataFile == null) {
+			return new JREmptyDataSource(Math.max(1, document.getRecords()));
+		}
+		String name = dataFile.getName().toLowerCase(Locale.ROOT);
+		if (name.endsWith(".json")) {
+			return new JsonDataSource(dataFile, document.getSelectExpression());
+		}
+		if (name.endsWith(".xls") || name.endsWith(".xlsx")) {
+			ExcelDataSource dataSource = new ExcelDataSource(dataFile);
+			dataSource.setUseFirstRowAsHeader(true);
+			return dataSource;
+		}
+		if (name.endsWith(".csv")) {
+			JRCsvDataSource dataSource = new JRCsvDataSource(dataFile, "UTF-8");
+			dataSource.setUseFirstRowAsHeader(true);
+			return dataSource;
+		}
+		throw new JRException("Unknown data file " + dataFile + ", use a .csv, .json, .xls or .xlsx file");
+	}
+
+	private static void close(JRDataSource dataSource) {
+		if (dataSource instanceof JRCsvDataSource) {
+			((JRCsvDataSource) dataSource).close();
+		}
+		else if (dataSource instanceof JsonDataSource) {
+			((JsonDataSource) dataSource).close();
+		}
+		else if (dataSource instanceof ExcelDataSource) {
+			((ExcelDataSource) dataSource).close();
+		}
+	}
+
+	Document getDocument() {
+		return document;
+	}
+
+	/**
+	 * @return The time spent filling the report, in nanoseconds.
+	 */
+	long getFillNanos() {
+		return fillNanos;
+	}
+
+	/**
+	 * @return The time spent exporting to every format, in nanoseconds.
+	 */
+	Map<String, Long> getExportNanos() {
+		return exportNanos;
+	}
+
+	/**
+	 * @return The exported file of every format.
+	 */
+	Map<String, File> getFiles() {
+		return files;
+	}
+
+	int getPages() {
+		return pages;
+	}
+}
@@ -0,0 +1,105 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.alexnederlof.jasperreport.runtime.ReportBundle;
+
+/**
+ * Packs compiled reports into a single file, to be read by {@link ReportBundle}. The file is only
+ * replaced when its content changes.
+ */
+final class ReportBundleWriter {
+
+	private ReportBundleWriter() {
+	}
+
+	/**
+	 * @param bundle The bundle to write.
+	 * @param reports The compiled reports by their name in the bundle, in the order they are written.
+	 * @param compress If the reports are deflated.
+	 * @return <code>true</code> if the bundle was written, <code>false</code> if it was unchanged.
+	 * @throws IOException When a report could not be read or the bundle could not be written.
+	 */
+	static boolean write(File bundle, Map<String, File> reports, boolean compress) throws IOException {
+		List<String> names = new ArrayList<>();
+		List<byte[]> data = new ArrayList<>();
+		List<byte[]> hashes = new ArrayList<>();
+		List<Integer> lengths = new ArrayList<>();
+		for (Map.Entry<String, File> report : reports.entrySet()) {
+			byte[] bytes = Files.readAllBytes(report.getValue().toPath());
+			names.add(report.getKey());
+			hashes.add(Digests.newDigest().digest(bytes));
+			lengths.add(bytes.length);
+			data.add(compress ? deflate(bytes) : bytes);
+		}
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.write(ReportBundle.MAGIC);
+		out.writeInt(ReportBundle.VERSION);
+		out.writeInt(names.size());
+		long offset = ReportBundle.MAGIC.length + 8;
+		for (String name : names) {
+			offset += utfLength(name) + 8 + 4 + 4 + 1 + ReportBundle.HASH_LENGTH;
+		}
+		for (int i = 0; i < names.size(); i++) {
+			out.writeUTF(names.get(i));
+			out.writeLong(offset);
+			out.writeInt(data.get(i).length);
+			out.writeInt(lengths.get(i));
+			out.writeByte(compress ? ReportBundle.DEFLATED : ReportBundle.STORED);
+			out.write(hashes.get(i));
+			offset += data.get(i).length;
+		}
+		for (byte[] bytes : data) {
+			out.write(bytes);
+		}
+		out.flush();
+
+		File parent = bundle.getAbsoluteFile().getParentFile();
+		Files.createDirectories(parent.toPath());
+		return AtomicFiles.writeIfChanged(bundle.getAbsoluteFile().toPath(), buffer.toByteArray());
+	}
+
+	/**
+	 * @return The number of bytes <code>DataOutput.writeUTF</code> writes for the name.
+	 */
+	private static int utfLength(String name) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		new DataOutputStream(buffer).writeUTF(name);
+		return buffer.size();
+	}
+
+	private static byte[] deflate(byte[] bytes) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try (DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater)) {
+			out.write(bytes);
+		}
+		finally {
+			deflater.end();
+		}
+		return buffer.toByteArray();
+	}
+}
@@ -0,0 +1,176 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The subreports embedded by each report design. A master report references a subreport through a
+ * string literal in its <code>subreportExpression</code>, like <code>"OrdersReport.jasper"</code> or
+ * <code>$P{SUBREPORT_DIR} + "OrdersReport.jasper"</code>. References that are only known at fill
+ * time, like a <code>JasperReport</code> parameter, can not be resolved and are ignored.
+ */
+class ReportDependencyGraph {
+
+	private static final Pattern SUBREPORT_EXPRESSION =
+			Pattern.compile("<subreportExpression[^>]*>(.*?)</subreportExpression>", Pattern.DOTALL);
+	private static final Pattern STRING_LITERAL = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+	private final Map<File, Set<File>> subreports = new HashMap<>();
+	private final Map<File, Set<File>> dependents = new HashMap<>();
+
+	private ReportDependencyGraph() {
+	}
+
+	/**
+	 * Reads the subreport references of all sources.
+	 *
+	 * @param sources All report designs in the source directory.
+	 * @param sourceDirectory The source directory.
+	 * @param sourceFileExt The extension of the report designs.
+	 * @param outputFileExt The extension of the compiled reports.
+	 * @return The graph of the references between the sources.
+	 * @throws IOException When a source could not be read.
+	 */
+	static ReportDependencyGraph build(Collection<File> sources, File sourceDirectory, String sourceFileExt,
+			String outputFileExt) throws IOException {
+		ReportDependencyGraph graph = new ReportDependencyGraph();
+		Map<String, File> byPath = new HashMap<>();
+		Map<String, Set<File>> byName = new HashMap<>();
+		for (File source : sources) {
+			File canonical = source.getCanonicalFile();
+			byPath.put(canonical.getPath(), source);
+			Set<File> sameName = byName.get(source.getName());
+			if (sameName == null) {
+				sameName = new HashSet<>();
+				byName.put(source.getName(), sameName);
+			}
+			sameName.add(source);
+		}
+
+		for (File source : sources) {
+			for (String reference : readSubreportReferences(source)) {
+				String design;
+				if (reference.endsWith(outputFileExt)) {
+					design = reference.substring(0, reference.length() - outputFileExt.length()) + sourceFileExt;
+				}
+				else if (reference.endsWith(sourceFileExt)) {
+					design = reference;
+				}
+				else {
+					continue;
+				}
+				File subreport = resolve(design, source, sourceDirectory, byPath, byName);
+				if (subreport != null && !subreport.equals(source)) {
+					graph.addEdge(source, subreport);
+				}
+			}
+		}
+		return graph;
+	}
+
+	/**
+	 * Resolves a referenced design relative to the master, then relative to the source directory
+	 * and finally by its file name, if that is unique.
+	 */
+	private static File resolve(String design, File master, File sourceDirectory, Map<String, File> byPath,
+			Map<String, Set<File>> byName) throws IOException {
+		for (File candidate : new File[] { new File(master.getParentFile(), design), new File(sourceDirectory, design) }) {
+			File match = byPath.get(candidate.getCanonicalPath());
+			if (match != null) {
+				return match;
+			}
+		}
+		Set<File> sameName = byName.get(new File(design).getName());
+		if (sameName != null && sameName.size() == 1) {
+			return sameName.iterator().next();
+		}
+		return null;
+	}
+
+	static Set<String> readSubreportReferences(File source) throws IOException {
+		String xml = new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8);
+		Set<String> references = new LinkedHashSet<>();
+		Matcher expression = SUBREPORT_EXPRESSION.matcher(xml);
+		while (expression.find()) {
+			Matcher literal = STRING_LITERAL.matcher(expression.group(1));
+			while (literal.find()) {
+				references.add(literal.group(1));
+			}
+		}
+		return references;
+	}
+
+	private void addEdge(File master, File subreport) {
+		get(subreports, master).add(subreport);
+		get(dependents, subreport).add(master);
+	}
+
+	private static Set<File> get(Map<File, Set<File>> edges, File report) {
+		Set<File> reports = edges.get(report);
+		if (reports == null) {
+			reports = new LinkedHashSet<>();
+			edges.put(report, reports);
+		}
+		return reports;
+	}
+
+	/**
+	 * @param report A report design.
+	 * @return The designs the report embeds as subreport.
+	 */
+	Set<File> getSubreports(File report) {
+		Set<File> reports = subreports.get(report);
+		return reports == null ? Collections.<File> emptySet() : Collections.unmodifiableSet(reports);
+	}
+
+	/**
+	 * @param report A report design.
+	 * @return The designs that embed the report as subreport.
+	 */
+	Set<File> getDependents(File report) {
+		Set<File> reports = dependents.get(report);
+		return reports == null ? Collections.<File> emptySet() : Collections.unmodifiableSet(reports);
+	}
+
+	/**
+	 * @param reports Report designs that changed.
+	 * @return The given designs together with all designs that embed them, directly or through
+	 *         other subreports.
+	 */
+	Set<File> withDependents(Collection<File> reports) {
+		Set<File> result = new LinkedHashSet<>(reports);
+		Deque<File> queue = new ArrayDeque<>(reports);
+		while (!queue.isEmpty()) {
+			for (File dependent : getDependents(queue.poll())) {
+				if (result.add(dependent)) {
+					queue.add(dependent);
+				}
+			}
+		}
+		return result;
+	}
+}
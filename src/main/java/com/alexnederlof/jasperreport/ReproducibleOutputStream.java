@@ -0,0 +1,97 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serializes a compiled report like <code>JRSaver</code> does, so that the same design always gives
+ * the same bytes. JasperReports gives every element and dataset without a <code>uuid</code> in the
+ * design a random one. These are replaced by UUIDs derived from the path of the design and the
+ * order in which they are written, which only depends on the design. The UUIDs of the design are
+ * kept as they are.
+ * <p>
+ * Strings can be replaced as well, for the random suffix of the expression classes that the
+ * compiled report holds.
+ */
+final class ReproducibleOutputStream extends ObjectOutputStream {
+
+	private static final Pattern UUID_PATTERN =
+			Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+	private final String sourceName;
+	private final Set<UUID> declaredUuids;
+	private final Map<String, String> strings;
+	private final Map<UUID, UUID> generatedUuids = new HashMap<>();
+
+	/**
+	 * @param out The stream to write to.
+	 * @param sourceName The path of the design, relative to the source directory.
+	 * @param declaredUuids The UUIDs in the design, as found by {@link #findUuids(byte[])}.
+	 * @param strings The strings to replace, with their replacement.
+	 * @throws IOException When the stream header could not be written.
+	 */
+	ReproducibleOutputStream(OutputStream out, String sourceName, Set<UUID> declaredUuids,
+			Map<String, String> strings) throws IOException {
+		super(out);
+		// The same on every platform
+		this.sourceName = sourceName.replace(File.separatorChar, '/');
+		this.declaredUuids = declaredUuids;
+		this.strings = strings;
+		enableReplaceObject(true);
+	}
+
+	/**
+	 * @param design The bytes of a design.
+	 * @return All UUIDs written in the design.
+	 */
+	static Set<UUID> findUuids(byte[] design) {
+		Set<UUID> uuids = new HashSet<>();
+		// Designs are written in ASCII compatible encodings, like UTF-8
+		Matcher matcher = UUID_PATTERN.matcher(new String(design, StandardCharsets.ISO_8859_1));
+		while (matcher.find()) {
+			uuids.add(UUID.fromString(matcher.group()));
+		}
+		return uuids;
+	}
+
+	@Override
+	protected Object replaceObject(Object obj) throws IOException {
+		if (obj instanceof UUID && !declaredUuids.contains(obj)) {
+			UUID uuid = generatedUuids.get(obj);
+			if (uuid == null) {
+				uuid = UUID.nameUUIDFromBytes(
+						(sourceName + '#' + generatedUuids.size()).getBytes(StandardCharsets.UTF_8));
+				generatedUuids.put((UUID) obj, uuid);
+			}
+			return uuid;
+		}
+		if (obj instanceof String) {
+			String replacement = strings.get(obj);
+			if (replacement != null) {
+				return replacement;
+			}
+		}
+		return obj;
+	}
+}
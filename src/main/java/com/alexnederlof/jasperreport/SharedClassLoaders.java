@@ -0,0 +1,333 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Class loaders for the classpath of the reports, shared by all executions of the plugin in a build.
+ * In a reactor build most modules compile their reports against the same dependency jars, only
+ * their own class directories differ. The jars are loaded by a class loader that is shared by all
+ * executions with the same jars, so they are opened and indexed once, and classes and Jasper
+ * extensions that were loaded for one module are found again by the next. The directories are
+ * loaded by a class loader of the execution itself, on top of the shared one, which looks in the
+ * directories before it asks the shared one. That finds a class in the same place as a single class
+ * loader of the whole classpath as long as the directories come before the jars, as the classes of
+ * the project do. A classpath with a directory after a jar gets a class loader of its own.
+ * <p>
+ * A shared class loader is closed when it is no longer used and more than {@link #MAX_IDLE} others
+ * are not used either, or when the Maven session ends. A daemon like mvnd keeps the plugin loaded
+ * between builds, so waiting for the JVM to exit would keep the jars open. The plugin still runs on
+ * Maven 2, which has no listener for the end of the session, so the session is only reached through
+ * reflection. Without a session they are closed when the JVM exits.
+ */
+final class SharedClassLoaders {
+
+	/** The number of shared class loaders that are kept open while no execution uses them. */
+	static final int MAX_IDLE = 4;
+
+	private static final Map<String, Shared> SHARED = new LinkedHashMap<>(16, 0.75f, true);
+	private static final Map<ClassLoader, Shared> LEASES = new IdentityHashMap<>();
+	private static final String EXECUTION_LISTENER = "org.apache.maven.execution.ExecutionListener";
+
+	private static final Map<Object, Boolean> SESSIONS = new IdentityHashMap<>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("jasperreports-plugin class loaders") {
+			@Override
+			public void run() {
+				closeAll();
+			}
+		});
+	}
+
+	private SharedClassLoaders() {
+	}
+
+	/**
+	 * @param files The classpath.
+	 * @param parent The parent of the class loader, or <code>null</code> for the bootstrap class
+	 *            loader.
+	 * @param session The Maven session, after which the shared class loaders are closed, or
+	 *            <code>null</code> to close them when the JVM exits.
+	 * @param log The logger.
+	 * @return A class loader for the classpath, to be released by {@link #release(ClassLoader)}.
+	 * @throws MojoExecutionException When a file can not be turned into a URL.
+	 */
+	static synchronized URLClassLoader acquire(List<File> files, ClassLoader parent, Object session,
+			Log log) throws MojoExecutionException {
+		List<URL> all = new ArrayList<>();
+		List<URL> jars = new ArrayList<>();
+		List<URL> directories = new ArrayList<>();
+		boolean directoryAfterJar = false;
+		List<String> fingerprint = new ArrayList<>();
+		fingerprint.add(String.valueOf(System.identityHashCode(parent)));
+		for (File file : files) {
+			URL url;
+			try {
+				url = file.toURI().toURL();
+			}
+			catch (MalformedURLException e) {
+				throw new MojoExecutionException("Error setting classpath " + file + " " + e.getMessage());
+			}
+			log.debug("Added to classpath " + file);
+			all.add(url);
+			if (file.isFile()) {
+				jars.add(url);
+				fingerprint.add(file.getAbsolutePath());
+				fingerprint.add(file.length() + "@" + file.lastModified());
+			}
+			else {
+				directories.add(url);
+				directoryAfterJar |= !jars.isEmpty();
+			}
+		}
+
+		if (directoryAfterJar) {
+			// Looking in the directories first could find another class than the compiler does
+			log.debug("Not sharing the class loader, a directory comes after a jar on the classpath");
+			URLClassLoader loader = new URLClassLoader(all.toArray(new URL[0]), parent);
+			LEASES.put(loader, null);
+			return loader;
+		}
+		if (session != null) {
+			listenForEnd(session, log);
+		}
+		String key = Digests.sha256(fingerprint.toArray(new String[0]));
+		Shared shared = SHARED.get(key);
+		if (shared == null || shared.parent != parent) {
+			shared = new Shared(new URLClassLoader(jars.toArray(new URL[0]), parent), parent);
+			SHARED.put(key, shared);
+			log.debug("Created a class loader for " + jars.size() + " jars");
+		}
+		else {
+			log.debug("Reusing the class loader for " + jars.size() + " jars");
+		}
+		shared.users++;
+		URLClassLoader loader = new DirectoryClassLoader(directories.toArray(new URL[0]), shared.loader);
+		LEASES.put(loader, shared);
+		return loader;
+	}
+
+	/**
+	 * Closes a class loader of {@link #acquire(List, ClassLoader, Object, Log)}, and the shared class loaders
+	 * that are no longer needed.
+	 *
+	 * @param loader The class loader.
+	 */
+	static synchronized void release(ClassLoader loader) {
+		if (!LEASES.containsKey(loader)) {
+			return;
+		}
+		Shared shared = LEASES.remove(loader);
+		close((URLClassLoader) loader);
+		if (shared == null) {
+			return;
+		}
+		shared.users--;
+
+		int idle = 0;
+		for (Shared candidate : SHARED.values()) {
+			if (candidate.users == 0) {
+				idle++;
+			}
+		}
+		// Least recently used first
+		for (Iterator<Shared> i = SHARED.values().iterator(); i.hasNext() && idle > MAX_IDLE;) {
+			Shared candidate = i.next();
+			if (candidate.users == 0) {
+				i.remove();
+				close(candidate.loader);
+				idle--;
+			}
+		}
+	}
+
+	private static synchronized void closeAll() {
+		for (Shared shared : SHARED.values()) {
+			close(shared.loader);
+		}
+		SHARED.clear();
+	}
+
+	/**
+	 * Closes the shared class loaders when the session of a request ends. Maven asks the request
+	 * for its listener on every event, so a listener that is put in place during the build still
+	 * gets the end of the session.
+	 */
+	private static void listenForEnd(Object session, Log log) {
+		try {
+			Object request = session.getClass().getMethod("getRequest").invoke(session);
+			if (request == null || SESSIONS.containsKey(request)) {
+				return;
+			}
+			Class<?> listenerType = Class.forName(EXECUTION_LISTENER, false, request.getClass().getClassLoader());
+			Class<?> requestType = Class.forName("org.apache.maven.execution.MavenExecutionRequest", false,
+					request.getClass().getClassLoader());
+			Method getter = requestType.getMethod("getExecutionListener");
+			Method setter = requestType.getMethod("setExecutionListener", listenerType);
+			Object delegate = getter.invoke(request);
+			Object listener = Proxy.newProxyInstance(listenerType.getClassLoader(), new Class<?>[] { listenerType },
+					new SessionEndListener(request, setter, delegate));
+			setter.invoke(request, listener);
+			SESSIONS.put(request, Boolean.TRUE);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			log.debug("Closing the class loaders when the JVM exits, the end of the session can not be seen: " + e);
+		}
+	}
+
+	private static synchronized void sessionEnded(Object request) {
+		SESSIONS.remove(request);
+		for (Iterator<Shared> i = SHARED.values().iterator(); i.hasNext();) {
+			Shared shared = i.next();
+			// A class loader in use belongs to another session in the same JVM
+			if (shared.users == 0) {
+				i.remove();
+				close(shared.loader);
+			}
+		}
+	}
+
+	private static void close(URLClassLoader loader) {
+		try {
+			loader.close();
+		}
+		catch (IOException e) {
+			// Only fails when a jar can not be closed, which leaves nothing to do
+		}
+	}
+
+	/**
+	 * The class loader of the directories of one execution. It looks for classes and resources in
+	 * the directories before it asks the shared class loader of the jars, so that a class in the
+	 * directories is found before one of the same name in a jar, like on the classpath.
+	 */
+	private static final class DirectoryClassLoader extends URLClassLoader {
+
+		static {
+			registerAsParallelCapable();
+		}
+
+		DirectoryClassLoader(URL[] directories, ClassLoader jars) {
+			super(directories, jars);
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (name.startsWith("java.")) {
+				return super.loadClass(name, resolve);
+			}
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> loaded = findLoadedClass(name);
+				if (loaded == null) {
+					try {
+						loaded = findClass(name);
+					}
+					catch (ClassNotFoundException e) {
+						return super.loadClass(name, resolve);
+					}
+				}
+				if (resolve) {
+					resolveClass(loaded);
+				}
+				return loaded;
+			}
+		}
+
+		@Override
+		public URL getResource(String name) {
+			URL resource = findResource(name);
+			return resource != null ? resource : super.getResource(name);
+		}
+	}
+
+	/**
+	 * The execution listener of the request: passes all events on to the listener of the build, and
+	 * closes the shared class loaders when the session ends.
+	 */
+	private static final class SessionEndListener implements InvocationHandler {
+
+		private final Object request;
+		private final Method setter;
+		private final Object delegate;
+
+		SessionEndListener(Object request, Method setter, Object delegate) {
+			this.request = request;
+			this.setter = setter;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				default:
+					return "SharedClassLoaders listener for " + delegate;
+				}
+			}
+			try {
+				if (delegate != null) {
+					method.invoke(delegate, args);
+				}
+			}
+			catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			finally {
+				if (method.getName().equals("sessionEnded")) {
+					setter.invoke(request, delegate);
+					SharedClassLoaders.sessionEnded(request);
+				}
+			}
+			// All methods of the listener are void
+			return null;
+		}
+	}
+
+	/**
+	 * A class loader of jars and the number of executions that use it.
+	 */
+	private static final class Shared {
+
+		private final URLClassLoader loader;
+		private final ClassLoader parent;
+		private int users;
+
+		Shared(URLClassLoader loader, ClassLoader parent) {
+			this.loader = loader;
+			this.parent = parent;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One pool of threads for all executions of the plugin in a build, so that a parallel build of many
+ * modules compiles as many reports at the same time as there are processors, instead of every
+ * module starting threads of its own.
+ * <p>
+ * Every execution submits its tasks to a {@link Lane} of its own. A free thread takes the next task
+ * from the lanes in turn, so every module gets its share of the threads, however many tasks the
+ * other modules submitted before it.
+ */
+final class SharedWorkerPool {
+
+	private static SharedWorkerPool instance;
+
+	private final int size;
+	private final ThreadPoolExecutor threads;
+	private final Deque<Lane> lanes = new ArrayDeque<>();
+
+	private SharedWorkerPool(int size) {
+		this.size = size;
+		final AtomicInteger count = new AtomicInteger();
+		this.threads = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "jasper-worker-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.threads.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param size The number of threads, used when the pool is created by this call.
+	 * @return The pool of the build.
+	 */
+	static synchronized SharedWorkerPool get(int size) {
+		if (instance == null) {
+			instance = new SharedWorkerPool(size);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return The number of threads of the pool.
+	 */
+	int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return A lane for the tasks of one execution. The tasks run with the context class loader of
+	 *         the thread that creates the lane.
+	 */
+	Lane newLane() {
+		return new Lane(Thread.currentThread().getContextClassLoader());
+	}
+
+	/**
+	 * Runs the next task of the lane whose turn it is. Every task that is submitted submits one call
+	 * of this method to the threads, so there are never more calls than tasks.
+	 */
+	private void runNext() {
+		Lane lane;
+		Runnable task;
+		synchronized (lanes) {
+			lane = lanes.poll();
+			if (lane == null) {
+				return;
+			}
+			task = lane.tasks.poll();
+			if (!lane.tasks.isEmpty()) {
+				lanes.add(lane);
+			}
+		}
+		lane.run(task);
+	}
+
+	/**
+	 * The tasks of one execution.
+	 */
+	final class Lane implements Executor {
+
+		private final ClassLoader classLoader;
+		private final Deque<Runnable> tasks = new ArrayDeque<>();
+
+		private Lane(ClassLoader classLoader) {
+			this.classLoader = classLoader;
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			synchronized (lanes) {
+				if (tasks.isEmpty()) {
+					lanes.add(this);
+				}
+				tasks.add(task);
+			}
+			threads.execute(new Runnable() {
+				@Override
+				public void run() {
+					runNext();
+				}
+			});
+		}
+
+		private void run(Runnable task) {
+			Thread thread = Thread.currentThread();
+			ClassLoader previous = thread.getContextClassLoader();
+			thread.setContextClassLoader(classLoader);
+			try {
+				task.run();
+			}
+			finally {
+				thread.setContextClassLoader(previous);
+				// A cancelled task must not leave its interrupt to the next task of another module
+				Thread.interrupted();
+			}
+		}
+
+		/**
+		 * Drops the tasks that did not start yet.
+		 */
+		void close() {
+			synchronized (lanes) {
+				tasks.clear();
+				lanes.remove(this);
+			}
+		}
+	}
+}
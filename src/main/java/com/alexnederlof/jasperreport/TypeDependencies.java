@@ -0,0 +1,339 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import net.sf.jasperreports.engine.JRDataset;
+import net.sf.jasperreports.engine.JRField;
+import net.sf.jasperreports.engine.JRParameter;
+import net.sf.jasperreports.engine.JRReport;
+import net.sf.jasperreports.engine.JRScriptlet;
+import net.sf.jasperreports.engine.JRVariable;
+
+/**
+ * The classes on the classpath of the reports that their compiled expressions and declarations
+ * refer to. A report only has to be compiled again when one of those classes, or one of their
+ * superclasses or interfaces on the classpath, changed. Classes of the JDK, of JasperReports
+ * and of the expressions themselves are not on the classpath of the reports, so they are left out.
+ * <p>
+ * A class is identified by the hash of its class file, wherever on the classpath it is found, so a
+ * class that moves to another jar without changing does not count as a change.
+ */
+final class TypeDependencies implements Closeable {
+
+	/** The hash of a class that is not on the classpath. */
+	static final String MISSING = "-";
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int HASH_LENGTH = 16;
+
+	private final List<File> classpath;
+	private final Map<File, JarFile> jars = new HashMap<>();
+	private final Map<String, String> hashes = new HashMap<>();
+	private final Map<String, List<String>> supertypes = new HashMap<>();
+
+	/**
+	 * @param classpath The classpath of the reports.
+	 */
+	TypeDependencies(List<File> classpath) {
+		this.classpath = classpath;
+	}
+
+	/**
+	 * @param classFile A compiled class.
+	 * @return The internal names of the classes the class refers to: the classes in its constant
+	 *         pool and the classes in the descriptors of the fields and methods it uses.
+	 * @throws IOException When the class file is not valid.
+	 */
+	static Set<String> referencedTypes(byte[] classFile) throws IOException {
+		Set<String> types = new TreeSet<>();
+		read(classFile, types, null);
+		return types;
+	}
+
+	/**
+	 * @param report A report design.
+	 * @return The internal names of the classes of the parameters, fields, variables and scriptlets
+	 *         the report and its datasets declare, which are only in the compiled expressions when
+	 *         an expression uses them.
+	 */
+	static Set<String> declaredTypes(JRReport report) {
+		Set<String> types = new TreeSet<>();
+		List<JRDataset> datasets = new ArrayList<>();
+		datasets.add(report.getMainDataset());
+		if (report.getDatasets() != null) {
+			datasets.addAll(Arrays.asList(report.getDatasets()));
+		}
+		for (JRDataset dataset : datasets) {
+			addDeclaredType(types, dataset.getScriptletClass());
+			if (dataset.getParameters() != null) {
+				for (JRParameter parameter : dataset.getParameters()) {
+					addDeclaredType(types, parameter.getValueClassName());
+				}
+			}
+			if (dataset.getFields() != null) {
+				for (JRField field : dataset.getFields()) {
+					addDeclaredType(types, field.getValueClassName());
+				}
+			}
+			if (dataset.getVariables() != null) {
+				for (JRVariable variable : dataset.getVariables()) {
+					addDeclaredType(types, variable.getValueClassName());
+				}
+			}
+			if (dataset.getScriptlets() != null) {
+				for (JRScriptlet scriptlet : dataset.getScriptlets()) {
+					addDeclaredType(types, scriptlet.getValueClassName());
+				}
+			}
+		}
+		return types;
+	}
+
+	private static void addDeclaredType(Set<String> types, String className) {
+		if (className != null) {
+			// Array classes are declared as their element class followed by []
+			int array = className.indexOf('[');
+			types.add((array < 0 ? className : className.substring(0, array)).trim().replace('.', '/'));
+		}
+	}
+
+	/**
+	 * @param types The internal names of classes that a report refers to.
+	 * @return The hash of every class that is on the classpath, and of all their superclasses and
+	 *         interfaces on the classpath, by internal name.
+	 * @throws IOException When a class could not be read.
+	 */
+	synchronized Map<String, String> resolve(Collection<String> types) throws IOException {
+		Map<String, String> resolved = new TreeMap<>();
+		Deque<String> queue = new ArrayDeque<>(types);
+		while (!queue.isEmpty()) {
+			String type = queue.poll();
+			if (resolved.containsKey(type)) {
+				continue;
+			}
+			String hash = hash(type);
+			if (!MISSING.equals(hash)) {
+				resolved.put(type, hash);
+				queue.addAll(supertypes.get(type));
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * @param types Classes with the hash they had when they were {@link #resolve(Collection)
+	 *            resolved}.
+	 * @return The first class that changed or disappeared since, or <code>null</code> if none did.
+	 * @throws IOException When a class could not be read.
+	 */
+	synchronized String findChanged(Map<String, String> types) throws IOException {
+		for (Map.Entry<String, String> type : types.entrySet()) {
+			if (!type.getValue().equals(hash(type.getKey()))) {
+				return type.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The hash of the class file of a class, or {@link #MISSING} if the class is not on the
+	 *         classpath.
+	 */
+	private String hash(String type) throws IOException {
+		String hash = hashes.get(type);
+		if (hash == null) {
+			byte[] classFile = find(type);
+			if (classFile == null) {
+				hash = MISSING;
+			}
+			else {
+				hash = Digests.sha256(classFile).substring(0, HASH_LENGTH);
+				List<String> types = new ArrayList<>();
+				read(classFile, null, types);
+				supertypes.put(type, types);
+			}
+			hashes.put(type, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return The class file of a class, from the first entry of the classpath that has it, or
+	 *         <code>null</code> if none has.
+	 */
+	private byte[] find(String type) throws IOException {
+		String name = type + ".class";
+		for (File entry : classpath) {
+			if (entry.isDirectory()) {
+				File file = new File(entry, name);
+				if (file.isFile()) {
+					return Files.readAllBytes(file.toPath());
+				}
+			}
+			else if (entry.isFile()) {
+				JarFile jar = jars.get(entry);
+				if (jar == null) {
+					jar = new JarFile(entry);
+					jars.put(entry, jar);
+				}
+				ZipEntry zipEntry = jar.getEntry(name);
+				if (zipEntry != null) {
+					try (InputStream in = jar.getInputStream(zipEntry)) {
+						return readFully(in);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads the classes a class file refers to, and its superclass and interfaces.
+	 *
+	 * @param referenced Receives the referenced classes, or <code>null</code>.
+	 * @param supertypes Receives the superclass and interfaces, or <code>null</code>.
+	 */
+	private static void read(byte[] classFile, Set<String> referenced, List<String> supertypes)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		// magic, minor and major version
+		in.readInt();
+		in.readInt();
+		int count = in.readUnsignedShort();
+		String[] strings = new String[count];
+		int[] classNames = new int[count];
+		List<Integer> descriptors = new ArrayList<>();
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case CONSTANT_UTF8:
+				strings[i] = in.readUTF();
+				break;
+			case CONSTANT_CLASS:
+				classNames[i] = in.readUnsignedShort();
+				break;
+			case CONSTANT_NAME_AND_TYPE:
+				in.readUnsignedShort();
+				descriptors.add(in.readUnsignedShort());
+				break;
+			case CONSTANT_METHOD_TYPE:
+				descriptors.add(in.readUnsignedShort());
+				break;
+			default:
+				in.skipBytes(ExpressionClassWriter.getConstantLength(tag));
+				if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+					// Takes two entries of the pool
+					i++;
+				}
+			}
+		}
+		if (referenced != null) {
+			for (int nameIndex : classNames) {
+				if (nameIndex > 0) {
+					String name = strings[nameIndex];
+					if (name.startsWith("[")) {
+						addDescriptorTypes(name, referenced);
+					}
+					else {
+						referenced.add(name);
+					}
+				}
+			}
+			for (int descriptor : descriptors) {
+				addDescriptorTypes(strings[descriptor], referenced);
+			}
+		}
+		if (supertypes != null) {
+			// access flags and this class
+			in.readUnsignedShort();
+			in.readUnsignedShort();
+			int superClass = in.readUnsignedShort();
+			if (superClass > 0) {
+				supertypes.add(strings[classNames[superClass]]);
+			}
+			int interfaces = in.readUnsignedShort();
+			for (int i = 0; i < interfaces; i++) {
+				supertypes.add(strings[classNames[in.readUnsignedShort()]]);
+			}
+		}
+	}
+
+	/**
+	 * Adds the classes of a descriptor like <code>(Lcom/example/Order;I)[Ljava/lang/String;</code>.
+	 */
+	private static void addDescriptorTypes(String descriptor, Set<String> types) {
+		int start = descriptor.indexOf('L');
+		while (start >= 0) {
+			int end = descriptor.indexOf(';', start);
+			if (end < 0) {
+				return;
+			}
+			types.add(descriptor.substring(start + 1, end));
+			start = descriptor.indexOf('L', end);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		IOException failure = null;
+		for (JarFile jar : jars.values()) {
+			try {
+				jar.close();
+			}
+			catch (IOException e) {
+				failure = e;
+			}
+		}
+		jars.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.alexnederlof.jasperreport;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable
+ * law or agreed to in writing, software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License
+ * for the specific language governing permissions and limitations under the License.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jasperreports.engine.JRException;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Worker JVMs that compile reports with a {@link CompileWorker}, each with a heap, garbage
+ * collector and JIT of its own. The workers are started when they are first needed and kept for
+ * the rest of the build, so the modules of a build share them and only the first reports pay for
+ * starting and warming up a JVM. They are stopped when the build ends.
+ * <p>
+ * Every execution compiles through a {@link Session} of its own, which sends its classpath and
+ * Jasper properties along with every report.
+ */
+final class WorkerJvmPool {
+
+	private static final Map<List<String>, WorkerJvmPool> POOLS = new HashMap<>();
+
+	private final List<String> command;
+	private final String classpath;
+	private final int size;
+	private final Log log;
+	private final Semaphore permits;
+	private final Queue<Worker> idle = new ConcurrentLinkedQueue<>();
+	private final Queue<Worker> all = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger started = new AtomicInteger();
+
+	private WorkerJvmPool(List<String> command, String classpath, int size, Log log) {
+		this.command = command;
+		this.classpath = classpath;
+		this.size = size;
+		this.log = log;
+		this.permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * @param java The java executable.
+	 * @param jvmArgs The options of the worker JVMs.
+	 * @param classpath The classpath of the worker JVMs, which has the plugin and JasperReports.
+	 * @param size The number of workers, used when the pool is created by this call.
+	 * @param log The logger of the pool.
+	 * @return The pool of the build for the given JVM.
+	 */
+	static synchronized WorkerJvmPool get(String java, List<String> jvmArgs, String classpath, int size, Log log) {
+		List<String> command = new ArrayList<>();
+		command.add(java);
+		command.addAll(jvmArgs);
+		command.add(CompileWorker.class.getName());
+		List<String> key = new ArrayList<>(command);
+		key.add(classpath);
+		WorkerJvmPool pool = POOLS.get(key);
+		if (pool == null) {
+			pool = new WorkerJvmPool(command, classpath, size, log);
+			POOLS.put(key, pool);
+			if (POOLS.size() == 1) {
+				Runtime.getRuntime().addShutdownHook(new Thread("jasper-worker-shutdown") {
+					@Override
+					public void run() {
+						stopAll();
+					}
+				});
+			}
+		}
+		return pool;
+	}
+
+	private static synchronized void stopAll() {
+		for (WorkerJvmPool pool : POOLS.values()) {
+			for (Worker worker : pool.all) {
+				worker.stop();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of workers of the pool.
+	 */
+	int getSize() {
+		return size;
+	}
+
+	/**
+	 * @param classpath The classpath of the reports.
+	 * @param properties The Jasper properties to compile with.
+	 * @return A session to compile the reports of one execution with.
+	 */
+	Session newSession(List<File> classpath, Map<String, String> properties) {
+		List<String> entries = new ArrayList<>();
+		for (File file : classpath) {
+			entries.add(file.getAbsolutePath());
+		}
+		List<String> keyValues = new ArrayList<>();
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			keyValues.add(property.getKey());
+			keyValues.add(property.getValue());
+		}
+		return new Session(entries, keyValues);
+	}
+
+	private Worker acquire() throws IOException, InterruptedException {
+		permits.acquire();
+		Worker worker = idle.poll();
+		if (worker != null) {
+			return worker;
+		}
+		try {
+			worker = new Worker(started.incrementAndGet());
+		}
+		catch (IOException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		all.add(worker);
+		return worker;
+	}
+
+	private void release(Worker worker) {
+		idle.add(worker);
+		permits.release();
+	}
+
+	private void discard(Worker worker) {
+		all.remove(worker);
+		worker.stop();
+		permits.release();
+	}
+
+	/**
+	 * The reports of one execution.
+	 */
+	final class Session {
+
+		private final List<String> classpath;
+		private final List<String> properties;
+
+		private Session(List<String> classpath, List<String> properties) {
+			this.classpath = classpath;
+			this.properties = properties;
+		}
+
+		/**
+		 * Compiles a report on the next free worker. The time the worker spent in every phase is added
+		 * to the metrics of the report, and the classes the expressions refer to to the task.
+		 *
+		 * @return The compiled report.
+		 * @throws JRException When the report could not be compiled, or the worker stopped.
+		 */
+		byte[] compile(CompileTask task, CompileMetrics.Report report) throws JRException {
+			String sourceName = task.getSourceName();
+			Worker worker;
+			try {
+				worker = acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new JRException("Interrupted while waiting for a worker JVM to compile " + sourceName, e);
+			}
+			catch (IOException e) {
+				throw new JRException("Could not start a worker JVM with " + command.get(0), e);
+			}
+			boolean reusable = false;
+			try {
+				DataOutputStream out = worker.out;
+				CompileWorker.writeStrings(out, classpath);
+				CompileWorker.writeStrings(out, properties);
+				CompileWorker.writeString(out, task.getSource().getAbsolutePath());
+				CompileWorker.writeString(out, sourceName);
+				out.writeBoolean(task.isJdtCompiler());
+				out.writeBoolean(task.isReproducible());
+				out.flush();
+
+				DataInputStream in = worker.in;
+				int status = in.readUnsignedByte();
+				if (status == CompileWorker.FAILED) {
+					String message = CompileWorker.readString(in);
+					String trace = CompileWorker.readString(in);
+					reusable = true;
+					throw new JRException(message + System.lineSeparator() + "in worker JVM " + worker.id + ": "
+							+ trace);
+				}
+				for (CompileMetrics.Phase phase : CompileMetrics.Phase.values()) {
+					report.add(phase, in.readLong());
+				}
+				if (in.readBoolean()) {
+					task.addReferencedTypes(CompileWorker.readStrings(in));
+				}
+				byte[] compiled = new byte[in.readInt()];
+				in.readFully(compiled);
+				reusable = true;
+				return compiled;
+			}
+			catch (IOException e) {
+				throw new JRException("Worker JVM " + worker.id + " stopped while compiling " + sourceName
+						+ worker.exitStatus(), e);
+			}
+			finally {
+				if (reusable) {
+					release(worker);
+				}
+				else {
+					discard(worker);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A worker JVM.
+	 */
+	private final class Worker {
+
+		private final int id;
+		private final Process process;
+		private final DataOutputStream out;
+		private final DataInputStream in;
+
+		private Worker(int id) throws IOException {
+			this.id = id;
+			ProcessBuilder builder = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT);
+			// The classpath is passed in the environment, it may be too long for the command line
+			builder.environment().put("CLASSPATH", classpath);
+			this.process = builder.start();
+			this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+			log.debug("Started worker JVM " + id);
+		}
+
+		private String exitStatus() {
+			try {
+				return ", exit code " + process.exitValue();
+			}
+			catch (IllegalThreadStateException e) {
+				return "";
+			}
+		}
+
+		private void stop() {
+			try {
+				// The worker exits when its input is closed
+				out.close();
+			}
+			catch (IOException e) {
+				// It is stopped below
+			}
+			process.destroy();
+		}
+	}
+}
@@ -11,23 +11,60 @@ package com.alexnederlof.jasperreport;
  * for the specific language governing permissions and limitations under the License.
  */
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
 import net.sf.jasperreports.engine.DefaultJasperReportsContext;
+import net.sf.jasperreports.engine.JREmptyDataSource;
 import net.sf.jasperreports.engine.JRException;
 import net.sf.jasperreports.engine.JasperExportManager;
 import net.sf.jasperreports.engine.JasperFillManager;
 import net.sf.jasperreports.engine.JasperPrint;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.JasperReportsContext;
+import net.sf.jasperreports.engine.design.JRJdtCompiler;
+import net.sf.jasperreports.engine.util.JRLoader;
 import net.sf.jasperreports.engine.util.NullOutputStream;
+import com.alexnederlof.jasperreport.runtime.PrecompiledJdtCompiler;
+import com.alexnederlof.jasperreport.runtime.ReportBundle;
+import com.alexnederlof.jasperreport.runtime.ReportCache;
+import com.alexnederlof.jasperreport.runtime.ReportSource;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.apache.maven.plugin.testing.AbstractMojoTestCase;
 import org.codehaus.plexus.util.FileUtils;
 
@@ -83,11 +120,11 @@ public class JasperReportTest extends AbstractMojoTestCase {
 		String pluginPom = getBasedir() + "/src/test/resources/testSampleReportsWithAdditionalPropertiesPom.xml";
 		setupSourceAndDestinationFolder("/sampleReports", "/sampleReports_out");
 
-		getAndExecuteMojo(pluginPom);
-		String defaultPdfFontName = DefaultJasperReportsContext.getInstance()
-			.getProperty("net.sf.jasperreports.default.pdf.font.name");
-		String pdfEmbeddedValue = DefaultJasperReportsContext.getInstance()
-			.getProperty("net.sf.jasperreports.default.pdf.embedded");
+		JasperReporter mojo = (JasperReporter) lookupMojo("jasper", pluginPom);
+		mojo.execute();
+		JasperReportsContext jasperContext = mojo.createJasperContext();
+		String defaultPdfFontName = jasperContext.getProperty("net.sf.jasperreports.default.pdf.font.name");
+		String pdfEmbeddedValue = jasperContext.getProperty("net.sf.jasperreports.default.pdf.embedded");
 
 		assertEquals("Files from sourcefolder do not correspond to files in the destinationFolder",
 				sourceFolder.listFiles().length, destinationFolder.listFiles().length);
@@ -96,12 +133,25 @@ public class JasperReportTest extends AbstractMojoTestCase {
 		assertTrue("default pdf font name has not been set properly", defaultPdfFontName.compareTo("Courier") == 0);
 		assertTrue("net.sf.jasperreports.default.pdf.embedded has not been set properly",
 				pdfEmbeddedValue.compareTo("true") == 0);
+		// Every execution has a context of its own, the global context is left alone
+		assertFalse("The global Jasper context should not be changed", "Courier".equals(DefaultJasperReportsContext
+			.getInstance().getProperty("net.sf.jasperreports.default.pdf.font.name")));
 	}
 
+	/**
+	 * Test that a report filled and exported with the Jasper context of the execution uses the
+	 * default PDF font of the additional properties.
+	 *
+	 * @throws Exception
+	 *             When an unexpexted error occures.
+	 */
 	public void testGivenAdditionalPropertiesAreSetWhenTestingValidReportGenerationAndExportToPdfExpectNoErrors()
 			throws Exception {
 		// compile reports with modified default font property first
 		testGivenAdditionalPropertiesAreSetWhenTestingValidReportGenerationExpectNoErrorOnCompilation();
+		JasperReporter mojo = (JasperReporter) lookupMojo("jasper",
+				getBasedir() + "/src/test/resources/testSampleReportsWithAdditionalPropertiesPom.xml");
+		JasperReportsContext jasperContext = mojo.createJasperContext();
 
 		// now based on the templates, create PDF's
 		assertTrue("Destination is not a directory", destinationFolder.isDirectory());
@@ -118,8 +168,29 @@ public class JasperReportTest extends AbstractMojoTestCase {
 			fail("Expected exactly one testfile to be found in directory");
 		}
 
-		createPdf("PlainTextReportWithDefaultFontReport.jasper");
+		JasperReport report = (JasperReport) JRLoader.loadObject(testFiles.get(0));
+		JasperPrint print = JasperFillManager.getInstance(jasperContext).fill(report,
+				new HashMap<String, Object>(), new JREmptyDataSource());
+		ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+		FillTask.export(jasperContext, print, "pdf", pdf);
+		// The exporter does not compress by default, so the font dictionary is plain text
+		String content = new String(pdf.toByteArray(), StandardCharsets.ISO_8859_1);
+		assertTrue("The PDF should use the default font Courier", content.matches("(?s).*/BaseFont\\s*/Courier\\b.*"));
+		assertFalse("The PDF should not use the Jasper default font Helvetica", content.contains("/Helvetica"));
+	}
+
+	/**
+	 * Test that reports whose expressions are compiled in batches are complete and can be filled.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testExpressionBatchCompilesAllReports() throws Exception {
+		setupSourceAndDestinationFolder("/sampleReports", "/expressionBatch_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testExpressionBatchPom.xml");
 
+		assertAllFilesAreCompiled(sourceFolder, destinationFolder);
+		createPdf("PlainTextReportWithDefaultFontReport.jasper");
 	}
 
 	private void createPdf(String filename) {
@@ -146,6 +217,23 @@ public class JasperReportTest extends AbstractMojoTestCase {
 		mojo.execute();
 	}
 
+	private void getAndExecuteMojo(String pluginPom, File sourceDirectory) throws Exception, MojoExecutionException {
+		JasperReporter mojo = (JasperReporter) lookupMojo("jasper", pluginPom);
+		assertNotNull(mojo);
+		setVariableValueToObject(mojo, "sourceDirectory", sourceDirectory);
+		mojo.execute();
+	}
+
+	/**
+	 * Replaces the source folder by a temporary copy, for tests that change the designs. The
+	 * caller deletes the copy.
+	 */
+	private void copySourceFolder() throws IOException {
+		File copy = Files.createTempDirectory("jasper-sources").toFile();
+		FileUtils.copyDirectoryStructure(sourceFolder, copy);
+		sourceFolder = copy;
+	}
+
 	/**
 	 * Create the source and destination folder. If the destination folder already exsist is shall
 	 * be deleted. Otherwise the tests can't run properly.
@@ -206,6 +294,142 @@ public class JasperReportTest extends AbstractMojoTestCase {
         }
     }
 
+	/**
+	 * Test that a report that can not be compiled leaves the previous compiled report intact.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testInvalidFileKeepsPreviousReport() throws Exception {
+		setupSourceAndDestinationFolder("/brokenReports", "/brokenReports_out");
+		assertTrue(destinationFolder.mkdirs());
+		File previous = new File(destinationFolder, "AlterDesignReport.jasper");
+		Files.write(previous.toPath(), "previous".getBytes(StandardCharsets.UTF_8));
+		assertTrue(previous.setLastModified(0));
+		try {
+			getAndExecuteMojo(getBasedir() + "/src/test/resources/testBrokenReportsPom.xml");
+			fail("An exception should have been thrown");
+		}
+		catch (MojoExecutionException e) {
+			assertEquals(JasperReporter.ERROR_JRE_COMPILE_ERROR, e.getMessage());
+		}
+		assertEquals("previous", new String(Files.readAllBytes(previous.toPath()), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Test that fail fast stops at the first invalid Jasper file. The broken report took the
+	 * longest in the previous build, so on a single thread it is compiled first and no other report
+	 * is compiled.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testFailFastSkipsRemainingReports() throws Exception {
+		setupSourceAndDestinationFolder("/failFast", "/failFast_out");
+		writeCompileTimes(new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/failFast_state"),
+				"BrokenReport.jrxml", 1000, "LandscapeReport.jrxml", 300, "PdfEncryptReport.jrxml", 200,
+				"Report1.jrxml", 100);
+		try {
+			getAndExecuteMojo(getBasedir() + "/src/test/resources/testFailFastPom.xml");
+			fail("An exception should have been thrown");
+		}
+		catch (MojoExecutionException e) {
+			assertEquals(JasperReporter.ERROR_JRE_COMPILE_ERROR, e.getMessage());
+		}
+		assertTrue("No report should be compiled after the first error",
+				detectFolderStructure(destinationFolder).isEmpty());
+	}
+
+	/**
+	 * Test that the build stops at the second broken report with a maximum of two errors: the
+	 * report compiled in between is kept, the ones after it are not compiled and are left out of
+	 * the manifest, so the next build compiles them.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testMaxErrorsStopsAtSecondBrokenReport() throws Exception {
+		setupSourceAndDestinationFolder("/maxErrors", "/maxErrors_out");
+		File stateFolder = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/maxErrors_state");
+		// On a single thread the reports start in this order
+		writeCompileTimes(stateFolder, "Broken1.jrxml", 600, "Good1.jrxml", 500, "Broken2.jrxml", 400,
+				"Good2.jrxml", 300, "Broken3.jrxml", 200, "Good3.jrxml", 100);
+		try {
+			getAndExecuteMojo(getBasedir() + "/src/test/resources/testMaxErrorsPom.xml");
+			fail("An exception should have been thrown");
+		}
+		catch (MojoExecutionException e) {
+			assertEquals(JasperReporter.ERROR_JRE_COMPILE_ERROR, e.getMessage());
+		}
+		assertEquals(Collections.singleton(new File(destinationFolder, "Good1.jasper").getAbsolutePath()),
+				detectFolderStructure(destinationFolder));
+
+		Properties manifest = new Properties();
+		try (InputStream in = new FileInputStream(new File(stateFolder, "manifest.properties"))) {
+			manifest.load(in);
+		}
+		assertTrue(manifest.containsKey("source:Good1.jrxml"));
+		for (String cancelled : Arrays.asList("Broken1.jrxml", "Broken2.jrxml", "Good2.jrxml", "Broken3.jrxml",
+				"Good3.jrxml")) {
+			assertFalse(cancelled + " should not be in the manifest", manifest.containsKey("source:" + cancelled));
+		}
+	}
+
+	/**
+	 * Writes the compile times of a previous build to a new state directory. On a single thread the
+	 * report that took the longest is compiled first.
+	 */
+	private void writeCompileTimes(File stateFolder, Object... namesAndMillis) throws IOException {
+		FileUtils.deleteDirectory(stateFolder);
+		assertTrue(stateFolder.mkdirs());
+		Properties timings = new Properties();
+		for (int i = 0; i < namesAndMillis.length; i += 2) {
+			timings.setProperty((String) namesAndMillis[i], namesAndMillis[i + 1] + ":1");
+		}
+		try (OutputStream out = new FileOutputStream(new File(stateFolder, "timings.properties"))) {
+			timings.store(out, null);
+		}
+	}
+
+	/**
+	 * Test that the validate goal reports the problems of all designs at once, and that the jasper
+	 * goal with lint does not compile anything when there is a problem.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testLintReportsAllProblemsBeforeCompiling() throws Exception {
+		setupSourceAndDestinationFolder("/lintReports", "/lint_out");
+		String pluginPom = getBasedir() + "/src/test/resources/testLintPom.xml";
+		String message = null;
+		try {
+			((JasperReporter) lookupMojo("validate", pluginPom)).execute();
+			fail("An exception should have been thrown");
+		}
+		catch (MojoExecutionException e) {
+			message = e.getMessage();
+		}
+		assertTrue(message, message.contains("Malformed.jrxml:"));
+		assertTrue(message, message.contains("Invalid.jrxml:"));
+		assertTrue(message, message.contains("Unresolved.jrxml:3:"));
+		assertTrue(message, message.contains("Style MissingStyle is not defined"));
+		assertTrue(message, message.contains("Class com.example.MissingCustomer is not on the classpath"));
+		assertTrue(message, message.contains("Resource missing-logo.png is not found"));
+		assertTrue(message, message.contains("Subreport MissingSubreport.jasper is not found"));
+		assertFalse(message, message.contains("Master.jrxml"));
+		assertFalse(message, message.contains("Sub.jrxml"));
+
+		try {
+			getAndExecuteMojo(pluginPom);
+			fail("An exception should have been thrown");
+		}
+		catch (MojoExecutionException e) {
+			assertEquals(message, e.getMessage());
+		}
+		assertTrue("No report should be compiled when a design has a problem",
+				detectFolderStructure(destinationFolder).isEmpty());
+	}
+
 	/**
 	 * Test that skipping the plugin does not compile any Jasper file.
 	 *
@@ -307,6 +531,1070 @@ public class JasperReportTest extends AbstractMojoTestCase {
 		assertTrue("There were more files found then expected", filenames.isEmpty());
 	}
 
+	/**
+	 * Test that compiled reports get the same permissions as any other new file, and that a file
+	 * that is replaced keeps its permissions.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testWrittenFilesGetPermissionsOfNewFiles() throws Exception {
+		if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			return;
+		}
+		setupSourceAndDestinationFolder("/folderStructure", "/folderStructure_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testFolderStructurePom.xml");
+		Path report = new File(destinationFolder, "LandscapeReport.jasper").toPath();
+		Path plain = Files.write(new File(destinationFolder, "plain.txt").toPath(), new byte[] { 1 });
+		assertEquals(Files.getPosixFilePermissions(plain), Files.getPosixFilePermissions(report));
+
+		Files.setPosixFilePermissions(report, PosixFilePermissions.fromString("rw-rw-r--"));
+		AtomicFiles.writeIfChanged(report, new byte[] { 1 });
+		assertEquals("rw-rw-r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(report)));
+	}
+
+	/**
+	 * Test that the class list holds the classes that filling the compiled reports loads, without
+	 * the classes of the plugin itself.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testClassListHoldsClassesOfFilledReports() throws Exception {
+		if (System.getProperty("java.specification.version").startsWith("1.")) {
+			// Recording the loaded classes needs Java 9 or later
+			return;
+		}
+		setupSourceAndDestinationFolder("/folderStructure", "/folderStructure_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testFolderStructurePom.xml");
+		File classList = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/classList/jasperreports.classlist");
+		Files.deleteIfExists(classList.toPath());
+
+		JasperReporter mojo = (JasperReporter) lookupMojo("class-list",
+				getBasedir() + "/src/test/resources/testClassListPom.xml");
+		mojo.execute();
+
+		List<String> classes = Files.readAllLines(classList.toPath(), StandardCharsets.UTF_8);
+		assertTrue(classes.contains("net/sf/jasperreports/engine/JasperFillManager"));
+		assertTrue(classes.contains("net/sf/jasperreports/engine/export/JRPdfExporter"));
+		assertFalse(classes.contains(ClassListDriver.class.getName().replace('.', '/')));
+		assertEquals(new HashSet<String>(classes).size(), classes.size());
+	}
+
+	/**
+	 * Test that the expressions of the reports are written as class files, from which a compiled
+	 * report loads them when it is filled.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testExpressionClassesAreWritten() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/expressionClasses_out");
+		copySourceFolder();
+		File classes = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/expressionClasses_classes");
+		FileUtils.deleteDirectory(classes);
+		try {
+			// The reports of the folder structure can not be filled without data
+			Files.copy(new File(getBasedir(), TARGET_EXAMPLE_FOLDER + "/sampleReports/Report1.jrxml").toPath(),
+					new File(sourceFolder, "Report1.jrxml").toPath());
+			JasperReporter mojo = (JasperReporter) lookupMojo("jasper",
+					getBasedir() + "/src/test/resources/testExpressionClassesPom.xml");
+			setVariableValueToObject(mojo, "sourceDirectory", sourceFolder);
+			mojo.execute();
+		}
+		finally {
+			FileUtils.deleteDirectory(sourceFolder);
+		}
+
+		assertTrue(new File(classes, "com/example/reports/Report1.class").isFile());
+		assertTrue(new File(classes, "com/example/reports/level_1/level_2_2/MasterReport.class").isFile());
+		// A design without expressions has no class
+		assertFalse(new File(classes, "com/example/reports/LandscapeReport.class").exists());
+		JasperReport report = (JasperReport) JRLoader.loadObject(new File(destinationFolder, "Report1.jasper"));
+		assertEquals(PrecompiledJdtCompiler.class.getName(), report.getCompilerClass());
+
+		ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		try (URLClassLoader expressions = new URLClassLoader(new URL[] { classes.toURI().toURL() }, classLoader)) {
+			Thread.currentThread().setContextClassLoader(expressions);
+			JasperPrint print = JasperFillManager.fillReport(report, new HashMap<String, Object>(),
+					new JREmptyDataSource());
+			assertEquals(1, print.getPages().size());
+		}
+		finally {
+			Thread.currentThread().setContextClassLoader(classLoader);
+		}
+	}
+
+	/**
+	 * Test that designs whose expression classes get the same name fail the build, naming both.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testExpressionClassNameClashStopsBuild() throws Exception {
+		setupSourceAndDestinationFolder("/classNameClash", "/classNameClash_out");
+		FileUtils.deleteDirectory(new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/classNameClash_classes"));
+		try {
+			getAndExecuteMojo(getBasedir() + "/src/test/resources/testClassNameClashPom.xml");
+			fail("Designs with the same expressions class should stop the build");
+		}
+		catch (MojoExecutionException e) {
+			String message = e.getCause().getMessage();
+			assertTrue(message, message.contains("level.1" + File.separator + "Report.jrxml"));
+			assertTrue(message, message.contains("level-1" + File.separator + "Report.jrxml"));
+		}
+	}
+
+	/**
+	 * Test that a new design can not take the expression class of a design that is not compiled
+	 * again, and that the expression classes of a deleted design are deleted.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testExpressionClassesOfUnchangedAndDeletedDesigns() throws Exception {
+		setupSourceAndDestinationFolder("/sampleReports", "/expressionClasses_out");
+		File sources = Files.createTempDirectory("jasper-sources").toFile();
+		File state = Files.createTempDirectory("jasper-state").toFile();
+		File classes = Files.createTempDirectory("jasper-classes").toFile();
+		try {
+			Files.copy(new File(sourceFolder, "ListReport.jrxml").toPath(), new File(sources, "ListReport.jrxml").toPath());
+			executeExpressionClassesMojo(sources, state, classes);
+			File listClass = new File(classes, "com/example/reports/ListReport.class");
+			File datasetClass = new File(classes, "com/example/reports/ListReport_Addresses.class");
+			assertTrue(listClass.isFile());
+			assertTrue(datasetClass.isFile());
+
+			// Its main class is the class of the dataset of the unchanged ListReport
+			Files.copy(new File(sourceFolder, "Report1.jrxml").toPath(),
+					new File(sources, "ListReport_Addresses.jrxml").toPath());
+			try {
+				executeExpressionClassesMojo(sources, state, classes);
+				fail("A new design should not take the class of an unchanged design");
+			}
+			catch (MojoExecutionException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("ListReport.jrxml dataset Addresses"));
+				assertTrue(e.getMessage(), e.getMessage().contains("ListReport_Addresses.jrxml"));
+			}
+
+			assertTrue(new File(sources, "ListReport.jrxml").delete());
+			executeExpressionClassesMojo(sources, state, classes);
+			assertFalse("The class of a deleted design should be deleted", listClass.exists());
+			assertTrue("The class of the new design should be written", datasetClass.isFile());
+		}
+		finally {
+			FileUtils.deleteDirectory(sources);
+			FileUtils.deleteDirectory(state);
+			FileUtils.deleteDirectory(classes);
+		}
+	}
+
+	private void executeExpressionClassesMojo(File sources, File state, File classes) throws Exception {
+		JasperReporter mojo = (JasperReporter) lookupMojo("jasper",
+				getBasedir() + "/src/test/resources/testExpressionClassesPom.xml");
+		setVariableValueToObject(mojo, "sourceDirectory", sources);
+		setVariableValueToObject(mojo, "stateDirectory", state);
+		setVariableValueToObject(mojo, "expressionClassesDirectory", classes);
+		mojo.execute();
+	}
+
+	/**
+	 * Test that a report is not compiled again when only its timestamp changed.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testIncrementalBuildSkipsUnchangedReports() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/incremental_out");
+		FileUtils.deleteDirectory(new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/incremental_state"));
+		String pluginPom = getBasedir() + "/src/test/resources/testIncrementalPom.xml";
+		getAndExecuteMojo(pluginPom);
+
+		File compiled = new File(destinationFolder, "LandscapeReport.jasper");
+		long compiledAt = 1000000000000L;
+		assertTrue(compiled.setLastModified(compiledAt));
+		assertTrue(new File(sourceFolder, "LandscapeReport.jrxml").setLastModified(System.currentTimeMillis()));
+
+		getAndExecuteMojo(pluginPom);
+		assertEquals("An unchanged report should not be compiled again", compiledAt, compiled.lastModified());
+	}
+
+	/**
+	 * Test that the compile metrics of every report are written to the state directory.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testCompileMetricsAreWritten() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/incremental_out");
+		File stateFolder = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/incremental_state");
+		FileUtils.deleteDirectory(stateFolder);
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testIncrementalPom.xml");
+
+		String metrics = new String(Files.readAllBytes(new File(stateFolder, "metrics.json").toPath()),
+				StandardCharsets.UTF_8);
+		assertTrue(metrics.contains("\"source\": \"LandscapeReport.jrxml\""));
+		assertEquals(4, metrics.split("\"javaCompileMillis\"").length - 1);
+	}
+
+	/**
+	 * Test that the scheduler starts the ready report with the longest remaining path first: a
+	 * cheap subreport of an expensive master goes before reports that are more expensive on their
+	 * own, and the master goes next as soon as its subreport is done.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testSchedulerStartsLongestPathFirst() throws Exception {
+		final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		CompileScheduler scheduler = new CompileScheduler(1, new SystemStreamLog());
+		CompileTask single = new RecordingTask("Single.jrxml", started);
+		CompileTask subreport = new RecordingTask("Subreport.jrxml", started);
+		CompileTask master = new RecordingTask("Master.jrxml", started);
+		CompileTask large = new RecordingTask("Large.jrxml", started);
+		scheduler.setCost(single, 10);
+		scheduler.setCost(subreport, 1);
+		scheduler.setCost(master, 100);
+		scheduler.setCost(large, 50);
+		scheduler.addDependency(master, subreport);
+
+		assertTrue(scheduler.run().isEmpty());
+		assertEquals(Arrays.asList("Subreport.jrxml", "Master.jrxml", "Large.jrxml", "Single.jrxml"), started);
+	}
+
+	/**
+	 * A task that records when it starts instead of compiling a report.
+	 */
+	private static class RecordingTask extends CompileTask {
+
+		private final List<String> started;
+
+		RecordingTask(String sourceName, List<String> started) {
+			super(new File(sourceName), sourceName, null, null, false, null, null, null, null, null, false,
+					false, null);
+			this.started = started;
+		}
+
+		@Override
+		public Void call() {
+			started.add(getSourceName());
+			return null;
+		}
+	}
+
+	/**
+	 * Test that the number of threads defaults to the number of available processors.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testNumberOfThreadsDefaultsToProcessors() throws Exception {
+		JasperReporter mojo =
+				(JasperReporter) lookupMojo("jasper", getBasedir() + "/src/test/resources/testIncrementalPom.xml");
+		setVariableValueToObject(mojo, "numberOfThreads", 0);
+		assertEquals(Runtime.getRuntime().availableProcessors(), mojo.getNumberOfThreads());
+		setVariableValueToObject(mojo, "numberOfThreads", 3);
+		assertEquals(3, mojo.getNumberOfThreads());
+	}
+
+	/**
+	 * Test that all reports are compiled when none fits in the heap budget, and that the bytes
+	 * their compilation allocated are kept for the next build.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testHeapBudgetCompilesReportsThatDoNotFit() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/incremental_out");
+		File stateFolder = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/incremental_state");
+		FileUtils.deleteDirectory(stateFolder);
+		JasperReporter mojo =
+				(JasperReporter) lookupMojo("jasper", getBasedir() + "/src/test/resources/testIncrementalPom.xml");
+		setVariableValueToObject(mojo, "heapBudget", 1);
+		mojo.execute();
+		assertEquals(4, detectFolderStructure(destinationFolder).size());
+
+		Properties timings = new Properties();
+		try (InputStream in = new FileInputStream(new File(stateFolder, "timings.properties"))) {
+			timings.load(in);
+		}
+		assertEquals(3, timings.getProperty("LandscapeReport.jrxml").split(":").length);
+	}
+
+	/**
+	 * Test that the footprint of a report that was not measured yet is its size times the average
+	 * bytes per source byte, without rounding the average first.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testFootprintEstimateKeepsFractionOfAverage() throws Exception {
+		CompileHistory history = CompileHistory.empty(new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER
+				+ "/history/timings.properties"));
+		history.record("Measured.jrxml", 3, 10, 10L);
+		assertEquals(10, history.estimateFootprint("Measured.jrxml", 3));
+		assertEquals(20, history.estimateFootprint("New.jrxml", 6));
+	}
+
+	/**
+	 * Test that reports compiled by the instrumented JDT compiler name a compiler that exists when
+	 * they are filled, and can be filled.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testInstrumentedReportsCanBeFilled() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/incremental_out");
+		FileUtils.deleteDirectory(new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/incremental_state"));
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testIncrementalPom.xml");
+
+		JasperReport report = (JasperReport) JRLoader.loadObject(new File(destinationFolder, "LandscapeReport.jasper"));
+		assertEquals(JRJdtCompiler.class.getName(), report.getCompilerClass());
+		JasperPrint print = JasperFillManager.fillReport(report, new HashMap<String, Object>(), new JREmptyDataSource());
+		assertEquals(1, print.getPages().size());
+		JasperExportManager.exportReportToPdfStream(print, new NullOutputStream());
+	}
+
+	/**
+	 * Test that a report is compiled again when a subreport it embeds changed.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testChangedSubreportRecompilesMaster() throws Exception {
+		setupSourceAndDestinationFolder("/sampleReports", "/dependencies_out");
+		copySourceFolder();
+		try {
+			FileUtils.deleteDirectory(new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/dependencies_state"));
+			String pluginPom = getBasedir() + "/src/test/resources/testDependenciesPom.xml";
+			getAndExecuteMojo(pluginPom, sourceFolder);
+
+			File master = new File(destinationFolder, "CustomersReport.jasper");
+			File unrelated = new File(destinationFolder, "LandscapeReport.jasper");
+			long compiledAt = 1000000000000L;
+			assertTrue(master.setLastModified(compiledAt));
+			assertTrue(unrelated.setLastModified(compiledAt));
+			Files.write(new File(sourceFolder, "OrdersReport.jrxml").toPath(),
+					"<!-- changed -->".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+			getAndExecuteMojo(pluginPom, sourceFolder);
+			assertTrue("The master of a changed subreport should be compiled again",
+					master.lastModified() != compiledAt);
+			assertEquals("An unrelated report should not be compiled again", compiledAt, unrelated.lastModified());
+		}
+		finally {
+			FileUtils.deleteDirectory(sourceFolder);
+		}
+	}
+
+	/**
+	 * Test that a report is compiled again when a class its expressions refer to changed, and that
+	 * a change to any other class on the classpath compiles nothing.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testChangedClassRecompilesReportsUsingIt() throws Exception {
+		setupSourceAndDestinationFolder("/typeReports", "/types_out");
+		File stateFolder = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/types_state");
+		File classesFolder = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/types_classes");
+		FileUtils.deleteDirectory(stateFolder);
+		FileUtils.deleteDirectory(classesFolder);
+		compileClass(classesFolder, "Customer", "public String getName() { return \"Customer\"; }");
+		compileClass(classesFolder, "Unused", "");
+		String pluginPom = getBasedir() + "/src/test/resources/testTypesPom.xml";
+		getAndExecuteMojo(pluginPom);
+		assertEquals(2, detectFolderStructure(destinationFolder).size());
+
+		File metricsFile = new File(stateFolder, "metrics.json");
+		assertTrue(metricsFile.delete());
+		compileClass(classesFolder, "Customer",
+				"public String getName() { return \"Customer\"; } public int getId() { return 1; }");
+		getAndExecuteMojo(pluginPom);
+		String metrics = new String(Files.readAllBytes(metricsFile.toPath()), StandardCharsets.UTF_8);
+		assertTrue("A report using the changed class should be compiled again",
+				metrics.contains("\"source\": \"CustomerReport.jrxml\""));
+		assertFalse("A report not using the changed class should not be compiled again",
+				metrics.contains("\"source\": \"PlainReport.jrxml\""));
+
+		assertTrue(metricsFile.delete());
+		compileClass(classesFolder, "Unused", "public int getId() { return 1; }");
+		getAndExecuteMojo(pluginPom);
+		assertFalse("A class no report uses should not compile any report", metricsFile.exists());
+	}
+
+	private void compileClass(File classesFolder, String name, String body) throws IOException {
+		File source = new File(classesFolder, "src/beans/" + name + ".java");
+		source.getParentFile().mkdirs();
+		Files.write(source.toPath(),
+				("package beans; public class " + name + " { " + body + " }").getBytes(StandardCharsets.UTF_8));
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertEquals(0, compiler.run(null, null, null, "-d", classesFolder.getPath(), source.getPath()));
+	}
+
+	/**
+	 * Test that compiled reports are restored from the build cache instead of being compiled
+	 * again. Compiling a report twice gives different bytes, so identical bytes can only come from
+	 * the cache.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testBuildCacheRestoresCompiledReports() throws Exception {
+		FileUtils.deleteDirectory(new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/buildCache"));
+		setupSourceAndDestinationFolder("/folderStructure", "/buildCache_out");
+		String pluginPom = getBasedir() + "/src/test/resources/testBuildCachePom.xml";
+		getAndExecuteMojo(pluginPom);
+		byte[] compiled = Files.readAllBytes(new File(destinationFolder, "LandscapeReport.jasper").toPath());
+
+		setupSourceAndDestinationFolder("/folderStructure", "/buildCache_out");
+		getAndExecuteMojo(pluginPom);
+		byte[] restored = Files.readAllBytes(new File(destinationFolder, "LandscapeReport.jasper").toPath());
+		assertTrue("The report should be restored from the build cache", Arrays.equals(compiled, restored));
+		assertEquals(4, detectFolderStructure(destinationFolder).size());
+	}
+
+	/**
+	 * Test that a checkout in another directory, with a classpath of the same classes written at
+	 * another time, gets the compiled reports from the build cache.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testBuildCacheIsSharedBetweenCheckouts() throws Exception {
+		FileUtils.deleteDirectory(new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/buildCache"));
+		setupSourceAndDestinationFolder("/folderStructure", "/buildCache_out");
+		File classes = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/buildCache_classes");
+		FileUtils.deleteDirectory(classes);
+		compileClass(classes, "Customer", "public String getName() { return \"Customer\"; }");
+		String pluginPom = getBasedir() + "/src/test/resources/testBuildCachePom.xml";
+
+		byte[][] compiled = new byte[2][];
+		for (int i = 0; i < compiled.length; i++) {
+			File checkout = Files.createTempDirectory("jasper-checkout").toFile();
+			try {
+				File checkoutSources = new File(checkout, "reports");
+				File checkoutClasses = new File(checkout, "classes");
+				File checkoutOutput = new File(checkout, "out");
+				FileUtils.copyDirectoryStructure(sourceFolder, checkoutSources);
+				FileUtils.copyDirectoryStructure(classes, checkoutClasses);
+				new File(checkoutClasses, "beans/Customer.class").setLastModified(1000000000000L + i * 60000L);
+
+				JasperReporter mojo = (JasperReporter) lookupMojo("jasper", pluginPom);
+				setVariableValueToObject(mojo, "sourceDirectory", checkoutSources);
+				setVariableValueToObject(mojo, "outputDirectory", checkoutOutput);
+				setVariableValueToObject(mojo, "additionalClasspath", checkoutClasses.getAbsolutePath());
+				mojo.execute();
+				compiled[i] = Files.readAllBytes(new File(checkoutOutput, "LandscapeReport.jasper").toPath());
+			}
+			finally {
+				FileUtils.deleteDirectory(checkout);
+			}
+		}
+		assertTrue("The second checkout should get the report from the build cache",
+				Arrays.equals(compiled[0], compiled[1]));
+	}
+
+	/**
+	 * Test that build cache entries are readable by other accounts, so the cache can be shared.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testBuildCacheEntriesAreReadableByOthers() throws Exception {
+		if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			return;
+		}
+		File cacheFolder = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/buildCache");
+		FileUtils.deleteDirectory(cacheFolder);
+		setupSourceAndDestinationFolder("/folderStructure", "/buildCache_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testBuildCachePom.xml");
+		Set<String> entries = detectFolderStructure(cacheFolder);
+		assertEquals(4, entries.size());
+		for (String entry : entries) {
+			assertEquals(entry, "rw-r--r--",
+					PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(entry).toPath())));
+		}
+	}
+
+	/**
+	 * Test that compiling the sample reports twice in reproducible mode gives the same bytes for
+	 * every report, where two compilations without it give different bytes for every report.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testReproducibleCompilationGivesIdenticalReports() throws Exception {
+		Map<String, byte[]> first = compileSampleReports(false);
+		Map<String, byte[]> second = compileSampleReports(false);
+		assertEquals(first.keySet(), second.keySet());
+		for (Map.Entry<String, byte[]> compiled : second.entrySet()) {
+			assertFalse(compiled.getKey() + " should hold random names without reproducible mode",
+					Arrays.equals(first.get(compiled.getKey()), compiled.getValue()));
+		}
+
+		first = compileSampleReports(true);
+		second = compileSampleReports(true);
+		assertEquals(first.keySet(), second.keySet());
+		for (Map.Entry<String, byte[]> compiled : second.entrySet()) {
+			assertTrue(compiled.getKey() + " should be compiled to the same bytes",
+					Arrays.equals(first.get(compiled.getKey()), compiled.getValue()));
+		}
+	}
+
+	/**
+	 * Compiles the sample reports into an empty output folder.
+	 *
+	 * @return The bytes of every compiled report, by file name.
+	 */
+	private Map<String, byte[]> compileSampleReports(boolean reproducible) throws Exception {
+		setupSourceAndDestinationFolder("/sampleReports", "/sampleReports_out");
+		JasperReporter mojo = (JasperReporter) lookupMojo("jasper",
+				getBasedir() + "/src/test/resources/testSampleReportsPom.xml");
+		setVariableValueToObject(mojo, "reproducible", reproducible);
+		mojo.execute();
+		Map<String, byte[]> compiled = new HashMap<>();
+		for (File report : destinationFolder.listFiles()) {
+			compiled.put(report.getName(), Files.readAllBytes(report.toPath()));
+		}
+		assertEquals(sourceFolder.listFiles().length, compiled.size());
+		return compiled;
+	}
+
+	/**
+	 * Test that all compiled reports are packed into a bundle, and can be loaded from it by their
+	 * path in the output folder.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testBundleContainsAllReports() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/bundle_out");
+		File bundleFile = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/bundle/reports.jrbundle");
+		bundleFile.delete();
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testBundlePom.xml");
+
+		try (ReportBundle bundle = ReportBundle.open(bundleFile.toPath())) {
+			assertEquals(new HashSet<>(Arrays.asList("LandscapeReport.jasper",
+					"level.1/level.2.1/LateOrdersReport.jasper", "level.1/level.2.2/MasterReport.jasper",
+					"level.1/level.2.2/Level.3/LineChartReport.jasper")), bundle.getNames());
+			assertEquals("LandscapeReport", bundle.load("LandscapeReport.jasper").getName());
+			byte[] compiled = Files.readAllBytes(new File(destinationFolder,
+					"level.1/level.2.2/MasterReport.jasper").toPath());
+			assertTrue(Arrays.equals(compiled, bundle.getBytes("level.1/level.2.2/MasterReport.jasper")));
+		}
+	}
+
+	/**
+	 * Test that the report cache deserializes a report once, and again after it changed.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testReportCacheReloadsChangedReport() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/bundle_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testBundlePom.xml");
+
+		ReportCache cache = new ReportCache(new ReportSource.Directory(destinationFolder.toPath()), 10, 0,
+				TimeUnit.MILLISECONDS);
+		JasperReport report = cache.get("level.1/level.2.2/MasterReport.jasper");
+		assertEquals("MasterReport", report.getName());
+		assertSame(report, cache.get("level.1/level.2.2/MasterReport.jasper"));
+
+		File compiled = new File(destinationFolder, "level.1/level.2.2/MasterReport.jasper");
+		compiled.setLastModified(compiled.lastModified() - 10000);
+		assertNotSame(report, cache.get("level.1/level.2.2/MasterReport.jasper"));
+		ReportCache.Statistics statistics = cache.getStatistics();
+		assertEquals(1, statistics.getHits());
+		assertEquals(2, statistics.getMisses());
+		assertEquals(1, statistics.getInvalidations());
+	}
+
+	/**
+	 * Test that threads asking for a report that is being loaded wait for it instead of loading it
+	 * themselves.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testReportCacheLoadsReportOnceForConcurrentRequests() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/bundle_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testBundlePom.xml");
+
+		final int threads = 8;
+		final ReportSource directory = new ReportSource.Directory(destinationFolder.toPath());
+		final AtomicInteger opened = new AtomicInteger();
+		final ReportCache[] cache = new ReportCache[1];
+		cache[0] = new ReportCache(new ReportSource() {
+			@Override
+			public InputStream open(String name) throws IOException {
+				opened.incrementAndGet();
+				// Keep loading until the other threads asked for the report as well
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+				while (cache[0].getStatistics().getHits() < threads - 1 && System.nanoTime() < deadline) {
+					Thread.yield();
+				}
+				return directory.open(name);
+			}
+
+			@Override
+			public Object getVersion(String name) throws IOException {
+				return directory.getVersion(name);
+			}
+		}, 10);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<JasperReport>> reports = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				reports.add(executor.submit(new Callable<JasperReport>() {
+					@Override
+					public JasperReport call() throws JRException {
+						return cache[0].get("LandscapeReport.jasper");
+					}
+				}));
+			}
+			JasperReport report = reports.get(0).get();
+			for (Future<JasperReport> other : reports) {
+				assertSame(report, other.get());
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, opened.get());
+		ReportCache.Statistics statistics = cache[0].getStatistics();
+		assertEquals(1, statistics.getMisses());
+		assertEquals(threads - 1, statistics.getHits());
+	}
+
+	/**
+	 * Test that the least recently used report is removed when the cache is full.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testReportCacheEvictsEldestReport() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/bundle_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testBundlePom.xml");
+
+		ReportCache cache = new ReportCache(new ReportSource.Directory(destinationFolder.toPath()), 2);
+		JasperReport landscape = cache.get("LandscapeReport.jasper");
+		cache.get("level.1/level.2.2/MasterReport.jasper");
+		assertSame(landscape, cache.get("LandscapeReport.jasper"));
+		assertEquals(0, cache.getStatistics().getEvictions());
+
+		// The master report is now the least recently used one
+		cache.get("level.1/level.2.1/LateOrdersReport.jasper");
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getStatistics().getEvictions());
+		assertSame(landscape, cache.get("LandscapeReport.jasper"));
+		cache.get("level.1/level.2.2/MasterReport.jasper");
+		ReportCache.Statistics statistics = cache.getStatistics();
+		assertEquals(4, statistics.getMisses());
+		assertEquals(2, statistics.getHits());
+		assertEquals(2, statistics.getEvictions());
+	}
+
+	/**
+	 * Test that a report that failed to load is not cached, so the next request loads it again.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testReportCacheDoesNotCacheFailedLoad() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/bundle_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testBundlePom.xml");
+
+		final ReportSource directory = new ReportSource.Directory(destinationFolder.toPath());
+		final AtomicInteger opened = new AtomicInteger();
+		ReportCache cache = new ReportCache(new ReportSource() {
+			@Override
+			public InputStream open(String name) throws IOException {
+				if (opened.incrementAndGet() == 1) {
+					throw new IOException("Not deployed yet");
+				}
+				return directory.open(name);
+			}
+
+			@Override
+			public Object getVersion(String name) throws IOException {
+				return directory.getVersion(name);
+			}
+		}, 10);
+
+		try {
+			cache.get("LandscapeReport.jasper");
+			fail("The first load should fail");
+		}
+		catch (JRException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("LandscapeReport.jasper"));
+		}
+		assertEquals(0, cache.size());
+
+		JasperReport report = cache.get("LandscapeReport.jasper");
+		assertEquals("LandscapeReport", report.getName());
+		assertSame(report, cache.get("LandscapeReport.jasper"));
+		assertEquals(2, opened.get());
+		ReportCache.Statistics statistics = cache.getStatistics();
+		assertEquals(2, statistics.getMisses());
+		assertEquals(1, statistics.getHits());
+	}
+
+	/**
+	 * Test that the fill-check goal fills and exports the compiled reports that are not excluded.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testFillCheckFillsCompiledReports() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/bundle_out");
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testBundlePom.xml");
+
+		JasperFillChecker mojo =
+				(JasperFillChecker) lookupMojo("fill-check", getBasedir() + "/src/test/resources/testFillCheckPom.xml");
+		assertNotNull(mojo);
+		mojo.execute();
+
+		List<FillTask> filled = mojo.getFilledReports();
+		assertEquals(1, filled.size());
+		FillTask report = filled.get(0);
+		assertEquals("LandscapeReport.jasper", report.getName());
+		assertEquals(1, report.getPages());
+		assertEquals(new HashSet<String>(Arrays.asList("pdf", "html")), report.getExportNanos().keySet());
+	}
+
+	/**
+	 * Test that a report that fails to fill fails the fill check, naming the report.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testFillCheckFailsOnReportThatCannotBeFilled() throws Exception {
+		setupSourceAndDestinationFolder("/fillFailure", "/fillFailure_out");
+		String pluginPom = getBasedir() + "/src/test/resources/testFillFailurePom.xml";
+		getAndExecuteMojo(pluginPom);
+		assertTrue(new File(destinationFolder, "FailingReport.jasper").isFile());
+
+		JasperFillChecker mojo = (JasperFillChecker) lookupMojo("fill-check", pluginPom);
+		try {
+			mojo.execute();
+			fail("A report that cannot be filled should fail the fill check");
+		}
+		catch (MojoExecutionException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("FailingReport.jasper"));
+		}
+	}
+
+	/**
+	 * Test that the render goal fills the documents from their data files and exports them, and
+	 * that a document of many more pages than are kept in memory is rendered completely.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testRenderExportsDocuments() throws Exception {
+		setupSourceAndDestinationFolder("/renderReports", "/render_out");
+		File documents = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/render_documents");
+		FileUtils.deleteDirectory(documents);
+		getAndExecuteMojo(getBasedir() + "/src/test/resources/testRenderCompilePom.xml");
+
+		JasperRenderer mojo =
+				(JasperRenderer) lookupMojo("render", getBasedir() + "/src/test/resources/testRenderPom.xml");
+		assertNotNull(mojo);
+		mojo.execute();
+
+		assertTrue(new File(documents, "VirtualizerReport.pdf").length() > 0);
+		assertTrue(new File(documents, "ProductsReport.xlsx").length() > 0);
+		assertTrue(new File(documents, "ProductsFromJson.html").length() > 0);
+		for (String csv : Arrays.asList("ProductsReport.csv", "ProductsFromJson.csv")) {
+			String content = new String(Files.readAllBytes(new File(documents, csv).toPath()), StandardCharsets.UTF_8);
+			assertTrue(csv + " misses a record", content.contains("Aniseed Syrup"));
+		}
+	}
+
+	/**
+	 * Test that compile times are recorded in the baseline, and that reports that compile slower
+	 * than the baseline only fail the build when single runs are allowed to.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testRegressionAgainstBaselineFailsBuild() throws Exception {
+		File baselineFile = new File(getBasedir(), TARGET_EXAMPLE_OUT_FOLDER + "/baseline/baseline.properties");
+		baselineFile.delete();
+		String pluginPom = getBasedir() + "/src/test/resources/testBaselinePom.xml";
+		setupSourceAndDestinationFolder("/folderStructure", "/baseline_out");
+		JasperReporter mojo = (JasperReporter) lookupMojo("jasper", pluginPom);
+		setVariableValueToObject(mojo, "recordBaseline", true);
+		mojo.execute();
+
+		Properties baseline = new Properties();
+		try (FileInputStream in = new FileInputStream(baselineFile)) {
+			baseline.load(in);
+		}
+		assertEquals(4, baseline.size());
+		assertTrue(baseline.containsKey("compile/level.1/level.2.2/MasterReport.jrxml"));
+		for (String name : baseline.stringPropertyNames()) {
+			baseline.setProperty(name, "0.1");
+		}
+		try (FileOutputStream out = new FileOutputStream(baselineFile)) {
+			baseline.store(out, null);
+		}
+
+		// A compile time is a single run, which only gives a warning by default
+		setupSourceAndDestinationFolder("/folderStructure", "/baseline_out");
+		getAndExecuteMojo(pluginPom);
+
+		setupSourceAndDestinationFolder("/folderStructure", "/baseline_out");
+		mojo = (JasperReporter) lookupMojo("jasper", pluginPom);
+		setVariableValueToObject(mojo, "failOnSingleRunRegression", true);
+		try {
+			mojo.execute();
+			fail("The reports compile slower than the baseline");
+		}
+		catch (MojoExecutionException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("slower than the baseline"));
+		}
+	}
+
+	/**
+	 * Test that executions with the same jars on their classpath share the class loader of the jars,
+	 * while their class directories get a class loader of their own.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testClassLoaderIsSharedBetweenExecutions() throws Exception {
+		String jar = new File(TestCase.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		String pluginPom = getBasedir() + "/src/test/resources/testFolderStructurePom.xml";
+		JasperReporter first = (JasperReporter) lookupMojo("jasper", pluginPom);
+		setVariableValueToObject(first, "additionalClasspath", getBasedir() + "/target/first-classes;" + jar);
+		JasperReporter second = (JasperReporter) lookupMojo("jasper", pluginPom);
+		setVariableValueToObject(second, "additionalClasspath", getBasedir() + "/target/second-classes;" + jar);
+
+		ClassLoader parent = getClass().getClassLoader();
+		ClassLoader firstLoader = first.getClassLoader(parent);
+		ClassLoader secondLoader = second.getClassLoader(parent);
+		try {
+			assertNotSame(firstLoader, secondLoader);
+			assertSame(firstLoader.getParent(), secondLoader.getParent());
+			assertSame(parent, firstLoader.getParent().getParent());
+		}
+		finally {
+			first.releaseClassLoader(firstLoader);
+			second.releaseClassLoader(secondLoader);
+		}
+	}
+
+	/**
+	 * Test that a class in a class directory is found before a class of the same name in a shared
+	 * jar, like on the classpath, and that a directory after a jar does not share the jars.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testClassDirectoryComesBeforeSharedJars() throws Exception {
+		String jar = new File(TestCase.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		File classesFolder = new File(getBasedir(), "target/shadow-classes");
+		FileUtils.deleteDirectory(classesFolder);
+		File source = new File(classesFolder, "src/junit/framework/TestCase.java");
+		source.getParentFile().mkdirs();
+		Files.write(source.toPath(), "package junit.framework; public class TestCase { }".getBytes(StandardCharsets.UTF_8));
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertEquals(0, compiler.run(null, null, null, "-d", classesFolder.getPath(), source.getPath()));
+
+		String pluginPom = getBasedir() + "/src/test/resources/testFolderStructurePom.xml";
+		ClassLoader parent = getClass().getClassLoader();
+		JasperReporter mojo = (JasperReporter) lookupMojo("jasper", pluginPom);
+		setVariableValueToObject(mojo, "additionalClasspath", classesFolder.getPath() + ";" + jar);
+		ClassLoader loader = mojo.getClassLoader(parent);
+		try {
+			assertNotSame(parent, loader.getParent());
+			assertSame(loader, loader.loadClass("junit.framework.TestCase").getClassLoader());
+		}
+		finally {
+			mojo.releaseClassLoader(loader);
+		}
+
+		setVariableValueToObject(mojo, "additionalClasspath", jar + ";" + classesFolder.getPath());
+		loader = mojo.getClassLoader(parent);
+		try {
+			assertSame(parent, loader.getParent());
+			assertSame(TestCase.class, loader.loadClass("junit.framework.TestCase"));
+		}
+		finally {
+			mojo.releaseClassLoader(loader);
+		}
+	}
+
+	/**
+	 * Test that reports compiled on the shared worker pool are all compiled, including the master
+	 * after its subreports.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testSharedWorkerPoolCompilesAllReports() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/folderStructure_out");
+		JasperReporter mojo =
+				(JasperReporter) lookupMojo("jasper", getBasedir() + "/src/test/resources/testFolderStructurePom.xml");
+		setVariableValueToObject(mojo, "sharedWorkerPool", true);
+		setVariableValueToObject(mojo, "sharedWorkerPoolSize", 2);
+		mojo.execute();
+		assertEquals(4, detectFolderStructure(destinationFolder).size());
+	}
+
+	/**
+	 * Test that the tasks of a lane that is submitted after a large lane start before the large
+	 * lane is drained, instead of waiting for all tasks that were submitted before them.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testSharedWorkerPoolTakesTurnsBetweenLanes() throws Exception {
+		SharedWorkerPool pool = SharedWorkerPool.get(2);
+		int threads = pool.getSize();
+		int largeTasks = 50;
+		int smallTasks = 3;
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads + largeTasks + smallTasks);
+		final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+		SharedWorkerPool.Lane large = pool.newLane();
+		SharedWorkerPool.Lane small = pool.newLane();
+		// Keeps all threads busy until both lanes are filled
+		for (int i = 0; i < threads; i++) {
+			large.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					done.countDown();
+				}
+			});
+		}
+		for (int i = 0; i < largeTasks; i++) {
+			large.execute(new StartRecorder("large", started, done));
+		}
+		for (int i = 0; i < smallTasks; i++) {
+			small.execute(new StartRecorder("small", started, done));
+		}
+		release.countDown();
+		try {
+			assertTrue("All tasks should run", done.await(60, TimeUnit.SECONDS));
+		}
+		finally {
+			large.close();
+			small.close();
+		}
+
+		assertEquals(largeTasks + smallTasks, started.size());
+		int lastSmall = started.lastIndexOf("small");
+		assertTrue("The small lane should not wait for the large lane: " + started,
+				lastSmall < 2 * smallTasks + threads);
+		assertTrue("The large lane should still have tasks when the small lane is done: " + started,
+				started.subList(lastSmall, started.size()).contains("large"));
+	}
+
+	/**
+	 * Records the name of its lane when it starts.
+	 */
+	private static final class StartRecorder implements Runnable {
+
+		private final String lane;
+		private final List<String> started;
+		private final CountDownLatch done;
+
+		StartRecorder(String lane, List<String> started, CountDownLatch done) {
+			this.lane = lane;
+			this.started = started;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			started.add(lane);
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Test that reports compiled in worker JVMs are all compiled, and that the workers are used
+	 * again by the next execution.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testForkedWorkersCompileAllReports() throws Exception {
+		for (int execution = 0; execution < 2; execution++) {
+			setupSourceAndDestinationFolder("/folderStructure", "/folderStructure_out");
+			JasperReporter mojo = (JasperReporter) lookupMojo("jasper", getBasedir()
+					+ "/src/test/resources/testFolderStructurePom.xml");
+			setVariableValueToObject(mojo, "forkWorkers", true);
+			setVariableValueToObject(mojo, "forkCount", 2);
+			mojo.execute();
+			assertEquals(4, detectFolderStructure(destinationFolder).size());
+		}
+	}
+
+	/**
+	 * Test that the watch goal compiles a design again when it changes. The compiled report is
+	 * removed after the first build, so it can only come back by being compiled again.
+	 *
+	 * @throws Exception
+	 *             When an unexpected error occurs.
+	 */
+	public void testWatchRecompilesChangedReport() throws Exception {
+		setupSourceAndDestinationFolder("/folderStructure", "/watch_out");
+		copySourceFolder();
+		final JasperWatcher mojo =
+				(JasperWatcher) lookupMojo("watch", getBasedir() + "/src/test/resources/testWatchPom.xml");
+		setVariableValueToObject(mojo, "sourceDirectory", sourceFolder);
+		final Exception[] failure = new Exception[1];
+		Thread watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mojo.execute();
+				}
+				catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		});
+		watcher.start();
+		try {
+			File compiled = new File(destinationFolder, "LandscapeReport.jasper");
+			assertTrue("The reports should be compiled before watching", waitForReports(4));
+			assertTrue(compiled.delete());
+			Files.write(new File(sourceFolder, "LandscapeReport.jrxml").toPath(),
+					"<!-- changed -->\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			assertTrue("The changed report should be compiled again", waitForReports(4));
+		}
+		finally {
+			watcher.interrupt();
+			watcher.join(60000);
+			FileUtils.deleteDirectory(sourceFolder);
+		}
+		assertFalse("The watch goal should stop when interrupted", watcher.isAlive());
+		assertNull(failure[0]);
+	}
+
+	private boolean waitForReports(int count) throws InterruptedException {
+		for (int i = 0; i < 1200; i++) {
+			if (destinationFolder.isDirectory() && detectFolderStructure(destinationFolder).size() == count) {
+				return true;
+			}
+			Thread.sleep(50);
+		}
+		return false;
+	}
+
 	private Set<String> detectFolderStructure(File folderToSearch) {
 		Set<String> set = new HashSet<String>();
 		for (File f : folderToSearch.listFiles()) {